@@ -10,6 +10,7 @@ import static org.mastodon.mamut.MamutMenuBuilder.fileMenu;
 import static org.mastodon.mamut.MamutMenuBuilder.tagSetMenu;
 import static org.mastodon.mamut.MamutMenuBuilder.viewMenu;
 
+import java.awt.Component;
 import java.util.function.Consumer;
 
 import javax.swing.ActionMap;
@@ -20,6 +21,7 @@ import org.mastodon.app.ui.MastodonFrameViewActions;
 import org.mastodon.app.ui.SearchVertexLabel;
 import org.mastodon.app.ui.ViewMenu;
 import org.mastodon.app.ui.ViewMenuBuilder.JMenuHandle;
+import org.mastodon.graph.GraphIdBimap;
 import org.mastodon.graph.GraphListener;
 import org.mastodon.mamut.MainWindow;
 import org.mastodon.mamut.MamutMenuBuilder;
@@ -60,10 +62,14 @@ import org.mastodon.views.bvv.BigVolumeViewerActionsMamut;
 import org.mastodon.views.bvv.BigVolumeViewerMamut;
 import org.mastodon.views.bvv.VolumeViewerFrameMamut;
 import org.mastodon.views.bvv.export.RecordMovieDialog;
+import org.mastodon.views.bvv.scene.OverlayRenderOptions;
+import org.mastodon.views.bvv.scene.OverlayRenderOptions.EllipsoidMode;
 import org.mastodon.views.bvv.scene.OverlaySceneRenderer;
 import org.scijava.ui.behaviour.io.InputTriggerConfig;
 import org.scijava.ui.behaviour.util.Actions;
 
+import com.jogamp.opengl.GLAutoDrawable;
+
 import bdv.BigDataViewerActions;
 import bdv.tools.InitializeViewerState;
 import bdv.viewer.NavigationActions;
@@ -140,7 +146,16 @@ public class MamutViewBvv extends MamutView< OverlayGraphWrapper< Spot, Link >,
 				selectionModel,
 				coloring,
 				renderSettings );
+		tracksOverlay.setNumTimepoints( bdvData.getNumTimepoints() );
+		final GraphIdBimap< Spot, Link > idmap = appModel.getModel().getGraphIdBimap();
+		tracksOverlay.setVertexLookups( () -> {
+			final Spot sref = appModel.getModel().getGraph().vertexRef();
+			final OverlayVertexWrapper< Spot, Link > vref = viewGraph.vertexRef();
+			return id -> viewGraph.getVertexMap().getRight( idmap.getVertex( id, sref ), vref );
+		} );
 		viewer.setRenderScene( tracksOverlay );
+		tracksOverlay.getOptions().updateListeners().add( () -> viewer.requestRepaint( RepaintType.SCENE ) );
+		tracksOverlay.dataReadyListeners().add( () -> viewer.requestRepaint( RepaintType.SCENE ) );
 
 		// Listeners that will update the scene.
 
@@ -150,6 +165,12 @@ public class MamutViewBvv extends MamutView< OverlayGraphWrapper< Spot, Link >,
 			viewer.requestRepaint( RepaintType.SCENE );
 		};
 
+		// Update the colors of the instances whose selection changed.
+		final Runnable selectionUpdater = () -> {
+			tracksOverlay.updateSelection();
+			viewer.requestRepaint( RepaintType.SCENE );
+		};
+
 		// Update position of one vertex when user moves it.
 		final RefBimap< Spot, OverlayVertexWrapper< Spot, Link > > vertexMap = viewGraph.getVertexMap();
 		final Consumer< Spot > positionUpdater = ( s ) -> {
@@ -183,10 +204,14 @@ public class MamutViewBvv extends MamutView< OverlayGraphWrapper< Spot, Link >,
 		// Notify if models update.
 		final Model model = appModel.getModel();
 		final ModelGraph modelGraph = model.getGraph();
-		modelGraph.addGraphListener( new MyGraphListener( tracksOverlay, () -> viewer.requestRepaint( RepaintType.FULL ) ) );
+		modelGraph.addGraphListener( new MyGraphListener( tracksOverlay, viewGraph, () -> viewer.requestRepaint( RepaintType.FULL ) ) );
 		modelGraph.addVertexPositionListener( spot -> positionUpdater.accept( spot ) );
 		modelGraph.addVertexCovarianceListener( spot -> shapeUpdater.accept( spot ) );
-		selectionModel.listeners().add( () -> colorUpdater.run() );
+		selectionModel.listeners().add( () -> selectionUpdater.run() );
+
+		// The highlight and the focus are shader uniforms: only repaint.
+		highlightModel.listeners().add( () -> viewer.requestRepaint( RepaintType.SCENE ) );
+		focusModel.listeners().add( () -> viewer.requestRepaint( RepaintType.SCENE ) );
 
 		NavigationActions.install( viewActions, viewer, bdvData.is2D() );
 		viewer.getTransformEventHandler().install( viewBehaviours );
@@ -210,6 +235,13 @@ public class MamutViewBvv extends MamutView< OverlayGraphWrapper< Spot, Link >,
 			viewer.state().setViewerTransform( resetTransform );
 			viewer.showMessage( "reset view" );
 		}, "reset transform", "R" );
+		actions.runnableAction( () -> {
+			final OverlayRenderOptions options = tracksOverlay.getOptions();
+			final boolean impostor = options.getEllipsoidMode() != EllipsoidMode.IMPOSTOR;
+			options.setEllipsoidMode( impostor ? EllipsoidMode.IMPOSTOR : EllipsoidMode.MESH );
+			viewer.showMessage( impostor ? "ray-cast ellipsoids" : "mesh ellipsoids" );
+			viewer.requestRepaint( RepaintType.SCENE );
+		}, "toggle ellipsoid impostors", "shift I" );
 
 		final Runnable onCloseDialog = RecordMovieDialog.install( viewActions, bvv.getViewerFrame(),
 				colorBarOverlay, appModel.getKeymap() );
@@ -228,9 +260,16 @@ public class MamutViewBvv extends MamutView< OverlayGraphWrapper< Spot, Link >,
 				viewer );
 		frame.getSettingsPanel().add( searchField );
 
-		// Properly close.
+		// Properly close. The overlay releases its GL resources on the GL
+		// thread, at the next display or when the display is destroyed.
+		onClose( () -> {
+			final Component display = viewer.getDisplayComponent();
+			if ( display instanceof GLAutoDrawable )
+				tracksOverlay.stop( ( GLAutoDrawable ) display );
+			else
+				tracksOverlay.stop();
+		} );
 		onClose( () -> viewer.stop() );
-		onClose( () -> tracksOverlay.stop() );
 
 		// Give focus to display so that it can receive key-presses immediately.
 		viewer.getDisplay().requestFocusInWindow();
@@ -308,12 +347,16 @@ public class MamutViewBvv extends MamutView< OverlayGraphWrapper< Spot, Link >,
 
 		private final OverlaySceneRenderer< OverlayVertexWrapper< Spot, Link >, OverlayEdgeWrapper< Spot, Link > > tracksOverlay;
 
+		private final OverlayGraphWrapper< Spot, Link > viewGraph;
+
 		private final Runnable refresh;
 
 		public MyGraphListener( final OverlaySceneRenderer< OverlayVertexWrapper< Spot, Link >, OverlayEdgeWrapper< Spot, Link > > tracksOverlay,
+				final OverlayGraphWrapper< Spot, Link > viewGraph,
 				final Runnable refresh )
 		{
 			this.tracksOverlay = tracksOverlay;
+			this.viewGraph = viewGraph;
 			this.refresh = refresh;
 		}
 
@@ -327,23 +370,38 @@ public class MamutViewBvv extends MamutView< OverlayGraphWrapper< Spot, Link >,
 		@Override
 		public void vertexAdded( final Spot s )
 		{
-			tracksOverlay.rebuild( s.getTimepoint() );
+			final OverlayVertexWrapper< Spot, Link > ref = viewGraph.vertexRef();
+			tracksOverlay.vertexAdded( viewGraph.getVertexMap().getRight( s, ref ) );
+			viewGraph.releaseRef( ref );
 			refresh.run();
 		}
 
 		@Override
 		public void vertexRemoved( final Spot s )
 		{
-			vertexAdded( s );
+			final OverlayVertexWrapper< Spot, Link > ref = viewGraph.vertexRef();
+			tracksOverlay.vertexRemoved( viewGraph.getVertexMap().getRight( s, ref ) );
+			viewGraph.releaseRef( ref );
+			refresh.run();
 		}
 
 		@Override
 		public void edgeAdded( final Link l )
-		{}
+		{
+			final OverlayEdgeWrapper< Spot, Link > ref = viewGraph.edgeRef();
+			tracksOverlay.edgeAdded( viewGraph.getEdgeMap().getRight( l, ref ) );
+			viewGraph.releaseRef( ref );
+			refresh.run();
+		}
 
 		@Override
 		public void edgeRemoved( final Link l )
-		{}
+		{
+			final OverlayEdgeWrapper< Spot, Link > ref = viewGraph.edgeRef();
+			tracksOverlay.edgeRemoved( viewGraph.getEdgeMap().getRight( l, ref ) );
+			viewGraph.releaseRef( ref );
+			refresh.run();
+		}
 
 	}
 
@@ -0,0 +1,98 @@
+package org.mastodon.views.bvv.scene;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+
+import com.jogamp.opengl.GL3;
+
+/**
+ * Writes data in ranges of GPU buffers.
+ * <p>
+ * Data is either uploaded from an existing buffer, or written by the caller
+ * in a buffer returned by {@link #begin(GL3, int, long, int)}, then committed
+ * with {@link #end(GL3)}. Only one such write can be pending at a time.
+ * <p>
+ * Must only be used on the GL thread.
+ */
+interface BufferUploader
+{
+
+	/**
+	 * Uploads the remaining elements of the specified buffer.
+	 *
+	 * @param gl
+	 *            the GL context.
+	 * @param vbo
+	 *            the buffer to write to.
+	 * @param offset
+	 *            the offset in bytes in the buffer to write to.
+	 * @param data
+	 *            the data, from its position to its limit.
+	 */
+	void upload( GL3 gl, int vbo, long offset, Buffer data );
+
+	/**
+	 * Returns a buffer in which to write the data to upload to the specified
+	 * range. Its content is undefined. The data is uploaded by
+	 * {@link #end(GL3)}.
+	 *
+	 * @param gl
+	 *            the GL context.
+	 * @param vbo
+	 *            the buffer to write to.
+	 * @param offset
+	 *            the offset in bytes in the buffer to write to.
+	 * @param bytes
+	 *            the number of bytes to write.
+	 * @return a buffer of <code>bytes</code> bytes, in native order.
+	 */
+	ByteBuffer begin( GL3 gl, int vbo, long offset, int bytes );
+
+	/**
+	 * Uploads the data written in the buffer returned by the last call to
+	 * {@link #begin(GL3, int, long, int)}. The buffer must not be used
+	 * afterwards.
+	 *
+	 * @param gl
+	 *            the GL context.
+	 */
+	void end( GL3 gl );
+
+	/**
+	 * Signals that all the uploads of a frame were issued.
+	 *
+	 * @param gl
+	 *            the GL context.
+	 */
+	default void endFrame( final GL3 gl )
+	{}
+
+	/**
+	 * Releases the GL resources of this uploader.
+	 *
+	 * @param gl
+	 *            the GL context.
+	 */
+	default void dispose( final GL3 gl )
+	{}
+
+	/**
+	 * Returns the number of bytes between the position and the limit of the
+	 * specified buffer.
+	 */
+	static int remainingBytes( final Buffer data )
+	{
+		if ( data instanceof FloatBuffer )
+			return data.remaining() * Float.BYTES;
+		if ( data instanceof IntBuffer )
+			return data.remaining() * Integer.BYTES;
+		if ( data instanceof ShortBuffer )
+			return data.remaining() * Short.BYTES;
+		if ( data instanceof ByteBuffer )
+			return data.remaining();
+		throw new IllegalArgumentException( "Unsupported buffer type: " + data.getClass() );
+	}
+}
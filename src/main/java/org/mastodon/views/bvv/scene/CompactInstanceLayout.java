@@ -0,0 +1,167 @@
+package org.mastodon.views.bvv.scene;
+
+import static com.jogamp.opengl.GL3.GL_R32UI;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+import org.mastodon.views.bvv.scene.OverlayModelUpdateGenerator.OverlayModelUpdate;
+
+import com.jogamp.opengl.GL3;
+
+/**
+ * Shapes and translations interleaved in a single buffer. Each instance uses
+ * 44 bytes:
+ * <ul>
+ * <li>bytes 0 to 17: the 9 elements of the shape matrix, as half-floats,
+ * column-major.
+ * <li>bytes 18 to 19: padding.
+ * <li>bytes 20 to 31: the 3 elements of the translation, as floats.
+ * <li>bytes 32 to 43: the 3 inverse squared radii, as floats.
+ * </ul>
+ * Half-floats have 11 significant bits, which is plenty for the shape of an
+ * ellipsoid, but not for its position. Nor for the inverse squared radii,
+ * whose range is the square of the range of the radii.
+ */
+class CompactInstanceLayout implements InstanceLayout
+{
+
+	static final int STRIDE = 44;
+
+	static final int TRANSLATION_OFFSET = 20;
+
+	static final int INVERSE_RADII_OFFSET = 32;
+
+	@Override
+	public int numBuffers()
+	{
+		return 1;
+	}
+
+	@Override
+	public int stride( final int buffer )
+	{
+		return STRIDE;
+	}
+
+	@Override
+	public int textureFormat( final int buffer )
+	{
+		return GL_R32UI;
+	}
+
+	@Override
+	public String samplerName( final int buffer )
+	{
+		return "instances";
+	}
+
+	@Override
+	public String shaderSegment()
+	{
+		return "instanceCompact.glsl";
+	}
+
+	/**
+	 * Shapes and translations are interleaved: both are uploaded.
+	 */
+	@Override
+	public void uploadShapes( final GL3 gl, final BufferUploader uploader, final int[] vbos, final int firstInstance, final OverlayModelUpdate data, final int start, final int end )
+	{
+		uploadRange( gl, uploader, vbos, firstInstance, data, start, end );
+	}
+
+	/**
+	 * Shapes and translations are interleaved: both are uploaded.
+	 */
+	@Override
+	public void uploadPositions( final GL3 gl, final BufferUploader uploader, final int[] vbos, final int firstInstance, final OverlayModelUpdate data, final int start, final int end )
+	{
+		uploadRange( gl, uploader, vbos, firstInstance, data, start, end );
+	}
+
+	@Override
+	public void uploadAll( final GL3 gl, final BufferUploader uploader, final int[] vbos, final int firstInstance, final OverlayModelUpdate data, final int start, final int end )
+	{
+		uploadRange( gl, uploader, vbos, firstInstance, data, start, end );
+	}
+
+	private static void uploadRange( final GL3 gl, final BufferUploader uploader, final int[] vbos, final int firstInstance, final OverlayModelUpdate data, final int start, final int end )
+	{
+		// Packed directly in the buffer to upload.
+		final ByteBuffer buffer = uploader.begin( gl, vbos[ 0 ], ( long ) ( firstInstance + start ) * STRIDE, ( end - start ) * STRIDE );
+		pack( data, start, end, buffer );
+		uploader.end( gl );
+	}
+
+	/**
+	 * Interleaves the shape and translation data of the instances
+	 * <code>start</code> (inclusive) to <code>end</code> (exclusive) of the
+	 * specified update at the beginning of the specified buffer.
+	 */
+	private static void pack( final OverlayModelUpdate update, final int start, final int end, final ByteBuffer dest )
+	{
+		final FloatBuffer shapes = update.shapeBuffer;
+		final FloatBuffer translations = update.translationBuffer;
+		for ( int i = start; i < end; i++ )
+		{
+			final int o = ( i - start ) * STRIDE;
+			final int s = ShapeMatrices.FLOATS * i;
+			for ( int k = 0; k < 9; k++ )
+				dest.putShort( o + k * Short.BYTES, toHalf( shapes.get( s + k ) ) );
+			for ( int k = 0; k < 3; k++ )
+				dest.putFloat( o + TRANSLATION_OFFSET + k * Float.BYTES, translations.get( 3 * i + k ) );
+			for ( int k = 0; k < 3; k++ )
+				dest.putFloat( o + INVERSE_RADII_OFFSET + k * Float.BYTES, shapes.get( s + 9 + k ) );
+		}
+	}
+
+	/**
+	 * Converts a float to a IEEE 754 half-float, rounding to the nearest even.
+	 * Values too large for a half-float become infinities, values too small
+	 * become zeros or subnormals.
+	 *
+	 * @param f
+	 *            the float to convert.
+	 * @return the bits of the half-float.
+	 */
+	static short toHalf( final float f )
+	{
+		final int bits = Float.floatToRawIntBits( f );
+		final int sign = ( bits >>> 16 ) & 0x8000;
+		final int abs = bits & 0x7fffffff;
+
+		// NaN and infinities.
+		if ( abs >= 0x7f800000 )
+			return ( short ) ( sign | 0x7c00 | ( abs > 0x7f800000 ? 0x200 : 0 ) );
+
+		// Too large: infinity.
+		if ( abs >= 0x477ff000 )
+			return ( short ) ( sign | 0x7c00 );
+
+		// Normal half-float.
+		if ( abs >= 0x38800000 )
+		{
+			final int mant = abs & 0x1fff;
+			int h = ( abs - 0x38000000 ) >>> 13;
+			if ( mant > 0x1000 || ( mant == 0x1000 && ( h & 1 ) != 0 ) )
+				h++;
+			return ( short ) ( sign | h );
+		}
+
+		// Too small: zero.
+		if ( abs < 0x33000000 )
+			return ( short ) sign;
+
+		// Subnormal half-float.
+		final int exp = abs >>> 23;
+		final int m = ( abs & 0x7fffff ) | 0x800000;
+		final int shift = 126 - exp;
+		int h = m >>> shift;
+		final int rem = m & ( ( 1 << shift ) - 1 );
+		final int halfway = 1 << ( shift - 1 );
+		if ( rem > halfway || ( rem == halfway && ( h & 1 ) != 0 ) )
+			h++;
+		return ( short ) ( sign | h );
+	}
+}
@@ -0,0 +1,323 @@
+package org.mastodon.views.bvv.scene;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+import gnu.trove.map.hash.TIntObjectHashMap;
+
+/**
+ * Pool of direct buffers, shared by all the frames of an
+ * {@link OverlaySceneRenderer}.
+ * <p>
+ * Buffers are allocated in size classes: 4 classes per power of two, from 4
+ * kB, so that a buffer is at most 25% larger than requested. The buffers
+ * handed out have the exact requested capacity; they are views on a pooled
+ * buffer of the size class. Their content is undefined.
+ * <p>
+ * Released buffers are kept for reuse as long as the total number of pooled
+ * bytes stays below a cap. Buffers larger than 1 GB are never pooled. The
+ * pool does not keep the buffers handed out alive: a buffer dropped without
+ * being released is garbage collected, and is not reused.
+ */
+public class DirectBufferPool
+{
+
+	/**
+	 * Default value for {@link #getMaxPooledBytes()}.
+	 */
+	public static final long DEFAULT_MAX_POOLED_BYTES = 64L << 20;
+
+	private static final int MIN_SIZE = 4096;
+
+	private static final int MAX_SIZE = 1 << 30;
+
+	/**
+	 * Free buffers, per size class.
+	 */
+	private final TIntObjectHashMap< ArrayDeque< ByteBuffer > > free = new TIntObjectHashMap<>();
+
+	/**
+	 * The buffers handed out, weakly referenced, mapped to the buffer of
+	 * their size class.
+	 */
+	private final Map< Outstanding, ByteBuffer > outstanding = new HashMap<>();
+
+	/**
+	 * The references to the buffers handed out that were garbage collected.
+	 */
+	private final ReferenceQueue< Buffer > collected = new ReferenceQueue<>();
+
+	private long maxPooledBytes = DEFAULT_MAX_POOLED_BYTES;
+
+	private long pooledBytes = 0;
+
+	private long hits = 0;
+
+	private long misses = 0;
+
+	/**
+	 * Returns a direct buffer of floats in native order.
+	 *
+	 * @param n
+	 *            the number of floats.
+	 * @return a buffer with a capacity of <code>n</code> floats.
+	 * @throws IllegalArgumentException
+	 *             if the buffer would be larger than
+	 *             <code>Integer.MAX_VALUE</code> bytes.
+	 */
+	public synchronized FloatBuffer floats( final int n )
+	{
+		final int bytes = byteSize( n, Float.BYTES );
+		final ByteBuffer backing = acquire( bytes );
+		final FloatBuffer view = exact( backing, bytes ).asFloatBuffer();
+		track( view, backing );
+		return view;
+	}
+
+	/**
+	 * Returns a direct buffer of ints in native order.
+	 *
+	 * @param n
+	 *            the number of ints.
+	 * @return a buffer with a capacity of <code>n</code> ints.
+	 * @throws IllegalArgumentException
+	 *             if the buffer would be larger than
+	 *             <code>Integer.MAX_VALUE</code> bytes.
+	 */
+	public synchronized IntBuffer ints( final int n )
+	{
+		final int bytes = byteSize( n, Integer.BYTES );
+		final ByteBuffer backing = acquire( bytes );
+		final IntBuffer view = exact( backing, bytes ).asIntBuffer();
+		track( view, backing );
+		return view;
+	}
+
+	/**
+	 * Returns a direct buffer of bytes in native order.
+	 *
+	 * @param n
+	 *            the number of bytes.
+	 * @return a buffer with a capacity of <code>n</code> bytes.
+	 */
+	public synchronized ByteBuffer bytes( final int n )
+	{
+		final ByteBuffer backing = acquire( n );
+		final ByteBuffer view = exact( backing, n );
+		track( view, backing );
+		return view;
+	}
+
+	/**
+	 * Returns a buffer obtained from this pool. The buffer must not be used
+	 * afterwards. Buffers that do not come from this pool are ignored.
+	 *
+	 * @param buffer
+	 *            the buffer to release, may be <code>null</code>.
+	 */
+	public synchronized void release( final Buffer buffer )
+	{
+		if ( buffer == null )
+			return;
+		expunge();
+		final ByteBuffer backing = outstanding.remove( new Outstanding( buffer, null ) );
+		if ( backing == null )
+			return;
+
+		final int size = backing.capacity();
+		if ( size > MAX_SIZE || pooledBytes + size > maxPooledBytes )
+			return;
+
+		ArrayDeque< ByteBuffer > list = free.get( size );
+		if ( list == null )
+		{
+			list = new ArrayDeque<>();
+			free.put( size, list );
+		}
+		list.push( backing );
+		pooledBytes += size;
+	}
+
+	/**
+	 * Returns the max number of bytes of the free buffers kept in the pool.
+	 *
+	 * @return the max number of bytes.
+	 */
+	public synchronized long getMaxPooledBytes()
+	{
+		return maxPooledBytes;
+	}
+
+	/**
+	 * Sets the max number of bytes of the free buffers kept in the pool. Free
+	 * buffers are dropped if the pool holds more.
+	 *
+	 * @param maxPooledBytes
+	 *            the max number of bytes.
+	 */
+	public synchronized void setMaxPooledBytes( final long maxPooledBytes )
+	{
+		this.maxPooledBytes = maxPooledBytes;
+		if ( pooledBytes > maxPooledBytes )
+			clear();
+	}
+
+	/**
+	 * Returns the number of bytes of the free buffers kept in the pool.
+	 *
+	 * @return the number of bytes.
+	 */
+	public synchronized long getPooledBytes()
+	{
+		return pooledBytes;
+	}
+
+	/**
+	 * Returns the number of requests served with a pooled buffer.
+	 *
+	 * @return the number of hits.
+	 */
+	public synchronized long getHits()
+	{
+		return hits;
+	}
+
+	/**
+	 * Returns the number of requests that allocated a new buffer.
+	 *
+	 * @return the number of misses.
+	 */
+	public synchronized long getMisses()
+	{
+		return misses;
+	}
+
+	/**
+	 * Returns the number of buffers handed out that were neither released nor
+	 * garbage collected.
+	 *
+	 * @return the number of buffers.
+	 */
+	public synchronized int getOutstandingBuffers()
+	{
+		expunge();
+		return outstanding.size();
+	}
+
+	/**
+	 * Drops all the free buffers.
+	 */
+	public synchronized void clear()
+	{
+		free.clear();
+		pooledBytes = 0;
+	}
+
+	private void track( final Buffer view, final ByteBuffer backing )
+	{
+		expunge();
+		outstanding.put( new Outstanding( view, collected ), backing );
+	}
+
+	/**
+	 * Forgets the buffers handed out that were garbage collected. Their size
+	 * class buffers are not reused: other views on them may still be alive.
+	 */
+	private void expunge()
+	{
+		Reference< ? extends Buffer > ref;
+		while ( ( ref = collected.poll() ) != null )
+			outstanding.remove( ref );
+	}
+
+	private ByteBuffer acquire( final int bytes )
+	{
+		final int size = sizeClass( bytes );
+		final ArrayDeque< ByteBuffer > list = free.get( size );
+		if ( list != null && !list.isEmpty() )
+		{
+			hits++;
+			pooledBytes -= size;
+			return list.pop();
+		}
+		misses++;
+		return ByteBuffer.allocateDirect( size ).order( ByteOrder.nativeOrder() );
+	}
+
+	/**
+	 * Returns the number of bytes of <code>n</code> elements, computed in
+	 * <code>long</code> so that it cannot silently wrap around.
+	 */
+	private static int byteSize( final int n, final int elementBytes )
+	{
+		final long bytes = ( long ) n * elementBytes;
+		if ( bytes > Integer.MAX_VALUE )
+			throw new IllegalArgumentException( "Buffer of " + n + " elements of " + elementBytes + " bytes is larger than " + Integer.MAX_VALUE + " bytes." );
+		return ( int ) bytes;
+	}
+
+	private static ByteBuffer exact( final ByteBuffer backing, final int bytes )
+	{
+		final ByteBuffer b = backing.duplicate();
+		b.clear();
+		b.limit( bytes );
+		return b.slice().order( ByteOrder.nativeOrder() );
+	}
+
+	/**
+	 * Returns the capacity of the size class of a request: the smallest
+	 * multiple of a quarter of a power of two that fits it.
+	 */
+	static int sizeClass( final int bytes )
+	{
+		if ( bytes <= MIN_SIZE )
+			return MIN_SIZE;
+		if ( bytes > MAX_SIZE )
+			return bytes;
+		final int exp = 31 - Integer.numberOfLeadingZeros( bytes - 1 );
+		final int unit = 1 << ( exp - 2 );
+		return ( ( bytes + unit - 1 ) / unit ) * unit;
+	}
+
+	/**
+	 * A weak reference to a buffer handed out. The references to the same
+	 * buffer are equal: buffers are compared by identity, not by content.
+	 */
+	private static class Outstanding extends WeakReference< Buffer >
+	{
+
+		private final int hash;
+
+		Outstanding( final Buffer buffer, final ReferenceQueue< Buffer > queue )
+		{
+			super( buffer, queue );
+			hash = System.identityHashCode( buffer );
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hash;
+		}
+
+		@Override
+		public boolean equals( final Object obj )
+		{
+			if ( obj == this )
+				return true;
+			if ( !( obj instanceof Outstanding ) )
+				return false;
+			final Buffer buffer = get();
+			return buffer != null && buffer == ( ( Outstanding ) obj ).get();
+		}
+	}
+}
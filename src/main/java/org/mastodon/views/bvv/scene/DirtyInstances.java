@@ -0,0 +1,127 @@
+package org.mastodon.views.bvv.scene;
+
+import java.util.BitSet;
+
+/**
+ * A set of instance indices whose data changed since the last upload to the
+ * GPU, drained as sorted ranges of contiguous indices.
+ * <p>
+ * Marking an instance several times between two uploads only uploads it once.
+ * Ranges separated by a few clean instances are merged, so that many small
+ * edits translate into a few buffer transfers. Above a fraction of dirty
+ * instances, the whole buffer is uploaded at once.
+ * <p>
+ * Not thread-safe.
+ */
+class DirtyInstances
+{
+
+	@FunctionalInterface
+	interface RangeConsumer
+	{
+		/**
+		 * Receives the range of instances <code>start</code> (inclusive) to
+		 * <code>end</code> (exclusive).
+		 */
+		void accept( int start, int end );
+	}
+
+	/**
+	 * Max number of clean instances between two dirty ones for them to be
+	 * uploaded in one call.
+	 */
+	static final int MAX_GAP = 16;
+
+	/**
+	 * Fraction of dirty instances above which the whole buffer is uploaded.
+	 */
+	static final double FULL_UPLOAD_FRACTION = 0.25;
+
+	private final BitSet dirty = new BitSet();
+
+	private int count = 0;
+
+	/**
+	 * Marks the specified instance as dirty.
+	 *
+	 * @param index
+	 *            the instance index.
+	 */
+	void add( final int index )
+	{
+		if ( !dirty.get( index ) )
+		{
+			dirty.set( index );
+			count++;
+		}
+	}
+
+	/**
+	 * Marks the specified range of instances as dirty.
+	 *
+	 * @param start
+	 *            the first instance index, inclusive.
+	 * @param end
+	 *            the last instance index, exclusive.
+	 */
+	void add( final int start, final int end )
+	{
+		dirty.set( start, end );
+		count = dirty.cardinality();
+	}
+
+	boolean isEmpty()
+	{
+		return count == 0;
+	}
+
+	int size()
+	{
+		return count;
+	}
+
+	void clear()
+	{
+		dirty.clear();
+		count = 0;
+	}
+
+	/**
+	 * Passes the dirty ranges to the specified consumer, in increasing order,
+	 * then clears this set.
+	 *
+	 * @param numInstances
+	 *            the total number of instances. If the fraction of dirty
+	 *            instances is larger than {@link #FULL_UPLOAD_FRACTION}, the
+	 *            consumer receives a single range covering all of them.
+	 * @param consumer
+	 *            the consumer of ranges.
+	 */
+	void drain( final int numInstances, final RangeConsumer consumer )
+	{
+		if ( count == 0 )
+			return;
+
+		if ( count > FULL_UPLOAD_FRACTION * numInstances )
+		{
+			consumer.accept( 0, numInstances );
+		}
+		else
+		{
+			int start = dirty.nextSetBit( 0 );
+			while ( start >= 0 && start < numInstances )
+			{
+				int end = dirty.nextClearBit( start );
+				int next = dirty.nextSetBit( end );
+				while ( next >= 0 && next - end <= MAX_GAP )
+				{
+					end = dirty.nextClearBit( next );
+					next = dirty.nextSetBit( end );
+				}
+				consumer.accept( start, Math.min( end, numInstances ) );
+				start = next;
+			}
+		}
+		clear();
+	}
+}
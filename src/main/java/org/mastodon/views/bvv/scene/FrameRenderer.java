@@ -1,43 +1,32 @@
 package org.mastodon.views.bvv.scene;
 
-import static com.jogamp.opengl.GL.GL_ARRAY_BUFFER;
-import static com.jogamp.opengl.GL.GL_DYNAMIC_DRAW;
-import static com.jogamp.opengl.GL.GL_ELEMENT_ARRAY_BUFFER;
-import static com.jogamp.opengl.GL.GL_FLOAT;
-import static com.jogamp.opengl.GL.GL_TRIANGLES;
-import static com.jogamp.opengl.GL.GL_UNSIGNED_INT;
-
-import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
+import java.util.BitSet;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.locks.Lock;
 import java.util.function.Supplier;
 
 import org.joml.Matrix3f;
 import org.joml.Matrix4f;
-import org.mastodon.model.HighlightModel;
+import org.joml.Vector3f;
 import org.mastodon.model.SelectionModel;
 import org.mastodon.spatial.SpatialIndex;
 import org.mastodon.ui.coloring.GraphColorGenerator;
 import org.mastodon.views.bdv.overlay.OverlayVertex;
 import org.mastodon.views.bdv.overlay.RenderSettings;
+import org.mastodon.views.bvv.scene.InstanceArena.Slot;
+import org.mastodon.views.bvv.scene.InstanceMeshes.Part;
+import org.mastodon.views.bvv.scene.OverlayRenderOptions.EllipsoidMode;
 import org.mastodon.views.bvv.scene.OverlayModelUpdateGenerator.OverlayModelUpdate;
-import org.mastodon.views.bvv.scene.OverlayModelUpdateGenerator.PositionUpdate;
-import org.mastodon.views.bvv.scene.OverlayModelUpdateGenerator.ShapeUpdate;
+import org.mastodon.views.bvv.scene.OverlayModelUpdateGenerator.UpdateTarget;
 
-import com.jogamp.opengl.GL;
 import com.jogamp.opengl.GL3;
 
 import bvv.core.backend.jogl.JoglGpuContext;
 import bvv.core.render.RenderData;
 import bvv.core.shadergen.DefaultShader;
-import bvv.core.shadergen.generate.Segment;
-import bvv.core.shadergen.generate.SegmentTemplate;
 import bvv.core.util.MatrixMath;
-import net.imglib2.RealPoint;
-import net.imglib2.mesh.Mesh;
-import net.imglib2.mesh.Meshes;
-import net.imglib2.mesh.impl.nio.BufferMesh;
-import net.imglib2.mesh.util.Icosahedron;
+import gnu.trove.list.array.TIntArrayList;
 
 /**
  * Renders all the vertices of one frame at ellispoids in OpenGL.
@@ -45,52 +34,119 @@ import net.imglib2.mesh.util.Icosahedron;
 public class FrameRenderer< V extends OverlayVertex< V, ? > >
 {
 
-	private final DefaultShader prog;
+	private final OverlayRenderOptions options;
 
-	private int vao = 0;
+	private final DirectBufferPool pool;
 
-	private int verticesVBO;
+	/**
+	 * The arena holding the instances of this frame.
+	 */
+	private InstanceArena arena;
 
-	private int indicesEBO;
+	/**
+	 * The range of instances of this frame in the arena.
+	 */
+	private Slot slot;
 
-	private int shapeVBO;
+	private final OverlayModelUpdateGenerator< V > updater;
 
-	private int translationVBO;
+	private int numInstances;
 
-	private int colorVBO;
+	/**
+	 * The indices of the instances to draw, grouped by mesh.
+	 */
+	private final LodBuckets buckets = new LodBuckets();
 
-	private final OverlayModelUpdateGenerator< V > updater;
+	/**
+	 * The indices of the instances in the order they are drawn, uploaded to
+	 * the slot of this frame.
+	 */
+	private IntBuffer ids;
 
-	private int numInstances;
+	/**
+	 * Whether the instances must be sorted again before drawing.
+	 */
+	private boolean idsDirty = true;
 
-	private boolean doRegenAll;
+	/**
+	 * The frustum of the last search of the visible spots requested. It is
+	 * read by the search job: a new one is created for each request.
+	 */
+	private ViewFrustum frustum = new ViewFrustum();
 
-	private boolean doUpdateShape;
+	/**
+	 * Whether a search of the visible spots completed since the last render.
+	 */
+	private volatile boolean clipDone;
 
-	private boolean doUpdatePosition;
+	/**
+	 * The culling stage on the GPU, created on demand.
+	 */
+	private GpuCulling gpuCulling;
 
-	private boolean doRegenColor;
+	/*
+	 * The parameters of the last sort.
+	 */
 
-	private final ViewMatrixUpdater viewMatrixUpdater;
+	private boolean sortedGpu;
+
+	private boolean sortedCull;
+
+	private boolean sortedLod;
+
+	private Part sortedMesh;
 
-	private boolean doCloseRenderer = false;
+	private final Matrix4f sortedPvm = new Matrix4f();
 
+	private double sortedScreenHeight;
+
+	private long sortedTriangleBudget;
+
+	/**
+	 * Number of bytes of GPU memory used by the buffers of this frame.
+	 */
+	private long gpuBytes = 0;
+
+	/**
+	 * Number of bytes of GPU memory the arena had no room for at the last
+	 * reallocation of the buffers of this frame, or 0.
+	 */
+	private long missingGpuBytes = 0;
+
+	/**
+	 * Time of the last render, in nanoseconds.
+	 */
+	private long lastRenderTime = 0;
+
+	/**
+	 * The background regenerations of this frame, and the selection of its
+	 * vertices.
+	 */
+	private final RegenJobs jobs;
+
+	private final ViewMatrixUpdater viewMatrixUpdater;
+
+	private final Uploader uploader = new Uploader();
 
 	public FrameRenderer(
 			final Supplier< SpatialIndex< V > > dataSupplier,
 			final Lock readLock,
-			final HighlightModel< V, ? > highlight,
 			final SelectionModel< V, ? > selection,
 			final GraphColorGenerator< V, ? > coloring,
-			final RenderSettings settings )
+			final RenderSettings settings,
+			final OverlayRenderOptions options,
+			final ShapeCache shapeCache,
+			final InstanceIndexMap indexMap,
+			final DirectBufferPool pool,
+			final Supplier< VertexLookup< V > > lookups,
+			final ExecutorService executor,
+			final Runnable dataReady )
 	{
-		this.updater = new OverlayModelUpdateGenerator< V >( dataSupplier, readLock, selection, coloring, settings );
-		this.doRegenAll = true;
+		this.updater = new OverlayModelUpdateGenerator< V >( dataSupplier, readLock, selection, coloring, settings, options, shapeCache, indexMap, pool, lookups );
+		this.options = options;
+		this.pool = pool;
+		this.jobs = new RegenJobs( executor, updater::regenAll, updater::regenColors, this::clip, dataReady );
 
-		// Shader gen.
-		final Segment shaderVp = new SegmentTemplate( FrameRenderer.class, "vertexShader3D.glsl" ).instantiate();
-		final Segment shaderFp = new SegmentTemplate( FrameRenderer.class, "fragmentShader3D.glsl" ).instantiate();
-		prog = new DefaultShader( shaderVp.getCode(), shaderFp.getCode() );
 		viewMatrixUpdater = new ViewMatrixUpdater();
 	}
 
@@ -100,273 +156,387 @@ public class FrameRenderer< V extends OverlayVertex< V, ? > >
 
 	void rebuild()
 	{
-		doRegenAll = true;
+		jobs.requestRegenAll();
 	}
 
 	void updateColors()
 	{
-		doRegenColor = true;
+		jobs.requestRegenColors();
 	}
 
+	/**
+	 * Signals that the selection changed.
+	 * 
+	 * @param selectedIds
+	 *            the spot ids of all the vertices selected in this frame.
+	 */
+	void updateSelection( final TIntArrayList selectedIds )
+	{
+		jobs.updateSelection( selectedIds );
+	}
+
+	/**
+	 * Queues an update of the position of the specified vertex. All the
+	 * updates queued between two renders are uploaded together.
+	 * 
+	 * @param v
+	 *            the vertex.
+	 */
 	void updatePosition( final V v )
 	{
 		updater.updatePosition( v );
-		doUpdatePosition = true;
 	}
 
+	/**
+	 * Queues an update of the shape of the specified vertex. All the updates
+	 * queued between two renders are uploaded together.
+	 * 
+	 * @param v
+	 *            the vertex.
+	 */
 	void updateShape( final V v )
 	{
 		updater.updateShape( v );
-		doUpdateShape = true;
+	}
+
+	/**
+	 * Adds an instance for the specified vertex, without regenerating the
+	 * other instances.
+	 * 
+	 * @param v
+	 *            the vertex.
+	 */
+	void addVertex( final V v )
+	{
+		updater.addVertex( v );
+	}
+
+	/**
+	 * Removes the instance of the specified vertex, without regenerating the
+	 * other instances.
+	 * 
+	 * @param v
+	 *            the vertex.
+	 */
+	void removeVertex( final V v )
+	{
+		updater.removeVertex( v );
+	}
+
+	/**
+	 * Starts regenerating the buffers of this frame in the background if they
+	 * are out of date, without rendering it.
+	 */
+	void prefetch()
+	{
+		jobs.submit();
+	}
+
+	/**
+	 * Returns the number of bytes of GPU memory used by the buffers of this
+	 * frame.
+	 *
+	 * @return the number of bytes.
+	 */
+	long getGpuBytes()
+	{
+		return gpuBytes;
+	}
+
+	/**
+	 * Returns the number of bytes of GPU memory needed by the buffers of this
+	 * frame: the bytes it uses, or the bytes the arena had no room for when
+	 * they were last reallocated.
+	 *
+	 * @return the number of bytes.
+	 */
+	long getRequiredGpuBytes()
+	{
+		return gpuBytes + missingGpuBytes;
+	}
+
+	/**
+	 * Returns the time of the last render of this frame.
+	 *
+	 * @return the time, as returned by {@link System#nanoTime()}.
+	 */
+	long getLastRenderTime()
+	{
+		return lastRenderTime;
+	}
+
+	/**
+	 * Releases the GPU and CPU buffers of this frame. The frame must not be
+	 * used afterwards. Must be called on the GL thread.
+	 *
+	 * @param gl
+	 *            the GL context.
+	 */
+	void evict( final GL3 gl )
+	{
+		jobs.close();
+		cleanup( gl );
+		updater.dispose();
+	}
+
+	/**
+	 * Releases the GPU buffers of this frame, but keeps its instance data. It
+	 * is uploaded again when the frame is rendered. Must be called on the GL
+	 * thread.
+	 *
+	 * @param gl
+	 *            the GL context.
+	 */
+	void releaseGpuBuffers( final GL3 gl )
+	{
+		cleanup( gl );
 	}
 
 	void stop()
 	{
-		doCloseRenderer = true;
+		jobs.close();
 	}
 
 	/*
 	 * OpenGL methods.
 	 */
 
-	void render( final GL3 gl, final RenderData data )
+	/**
+	 * Uploads what changed in this frame and draws it.
+	 *
+	 * @param gl
+	 *            the GL context.
+	 * @param data
+	 *            the render data.
+	 * @param arena
+	 *            the arena holding the instances of all the frames.
+	 * @param programs
+	 *            the shader programs of the GL context.
+	 * @param highlightedId
+	 *            the spot id of the highlighted vertex, or -1.
+	 * @param focusedId
+	 *            the spot id of the focused vertex, or -1.
+	 */
+	void render( final GL3 gl, final RenderData data, final InstanceArena arena, final ShaderPrograms programs, final int highlightedId, final int focusedId )
 	{
 		// Is the display closing and should we close everything?
-		if ( doCloseRenderer  )
+		if ( jobs.isClosed() )
 		{
 			cleanup( gl );
+			updater.dispose();
 			return;
 		}
 
-		// Are we initialized?
-		if ( doRegenAll )
-			init( gl );
-
-		// Did the color changed?
-		if ( doRegenColor )
-			transferColorBuffer( gl );
-
-		// Did the position of a vertex changed?
-		if ( doUpdatePosition )
-			transferPositionUdate( gl );
+		lastRenderTime = System.nanoTime();
 
-		// Did the shape of a vertex changed?
-		if ( doUpdateShape )
-			transferShapeUpdate( gl );
+		// Was our slot lost with a previous arena, or refused by a full one?
+		if ( slot == null || !slot.isValid() )
+		{
+			slot = null;
+			updater.requestReallocation();
+		}
+		this.arena = arena;
 
-		// Get current view matrices and pass them to the shaders.
-		viewMatrixUpdater.update( gl, data, prog );
+		// Did the selection changed?
+		final TIntArrayList selectedIds = jobs.takeSelection();
+		if ( selectedIds != null )
+			updater.updateSelection( selectedIds );
 
-		// Bind
-		gl.glBindVertexArray( vao );
+		// Get current view matrices.
+		viewMatrixUpdater.compute( data );
 
-		// Draw the actual meshes.
-		gl.glDrawElementsInstanced(
-				GL_TRIANGLES,
-				vertexCount,
-				GL_UNSIGNED_INT,
-				0,
-				numInstances );
+		// Cull and sort on the GPU? The CPU sort is then skipped.
+		final boolean gpu = options.isGpuCulling() && GpuCulling.isSupported( gl );
 
-		// Unbind
-		gl.glBindVertexArray( 0 );
-	}
+		// Cull on the CPU, with the spatial index?
+		final boolean cull = !gpu && options.isFrustumCulling();
 
-	private void transferPositionUdate( final GL3 gl )
-	{
-		final PositionUpdate positionUpdate = updater.positionUpdate;
-		gl.glBindBuffer( GL_ARRAY_BUFFER, translationVBO );
-		gl.glBufferSubData(
-				GL_ARRAY_BUFFER,
-				3 * positionUpdate.index * Float.BYTES,
-				3 * Float.BYTES,
-				positionUpdate.buffer );
-		doUpdatePosition = false;
-	}
+		// Did a search of the visible spots complete?
+		if ( clipDone )
+		{
+			clipDone = false;
+			idsDirty = true;
+		}
 
-	private void transferShapeUpdate( final GL3 gl )
-	{
-		final ShapeUpdate< V > shapeUpdate = updater.shapeUpdate;
-		gl.glBindBuffer( GL_ARRAY_BUFFER, shapeVBO );
-		gl.glBufferSubData(
-				GL_ARRAY_BUFFER,
-				9 * shapeUpdate.index * Float.BYTES,
-				9 * Float.BYTES,
-				shapeUpdate.buffer );
-		doUpdateShape = false;
-	}
+		// Do the instances need to be sorted again?
+		final EllipsoidMode mode = options.getEllipsoidMode();
+		final boolean impostor = mode == EllipsoidMode.IMPOSTOR;
+		final boolean lod = !impostor && options.isLevelOfDetail();
+		final Part mesh = impostor ? InstanceMeshes.BOX : InstanceMeshes.SPHERE;
+		if ( gpu != sortedGpu
+				|| cull != sortedCull
+				|| lod != sortedLod
+				|| ( !lod && mesh != sortedMesh )
+				|| ( lod && ( !viewMatrixUpdater.pvm.equals( sortedPvm )
+						|| data.getScreenHeight() != sortedScreenHeight
+						|| options.getTriangleBudget() != sortedTriangleBudget ) ) )
+		{
+			idsDirty = true;
+			sortedGpu = gpu;
+			sortedCull = cull;
+			sortedLod = lod;
+			sortedMesh = mesh;
+			sortedPvm.set( viewMatrixUpdater.pvm );
+			sortedScreenHeight = data.getScreenHeight();
+			sortedTriangleBudget = options.getTriangleBudget();
+		}
 
-	private void transferColorBuffer( final GL3 gl )
-	{
-		final FloatBuffer colorBuffer = updater.regenColors();
-		gl.glBindBuffer( GL_ARRAY_BUFFER, colorVBO );
-		gl.glBufferSubData(
-				GL_ARRAY_BUFFER,
-				0,
-				colorBuffer.capacity() * Float.BYTES,
-				colorBuffer );
-		doRegenColor = false;
-	}
+		// Upload what changed since the last render, and sort.
+		uploader.gl = gl;
+		numInstances = updater.transferUpdates( uploader );
 
-	private void init( final GL3 gl )
-	{
-		if ( vao != 0 )
+		// Search the visible spots again in the background if the view left
+		// the last frustum. The spots of the last search are drawn until the
+		// new search completes.
+		if ( cull && slot != null && !jobs.isClipping()
+				&& ( !updater.isClipped() || !frustum.covers( viewMatrixUpdater.pvm ) ) )
 		{
-			// We have been initialized in the past and this call
-			// is meant to regenerate the overlay. So we need to cleanup first.
-			cleanup( gl );
+			frustum = new ViewFrustum();
+			frustum.set( viewMatrixUpdater.pvm, options.getCullingTolerance() );
+			jobs.requestClip( frustum );
 		}
 
-		// Generate update for the full model.
-		final OverlayModelUpdate update = updater.regenAll();
-
-		// Generate and bind VAO
-		final int[] vaos = new int[ 1 ];
-		gl.glGenVertexArrays( 1, vaos, 0 );
-		vao = vaos[ 0 ];
-		gl.glBindVertexArray( vao );
+		// Do we need to regenerate the buffers or the colors, or to search
+		// the visible spots?
+		jobs.submit();
 
-		// Generate VBO names for all.
-		final int[] vbos = new int[ 5 ];
-		gl.glGenBuffers( 5, vbos, 0 );
+		// Nothing to draw, or the first buffers are not ready yet.
+		if ( numInstances == 0 || slot == null )
+			return;
 
-		/*
-		 * Bind VBO for vertex data attributes.
-		 */
-		verticesVBO = vbos[ 0 ];
-		gl.glBindBuffer( GL_ARRAY_BUFFER, verticesVBO );
-		gl.glBufferData( GL_ARRAY_BUFFER,
-				vertexBuffer.capacity() * Float.BYTES,
-				vertexBuffer,
-				GL_DYNAMIC_DRAW );
-		// Set up vertex attribute pointer -> layout = 0
-		gl.glVertexAttribPointer( 0, 3, GL_FLOAT, false, 3 * Float.BYTES, 0 );
-		gl.glEnableVertexAttribArray( 0 );
-
-		/*
-		 * Bind EBO for triangle indices.
-		 */
-		indicesEBO = vbos[ 1 ];
-		gl.glBindBuffer( GL_ELEMENT_ARRAY_BUFFER, indicesEBO );
-		gl.glBufferData( GL_ELEMENT_ARRAY_BUFFER,
-				indexBuffer.capacity() * Integer.BYTES,
-				indexBuffer,
-				GL_DYNAMIC_DRAW );
-
-		/*
-		 * Bind instance VBO for model matrices.
-		 */
-		shapeVBO = vbos[ 2 ];
-		gl.glBindBuffer( GL.GL_ARRAY_BUFFER, shapeVBO );
-		gl.glBufferData( GL.GL_ARRAY_BUFFER,
-				update.shapeBuffer.capacity() * Float.BYTES,
-				update.shapeBuffer,
-				GL.GL_DYNAMIC_DRAW );
-		// Set up instance attribute pointers -> layout = 1 to 3
-		final int vec3Size = 3 * Float.BYTES;
-		for ( int i = 0; i < 3; i++ )
+		// Cull and sort on the GPU.
+		if ( gpu )
 		{
-			gl.glEnableVertexAttribArray( 1 + i );
-			gl.glVertexAttribPointer( 1 + i,
-					3,
-					GL_FLOAT,
-					false,
-					9 * Float.BYTES,
-					i * vec3Size );
-			gl.glVertexAttribDivisor( 1 + i, 1 );
+			if ( gpuCulling == null || gpuCulling.layout() != arena.layout() )
+			{
+				if ( gpuCulling != null )
+					gpuCulling.dispose( gl );
+				gpuCulling = new GpuCulling( arena.layout(), programs.cullingProgram( gl, arena.layout() ) );
+			}
+			gpuCulling.cull( gl, arena, slot, numInstances, viewMatrixUpdater.pvm, data.getScreenHeight(), lod, mesh );
 		}
 
-		/*
-		 * Bind instance VBO for translation vectors.
-		 */
-		translationVBO = vbos[ 3 ];
-		gl.glBindBuffer( GL_ARRAY_BUFFER, translationVBO );
-		gl.glBufferData( GL_ARRAY_BUFFER,
-				update.translationBuffer.capacity() * Float.BYTES,
-				update.translationBuffer,
-				GL_DYNAMIC_DRAW );
-		// Set up instance attribute pointer for translation vectors -> layout =
-		// 4
-		gl.glEnableVertexAttribArray( 4 );
-		gl.glVertexAttribPointer( 4,
-				3,
-				GL_FLOAT,
-				false,
-				3 * Float.BYTES,
-				0 );
-		gl.glVertexAttribDivisor( 4, 1 );
-
-		/*
-		 * Bind instance VBO for object colors.
-		 */
-		colorVBO = vbos[ 4 ];
-		gl.glBindBuffer( GL_ARRAY_BUFFER, colorVBO );
-		gl.glBufferData( GL_ARRAY_BUFFER,
-				update.colorBuffer.capacity() * Float.BYTES,
-				update.colorBuffer,
-				GL_DYNAMIC_DRAW );
-		// Set up instance attribute pointer for color vectors -> layout = 5
-		gl.glEnableVertexAttribArray( 5 );
-		gl.glVertexAttribPointer( 5,
-				3,
-				GL_FLOAT,
-				false,
-				3 * Float.BYTES,
-				0 );
-		gl.glVertexAttribDivisor( 5, 1 );
-
-		// Unbind VAO
-		gl.glBindVertexArray( 0 );
-
-		// Store how many instances we have.
-		this.numInstances = update.numInstances;
-
-		// Reset flags.
-		doRegenAll = false;
-		doRegenColor = false;
-		doUpdateShape = false;
-		doUpdatePosition = false;
+		// Pass the view matrices and the instance buffers to the shaders.
+		final DefaultShader prog = programs.shader( mode, arena.layout() );
+		viewMatrixUpdater.setUniforms( gl, prog, impostor );
+		prog.getUniform1i( "highlightInstance" ).set( updater.instanceIndex( highlightedId ) );
+		prog.getUniform1i( "focusInstance" ).set( updater.instanceIndex( focusedId ) );
+		arena.bindTextures( gl, prog, slot );
+		prog.setUniforms( JoglGpuContext.get( gl ) );
+
+		// Draw the instances of each bucket with its mesh.
+		if ( gpu )
+			gpuCulling.draw( gl, arena );
+		else
+			for ( int b = 0; b < buckets.numBuckets(); b++ )
+				arena.draw( gl, slot, buckets.first( b ), buckets.count( b ), buckets.mesh( b ) );
+		arena.unbindTextures( gl );
 	}
 
-	private void cleanup( final GL3 gl )
+	/**
+	 * Searches the visible spots in the specified frustum. Runs on the
+	 * executor, see {@link RegenJobs}.
+	 */
+	private void clip( final ViewFrustum clipFrustum )
 	{
-		if ( vao == 0 )
-			return;
-
-		gl.glDeleteVertexArrays( 1, new int[] { vao }, 0 );
-		gl.glDeleteBuffers( 5, new int[] {
-				verticesVBO,
-				indicesEBO,
-				shapeVBO,
-				translationVBO,
-				colorVBO }, 0 );
+		updater.clip( clipFrustum );
+		clipDone = true;
+	}
 
-		// Signal we have been cleaned.
-		vao = 0;
+	/**
+	 * Frees the slot of this frame in the arena, and the GL objects of its
+	 * culling stage.
+	 */
+	private void cleanup( final GL3 gl )
+	{
+		if ( slot != null )
+			arena.free( gl, slot );
+		slot = null;
+		pool.release( ids );
+		ids = null;
+		idsDirty = true;
+		if ( gpuCulling != null )
+			gpuCulling.dispose( gl );
+		gpuBytes = 0;
+		missingGpuBytes = 0;
 	}
 
-	/*
-	 * Set up icosahedron mesh data.
+	/**
+	 * Uploads the instance data changed since the last render.
 	 */
+	private class Uploader implements UpdateTarget
+	{
+
+		private GL3 gl;
+
+		/**
+		 * Number of instances at the last sort.
+		 */
+		private int numSorted = -1;
 
-	private static final int nSubdivisions = 2;
+		@Override
+		public void reallocate( final OverlayModelUpdate data )
+		{
+			if ( slot != null )
+				arena.free( gl, slot );
+			slot = arena.allocate( gl, data.capacity() );
+			if ( slot == null )
+			{
+				// No room: retried at the next render, after eviction.
+				gpuBytes = 0;
+				missingGpuBytes = ( long ) arena.bytesPerInstance() * data.capacity();
+				return;
+			}
+			arena.uploadAll( gl, slot, data, 0, data.numInstances );
+			gpuBytes = ( long ) arena.bytesPerInstance() * slot.capacity();
+			missingGpuBytes = 0;
+			pool.release( ids );
+			ids = pool.ints( slot.capacity() );
+			idsDirty = true;
+		}
 
-	private static final FloatBuffer vertexBuffer;
+		@Override
+		public void uploadShapes( final OverlayModelUpdate data, final int start, final int end )
+		{
+			if ( slot == null )
+				return;
+			arena.uploadShapes( gl, slot, data, start, end );
+			idsDirty |= sortedLod || sortedCull;
+		}
 
-	private static final IntBuffer indexBuffer;
+		@Override
+		public void uploadPositions( final OverlayModelUpdate data, final int start, final int end )
+		{
+			if ( slot == null )
+				return;
+			arena.uploadPositions( gl, slot, data, start, end );
+			idsDirty |= sortedLod || sortedCull;
+		}
 
-	private static final int vertexCount;
+		@Override
+		public void uploadColors( final OverlayModelUpdate data, final int start, final int end )
+		{
+			if ( slot == null )
+				return;
+			arena.uploadColors( gl, slot, data, start, end );
+		}
 
-	static
-	{
-		final Mesh core = Icosahedron.sphere( new RealPoint( 3 ), 1., nSubdivisions );
-		final BufferMesh mesh = new BufferMesh( core.vertices().size(), core.triangles().size() );
-		Meshes.copy( core, mesh );
-		vertexBuffer = mesh.vertices().verts();
-		vertexBuffer.rewind();
-		indexBuffer = mesh.triangles().indices();
-		indexBuffer.rewind();
-		vertexCount = indexBuffer.capacity();
+		@Override
+		public void transferred( final OverlayModelUpdate data, final BitSet visible )
+		{
+			if ( slot == null || sortedGpu || !idsDirty && numSorted == data.numInstances )
+				return;
+
+			final int n = data.numInstances;
+			final BitSet v = sortedCull ? visible : null;
+			if ( sortedLod )
+				buckets.sort( data, n, v, sortedPvm, sortedScreenHeight, sortedTriangleBudget, ids );
+			else
+				buckets.all( n, v, sortedMesh, ids );
+			arena.uploadIds( gl, slot, ids, 0, buckets.size() );
+			numSorted = n;
+			idsDirty = false;
+		}
 	}
 
 	/*
@@ -386,21 +556,16 @@ public class FrameRenderer< V extends OverlayVertex< V, ? > >
 
 		private final Matrix3f itvm33 = new Matrix3f();
 
+		private final Matrix4f ivm = new Matrix4f();
+
+		private final Vector3f camPos = new Vector3f();
+
 		/**
-		 * Update the specified shaders with view matrices properly calculated
-		 * from the specified render data. The shaders must declare and use the
-		 * following uniform vec4 and vec3 matrices:
-		 * <ul>
-		 * <li>uniform mat4 pvm;
-		 * <li>uniform mat4 vm;
-		 * <li>uniform mat3 itvm;
-		 * </ul>
+		 * Computes the view matrices from the specified render data.
 		 * 
-		 * @param gl
 		 * @param data
-		 * @param prog
 		 */
-		private void update( final GL3 gl, final RenderData data, final DefaultShader prog )
+		private void compute( final RenderData data )
 		{
 			// Compute current view matrices.
 			pvm.set( data.getPv() );
@@ -409,14 +574,44 @@ public class FrameRenderer< V extends OverlayVertex< V, ? > >
 			MatrixMath.screen( data.getDCam(), data.getScreenWidth(), data.getScreenHeight(), vm ).mul( view );
 			vm.invert( itvm ).transpose();
 			itvm.get3x3( itvm33 );
+		}
 
+		/**
+		 * Uses the specified shaders and passes them the view matrices. The
+		 * shaders must declare and use the following uniform vec4 and vec3
+		 * matrices:
+		 * <ul>
+		 * <li>uniform mat4 pvm;
+		 * <li>uniform mat4 vm;
+		 * <li>uniform mat3 itvm;
+		 * </ul>
+		 * The impostor shaders also declare the position of the camera in
+		 * world coordinates:
+		 * <ul>
+		 * <li>uniform vec3 camPos;
+		 * </ul>
+		 * The uniforms must then be set with
+		 * {@link DefaultShader#setUniforms(bvv.core.backend.GpuContext)}.
+		 * 
+		 * @param gl
+		 * @param prog
+		 * @param impostor
+		 *            whether to also set the camera position.
+		 */
+		private void setUniforms( final GL3 gl, final DefaultShader prog, final boolean impostor )
+		{
 			// Pass transform matrices.
 			final JoglGpuContext context = JoglGpuContext.get( gl );
 			prog.use( context );
 			prog.getUniformMatrix4f( "pvm" ).set( pvm );
 			prog.getUniformMatrix4f( "vm" ).set( vm );
 			prog.getUniformMatrix3f( "itvm" ).set( itvm33 );
-			prog.setUniforms( context );
+			if ( impostor )
+			{
+				// The camera is at the origin of the view space.
+				vm.invert( ivm ).getTranslation( camPos );
+				prog.getUniform3f( "camPos" ).set( camPos.x, camPos.y, camPos.z );
+			}
 		}
 	}
 }
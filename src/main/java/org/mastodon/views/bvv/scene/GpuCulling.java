@@ -0,0 +1,242 @@
+package org.mastodon.views.bvv.scene;
+
+import static com.jogamp.opengl.GL.GL_DYNAMIC_DRAW;
+import static com.jogamp.opengl.GL4.GL_COMMAND_BARRIER_BIT;
+import static com.jogamp.opengl.GL4.GL_SHADER_STORAGE_BARRIER_BIT;
+import static com.jogamp.opengl.GL4.GL_SHADER_STORAGE_BUFFER;
+import static com.jogamp.opengl.GL4.GL_VERTEX_ATTRIB_ARRAY_BARRIER_BIT;
+
+import java.nio.IntBuffer;
+
+import org.joml.Matrix4fc;
+import org.joml.Vector4fc;
+import org.mastodon.views.bvv.scene.InstanceArena.Slot;
+import org.mastodon.views.bvv.scene.InstanceMeshes.Part;
+
+import com.jogamp.opengl.GL3;
+import com.jogamp.opengl.GL4;
+import com.jogamp.opengl.util.GLBuffers;
+
+/**
+ * Culls the instances of a slot against the view frustum and sorts them by
+ * level of detail on the GPU, with a compute shader.
+ * <p>
+ * The compute shader tests the bounding sphere of each instance against the
+ * frustum, and puts the visible ones in the same buckets as
+ * {@link LodBuckets}, without the triangle budget. It writes their indices,
+ * grouped by bucket, in the slot of the instance index buffer of the arena,
+ * and fills one <code>DrawElementsIndirectCommand</code> per bucket. The
+ * buckets are then drawn with <code>glDrawElementsIndirect</code>, without
+ * reading anything back to the CPU.
+ * <p>
+ * The compute program is shared, see {@link ShaderPrograms}. Requires OpenGL
+ * 4.3. Must only be used on the GL thread.
+ */
+class GpuCulling
+{
+
+	private static final int N_BUCKETS = LodBuckets.N_BUCKETS;
+
+	private static final float[] LOD_THRESHOLDS = LodBuckets.thresholds();
+
+	/**
+	 * Size of a <code>DrawElementsIndirectCommand</code>: 5 ints.
+	 */
+	static final int COMMAND_BYTES = 5 * Integer.BYTES;
+
+	private static final int LOCAL_SIZE = 64;
+
+	private final InstanceLayout layout;
+
+	/**
+	 * The draw commands of the buckets, then the write cursor of each
+	 * bucket.
+	 */
+	private final IntBuffer commands = GLBuffers.newDirectIntBuffer( 6 * N_BUCKETS );
+
+	private final Part[] meshes = new Part[ N_BUCKETS ];
+
+	private final ViewFrustum frustum = new ViewFrustum();
+
+	private final int program;
+
+	private int commandBuffer;
+
+	private int uPass;
+
+	private int uNumInstances;
+
+	private int uPlanes;
+
+	private int uLod;
+
+	private int uWRow;
+
+	private int uLodScale;
+
+	private int uLodThresholds;
+
+	/**
+	 * Creates a culling stage for the instances of the specified layout. The
+	 * buffer of draw commands is created on first use.
+	 *
+	 * @param layout
+	 *            the layout of the instance buffers.
+	 * @param program
+	 *            the culling compute program for this layout, see
+	 *            {@link ShaderPrograms#cullingProgram(GL3, InstanceLayout)}.
+	 */
+	GpuCulling( final InstanceLayout layout, final int program )
+	{
+		this.layout = layout;
+		this.program = program;
+	}
+
+	/**
+	 * Returns whether the specified context supports compute shaders and
+	 * indirect draws.
+	 */
+	static boolean isSupported( final GL3 gl )
+	{
+		return gl.isGL4()
+				&& gl.isFunctionAvailable( "glDispatchCompute" )
+				&& gl.isFunctionAvailable( "glDrawElementsIndirect" )
+				&& gl.isFunctionAvailable( "glDrawElementsInstancedBaseInstance" );
+	}
+
+	InstanceLayout layout()
+	{
+		return layout;
+	}
+
+	/**
+	 * Returns the name of the buffer of draw commands, or 0 if it was not
+	 * created yet.
+	 */
+	int commandBuffer()
+	{
+		return commandBuffer;
+	}
+
+	/**
+	 * Culls and sorts the instances of the specified slot. The result is
+	 * drawn by {@link #draw(GL3, InstanceArena)}.
+	 *
+	 * @param gl
+	 *            the GL context.
+	 * @param arena
+	 *            the arena of the slot.
+	 * @param slot
+	 *            the slot.
+	 * @param n
+	 *            the number of instances in the slot.
+	 * @param pvm
+	 *            the projection-view matrix.
+	 * @param screenHeight
+	 *            the height of the screen, in pixels.
+	 * @param lod
+	 *            whether to sort the instances by level of detail. Otherwise
+	 *            the visible instances are all drawn with the specified mesh.
+	 * @param mesh
+	 *            the mesh of all the instances, if <code>lod</code> is
+	 *            <code>false</code>.
+	 */
+	void cull( final GL3 gl, final InstanceArena arena, final Slot slot, final int n, final Matrix4fc pvm, final double screenHeight, final boolean lod, final Part mesh )
+	{
+		final GL4 gl4 = gl.getGL4();
+		if ( commandBuffer == 0 )
+			init( gl4 );
+
+		// Reset the commands.
+		for ( int b = 0; b < N_BUCKETS; b++ )
+		{
+			meshes[ b ] = lod ? LodBuckets.defaultMesh( b ) : mesh;
+			commands.put( 5 * b, meshes[ b ].indexCount );
+			commands.put( 5 * b + 1, 0 );
+			commands.put( 5 * b + 2, meshes[ b ].firstIndex );
+			commands.put( 5 * b + 3, 0 );
+			commands.put( 5 * b + 4, 0 );
+			commands.put( 5 * N_BUCKETS + b, 0 );
+		}
+		gl4.glBindBuffer( GL_SHADER_STORAGE_BUFFER, commandBuffer );
+		gl4.glBufferSubData( GL_SHADER_STORAGE_BUFFER, 0, ( long ) commands.capacity() * Integer.BYTES, commands );
+		gl4.glBindBuffer( GL_SHADER_STORAGE_BUFFER, 0 );
+
+		// Uniforms.
+		gl4.glUseProgram( program );
+		arena.bindTextures( gl, slot, ( name, value ) -> gl4.glUniform1i( gl4.glGetUniformLocation( program, name ), value ) );
+		gl4.glUniform1i( uNumInstances, n );
+		frustum.set( pvm, 0. );
+		for ( int p = 0; p < 6; p++ )
+		{
+			final Vector4fc plane = frustum.plane( p );
+			gl4.glUniform4f( uPlanes + p, plane.x(), plane.y(), plane.z(), plane.w() );
+		}
+		gl4.glUniform1i( uLod, lod ? 1 : 0 );
+		gl4.glUniform4f( uWRow, pvm.m03(), pvm.m13(), pvm.m23(), pvm.m33() );
+		gl4.glUniform1f( uLodScale, ( float ) ( 0.5 * screenHeight * Math.sqrt(
+				pvm.m01() * pvm.m01() + pvm.m11() * pvm.m11() + pvm.m21() * pvm.m21() ) ) );
+		gl4.glUniform1fv( uLodThresholds, LOD_THRESHOLDS.length, LOD_THRESHOLDS, 0 );
+		gl4.glBindBufferBase( GL_SHADER_STORAGE_BUFFER, 0, commandBuffer );
+		gl4.glBindBufferBase( GL_SHADER_STORAGE_BUFFER, 1, arena.indexBuffer() );
+
+		// Count, then set the bucket ranges, then write the indices.
+		final int groups = ( n + LOCAL_SIZE - 1 ) / LOCAL_SIZE;
+		gl4.glUniform1i( uPass, 0 );
+		gl4.glDispatchCompute( groups, 1, 1 );
+		gl4.glMemoryBarrier( GL_SHADER_STORAGE_BARRIER_BIT );
+		gl4.glUniform1i( uPass, 1 );
+		gl4.glDispatchCompute( 1, 1, 1 );
+		gl4.glMemoryBarrier( GL_SHADER_STORAGE_BARRIER_BIT );
+		gl4.glUniform1i( uPass, 2 );
+		gl4.glDispatchCompute( groups, 1, 1 );
+		gl4.glMemoryBarrier( GL_COMMAND_BARRIER_BIT | GL_VERTEX_ATTRIB_ARRAY_BARRIER_BIT );
+
+		gl4.glBindBufferBase( GL_SHADER_STORAGE_BUFFER, 0, 0 );
+		gl4.glBindBufferBase( GL_SHADER_STORAGE_BUFFER, 1, 0 );
+		arena.unbindTextures( gl );
+		gl4.glUseProgram( 0 );
+	}
+
+	/**
+	 * Draws the instances of the last call to
+	 * {@link #cull(GL3, InstanceArena, Slot, int, Matrix4fc, double, boolean, Part)}.
+	 * The shader program must be in use, and the textures of the arena
+	 * bound.
+	 */
+	void draw( final GL3 gl, final InstanceArena arena )
+	{
+		for ( int b = 0; b < N_BUCKETS; b++ )
+			arena.drawIndirect( gl, commandBuffer, ( long ) b * COMMAND_BYTES, meshes[ b ] );
+	}
+
+	/**
+	 * Deletes the buffer of draw commands. It is created again on next use.
+	 * The shared program is not deleted.
+	 */
+	void dispose( final GL3 gl )
+	{
+		if ( commandBuffer == 0 )
+			return;
+		gl.glDeleteBuffers( 1, new int[] { commandBuffer }, 0 );
+		commandBuffer = 0;
+	}
+
+	private void init( final GL4 gl )
+	{
+		uPass = gl.glGetUniformLocation( program, "pass" );
+		uNumInstances = gl.glGetUniformLocation( program, "numInstances" );
+		uPlanes = gl.glGetUniformLocation( program, "planes" );
+		uLod = gl.glGetUniformLocation( program, "lod" );
+		uWRow = gl.glGetUniformLocation( program, "wRow" );
+		uLodScale = gl.glGetUniformLocation( program, "lodScale" );
+		uLodThresholds = gl.glGetUniformLocation( program, "lodThresholds" );
+
+		final int[] buffers = new int[ 1 ];
+		gl.glGenBuffers( 1, buffers, 0 );
+		commandBuffer = buffers[ 0 ];
+		gl.glBindBuffer( GL_SHADER_STORAGE_BUFFER, commandBuffer );
+		gl.glBufferData( GL_SHADER_STORAGE_BUFFER, ( long ) commands.capacity() * Integer.BYTES, null, GL_DYNAMIC_DRAW );
+		gl.glBindBuffer( GL_SHADER_STORAGE_BUFFER, 0 );
+	}
+}
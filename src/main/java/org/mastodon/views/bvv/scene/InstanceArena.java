@@ -0,0 +1,713 @@
+package org.mastodon.views.bvv.scene;
+
+import static com.jogamp.opengl.GL.GL_ARRAY_BUFFER;
+import static com.jogamp.opengl.GL.GL_DYNAMIC_DRAW;
+import static com.jogamp.opengl.GL.GL_ELEMENT_ARRAY_BUFFER;
+import static com.jogamp.opengl.GL.GL_FLOAT;
+import static com.jogamp.opengl.GL.GL_TEXTURE0;
+import static com.jogamp.opengl.GL.GL_UNSIGNED_INT;
+import static com.jogamp.opengl.GL3.GL_ACTIVE_TEXTURE;
+import static com.jogamp.opengl.GL3.GL_COPY_READ_BUFFER;
+import static com.jogamp.opengl.GL3.GL_COPY_WRITE_BUFFER;
+import static com.jogamp.opengl.GL3.GL_INT;
+import static com.jogamp.opengl.GL3.GL_MAX_COMBINED_TEXTURE_IMAGE_UNITS;
+import static com.jogamp.opengl.GL3.GL_MAX_TEXTURE_BUFFER_SIZE;
+import static com.jogamp.opengl.GL3.GL_RGBA8;
+import static com.jogamp.opengl.GL3.GL_TEXTURE_BUFFER;
+import static com.jogamp.opengl.GL4.GL_DRAW_INDIRECT_BUFFER;
+
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.ObjIntConsumer;
+
+import org.mastodon.views.bvv.scene.InstanceMeshes.Part;
+import org.mastodon.views.bvv.scene.OverlayModelUpdateGenerator.OverlayModelUpdate;
+
+import com.jogamp.opengl.GL3;
+import com.jogamp.opengl.GLException;
+
+import bvv.core.shadergen.DefaultShader;
+
+/**
+ * Instance buffers shared by all the frames of an {@link OverlaySceneRenderer},
+ * with a single VAO.
+ * <p>
+ * Each frame owns a {@link Slot}: a contiguous range of instances in the
+ * buffers. The shaders read the instances through buffer textures. The only
+ * instanced attribute is an index buffer, with the same slots: a frame writes
+ * in its slot the indices of its instances in the order they are drawn, so
+ * that the instances drawn with the same mesh are contiguous. A range of this
+ * index buffer is drawn with its offset as base instance when the context
+ * supports <code>glDrawElementsInstancedBaseInstance</code> (OpenGL 4.2 or
+ * ARB_base_instance). Otherwise, the attribute pointer is moved to the range
+ * before drawing.
+ * <p>
+ * Slots are allocated first-fit in the free ranges. When there is no room,
+ * the live slots are packed at the beginning of new, larger buffers, with
+ * <code>glCopyBufferSubData</code>. The same compaction shrinks the buffers
+ * when most of their capacity is free. The capacity never exceeds what the
+ * buffer textures can address, given by
+ * <code>GL_MAX_TEXTURE_BUFFER_SIZE</code>: slots that do not fit are refused.
+ * <p>
+ * Instance data is written with a {@link StagingRing} when persistent mapping
+ * is requested and supported, and with <code>glBufferSubData</code>
+ * otherwise.
+ * <p>
+ * Must only be used on the GL thread.
+ */
+class InstanceArena
+{
+
+	/**
+	 * A range of instances in the arena, owned by a frame.
+	 */
+	static class Slot
+	{
+
+		private int offset;
+
+		private final int capacity;
+
+		private boolean valid = true;
+
+		private Slot( final int offset, final int capacity )
+		{
+			this.offset = offset;
+			this.capacity = capacity;
+		}
+
+		/**
+		 * Returns the index of the first instance of this slot in the
+		 * buffers. It changes when the arena is compacted.
+		 */
+		int offset()
+		{
+			return offset;
+		}
+
+		/**
+		 * Returns the number of instances in this slot.
+		 */
+		int capacity()
+		{
+			return capacity;
+		}
+
+		/**
+		 * Returns <code>false</code> if this slot was freed, or if its arena
+		 * was disposed.
+		 */
+		boolean isValid()
+		{
+			return valid;
+		}
+	}
+
+	private static final int MIN_CAPACITY = 1024;
+
+	/**
+	 * Number of texture units left to the volume renderer, which binds its
+	 * textures from unit 0.
+	 */
+	private static final int RESERVED_TEXTURE_UNITS = 40;
+
+	private final InstanceLayout layout;
+
+	private final DirectBufferPool pool;
+
+	private final boolean persistentMapping;
+
+	private BufferUploader uploader;
+
+	/**
+	 * The buffers of the layout, then the color buffer, then the index
+	 * buffer.
+	 */
+	private int[] vbos;
+
+	/**
+	 * Index of the color buffer in {@link #vbos}.
+	 */
+	private final int colorBuffer;
+
+	/**
+	 * Index of the index buffer in {@link #vbos}.
+	 */
+	private final int idBuffer;
+
+	/**
+	 * The buffer textures on the buffers of the layout and on the color
+	 * buffer.
+	 */
+	private int[] textures;
+
+	private int vao;
+
+	/**
+	 * The vertex and index buffers of the meshes, shared by the context.
+	 */
+	private MeshBuffers meshBuffers;
+
+	private int capacity;
+
+	/**
+	 * The largest capacity the buffer textures can address.
+	 */
+	private int maxCapacity = Integer.MAX_VALUE;
+
+	/**
+	 * Sum of the capacity of the live slots.
+	 */
+	private int used;
+
+	/**
+	 * Free ranges: offset to length.
+	 */
+	private final TreeMap< Integer, Integer > free = new TreeMap<>();
+
+	/**
+	 * Live slots.
+	 */
+	private final List< Slot > slots = new ArrayList<>();
+
+	private boolean baseInstance;
+
+	/**
+	 * The index the instance attribute pointer currently starts at, or -1 if
+	 * it must be set.
+	 */
+	private int pointersFirstInstance = -1;
+
+	/**
+	 * The active texture unit before the textures were bound.
+	 */
+	private int previousActiveTexture = GL_TEXTURE0;
+
+	/**
+	 * The first texture unit of the instance buffer textures: they use the
+	 * last units of the context, as far as possible from the volume renderer.
+	 */
+	private int firstTextureUnit;
+
+	/**
+	 * Creates an arena. Its GL objects are created by {@link #init(GL3)}.
+	 *
+	 * @param layout
+	 *            the layout of the instance buffers.
+	 * @param pool
+	 *            the pool of temporary buffers.
+	 * @param persistentMapping
+	 *            whether to upload through a persistently mapped staging
+	 *            buffer, if the context supports it.
+	 */
+	InstanceArena( final InstanceLayout layout, final DirectBufferPool pool, final boolean persistentMapping )
+	{
+		this.layout = layout;
+		this.pool = pool;
+		this.persistentMapping = persistentMapping;
+		this.colorBuffer = layout.numBuffers();
+		this.idBuffer = colorBuffer + 1;
+	}
+
+	/**
+	 * Returns whether this arena was created for the specified options.
+	 */
+	boolean matches( final OverlayRenderOptions options )
+	{
+		return options.isCompactInstanceLayout() == ( layout instanceof CompactInstanceLayout )
+				&& options.isPersistentMapping() == persistentMapping;
+	}
+
+	/**
+	 * Returns whether instance data is uploaded through a persistently mapped
+	 * staging buffer.
+	 */
+	boolean isPersistentlyMapped()
+	{
+		return uploader instanceof StagingRing;
+	}
+
+	/**
+	 * Returns the layout of the instance buffers of this arena.
+	 */
+	InstanceLayout layout()
+	{
+		return layout;
+	}
+
+	/**
+	 * Returns the number of bytes used per instance in the buffers, colors
+	 * and indices included.
+	 */
+	int bytesPerInstance()
+	{
+		return layout.bytesPerInstance() + 2 * Integer.BYTES;
+	}
+
+	/**
+	 * Creates the VAO, the mesh buffers and the instance buffers.
+	 *
+	 * @throws GLException
+	 *             if the context does not have enough texture units.
+	 */
+	void init( final GL3 gl )
+	{
+		baseInstance = gl.isGL4() && gl.isFunctionAvailable( "glDrawElementsInstancedBaseInstance" );
+		firstTextureUnit = firstTextureUnit( gl, colorBuffer + 1 );
+
+		// All the texture formats have 4-byte texels.
+		final int[] maxTexels = new int[ 1 ];
+		gl.glGetIntegerv( GL_MAX_TEXTURE_BUFFER_SIZE, maxTexels, 0 );
+		int texelsPerInstance = 1;
+		for ( int b = 0; b < colorBuffer; b++ )
+			texelsPerInstance = Math.max( texelsPerInstance, stride( b ) / 4 );
+		maxCapacity = Math.max( MIN_CAPACITY, maxTexels[ 0 ] / texelsPerInstance );
+
+		uploader = persistentMapping && StagingRing.isSupported( gl )
+				? StagingRing.create( gl, StagingRing.DEFAULT_SEGMENT_SIZE, pool )
+				: null;
+		if ( uploader == null )
+			uploader = new SubDataUploader( pool );
+
+		/*
+		 * The mesh buffers are shared by all the arenas of the context. They
+		 * are acquired before binding the VAO, because they may be uploaded
+		 * by this call.
+		 */
+		meshBuffers = MeshBuffers.acquire( gl );
+
+		// Generate and bind VAO
+		final int[] vaos = new int[ 1 ];
+		gl.glGenVertexArrays( 1, vaos, 0 );
+		vao = vaos[ 0 ];
+		gl.glBindVertexArray( vao );
+
+		// Vertex positions -> layout = 0.
+		gl.glBindBuffer( GL_ARRAY_BUFFER, meshBuffers.vertexBuffer() );
+		gl.glVertexAttribPointer( 0, 3, GL_FLOAT, false, 3 * Float.BYTES, 0 );
+		gl.glEnableVertexAttribArray( 0 );
+		gl.glBindBuffer( GL_ELEMENT_ARRAY_BUFFER, meshBuffers.indexBuffer() );
+
+		// Unbind VAO
+		gl.glBindVertexArray( 0 );
+
+		// Instance buffers, and textures to read them.
+		vbos = createInstanceBuffers( gl, MIN_CAPACITY );
+		capacity = MIN_CAPACITY;
+		free.put( 0, capacity );
+		textures = new int[ colorBuffer + 1 ];
+		gl.glGenTextures( textures.length, textures, 0 );
+		attachTextures( gl );
+	}
+
+	/**
+	 * Returns the first of the last <code>n</code> texture units of the
+	 * context.
+	 *
+	 * @throws GLException
+	 *             if they overlap the units left to the volume renderer.
+	 */
+	private static int firstTextureUnit( final GL3 gl, final int n )
+	{
+		final int[] maxUnits = new int[ 1 ];
+		gl.glGetIntegerv( GL_MAX_COMBINED_TEXTURE_IMAGE_UNITS, maxUnits, 0 );
+		final int first = maxUnits[ 0 ] - n;
+		if ( first < RESERVED_TEXTURE_UNITS )
+			throw new GLException( "The instance buffers need " + n + " texture units after the first "
+					+ RESERVED_TEXTURE_UNITS + ", but the context only has " + maxUnits[ 0 ] + "." );
+		return first;
+	}
+
+	/**
+	 * Deletes all the GL objects of this arena, and invalidates its slots.
+	 */
+	void dispose( final GL3 gl )
+	{
+		if ( vao == 0 )
+			return;
+
+		gl.glDeleteVertexArrays( 1, new int[] { vao }, 0 );
+		meshBuffers.release( gl );
+		meshBuffers = null;
+		gl.glDeleteBuffers( vbos.length, vbos, 0 );
+		gl.glDeleteTextures( textures.length, textures, 0 );
+		uploader.dispose( gl );
+		vao = 0;
+		for ( final Slot slot : slots )
+			slot.valid = false;
+		slots.clear();
+		free.clear();
+		used = 0;
+	}
+
+	/**
+	 * Returns the number of bytes of the buffers at the largest capacity the
+	 * buffer textures can address.
+	 */
+	long maxBytes()
+	{
+		return ( long ) maxCapacity * bytesPerInstance();
+	}
+
+	/**
+	 * Allocates a slot of the specified number of instances.
+	 *
+	 * @return the slot, or <code>null</code> if the live slots and the new one
+	 *         do not fit in the largest capacity the buffer textures can
+	 *         address.
+	 */
+	Slot allocate( final GL3 gl, final int n )
+	{
+		Slot slot = allocateFree( n );
+		if ( slot == null )
+		{
+			if ( ( long ) used + n > maxCapacity )
+				return null;
+
+			// Pack the live slots, and grow if that is not enough.
+			relocate( gl, ( used + n <= capacity )
+					? capacity
+					: ( int ) Math.min( maxCapacity, Math.max( 2L * capacity, used + n ) ) );
+			slot = allocateFree( n );
+		}
+		slots.add( slot );
+		used += n;
+		return slot;
+	}
+
+	/**
+	 * Frees the specified slot. The buffers are compacted if most of their
+	 * capacity is free.
+	 */
+	void free( final GL3 gl, final Slot slot )
+	{
+		if ( !slot.valid )
+			return;
+
+		slot.valid = false;
+		slots.remove( slot );
+		used -= slot.capacity;
+
+		// Merge with the adjacent free ranges.
+		int offset = slot.offset;
+		int length = slot.capacity;
+		final Map.Entry< Integer, Integer > before = free.floorEntry( offset );
+		if ( before != null && before.getKey() + before.getValue() == offset )
+		{
+			free.remove( before.getKey() );
+			offset = before.getKey();
+			length += before.getValue();
+		}
+		final Integer after = free.get( offset + length );
+		if ( after != null )
+		{
+			free.remove( offset + length );
+			length += after;
+		}
+		free.put( offset, length );
+
+		if ( capacity > MIN_CAPACITY && used < capacity / 4 )
+			relocate( gl, Math.max( MIN_CAPACITY, 2 * used ) );
+	}
+
+	void uploadShapes( final GL3 gl, final Slot slot, final OverlayModelUpdate data, final int start, final int end )
+	{
+		layout.uploadShapes( gl, uploader, vbos, slot.offset, data, start, end );
+	}
+
+	void uploadPositions( final GL3 gl, final Slot slot, final OverlayModelUpdate data, final int start, final int end )
+	{
+		layout.uploadPositions( gl, uploader, vbos, slot.offset, data, start, end );
+	}
+
+	void uploadColors( final GL3 gl, final Slot slot, final OverlayModelUpdate data, final int start, final int end )
+	{
+		final IntBuffer colors = data.colorBuffer.duplicate();
+		colors.limit( end );
+		colors.position( start );
+		uploader.upload( gl, vbos[ colorBuffer ], ( long ) ( slot.offset + start ) * Integer.BYTES, colors );
+	}
+
+	/**
+	 * Uploads the indices of the instances to draw, relative to the slot.
+	 *
+	 * @param gl
+	 *            the GL context.
+	 * @param slot
+	 *            the slot.
+	 * @param ids
+	 *            the indices, from 0 to the number of instances.
+	 * @param start
+	 *            the first position in the slot and in <code>ids</code>,
+	 *            inclusive.
+	 * @param end
+	 *            the last position in the slot and in <code>ids</code>,
+	 *            exclusive.
+	 */
+	void uploadIds( final GL3 gl, final Slot slot, final IntBuffer ids, final int start, final int end )
+	{
+		final IntBuffer range = ids.duplicate();
+		range.limit( end );
+		range.position( start );
+		uploader.upload( gl, vbos[ idBuffer ], ( long ) ( slot.offset + start ) * Integer.BYTES, range );
+	}
+
+	/**
+	 * Signals that all the uploads of the current frame were issued.
+	 */
+	void endFrame( final GL3 gl )
+	{
+		uploader.endFrame( gl );
+	}
+
+	/**
+	 * Uploads the shapes, translations and colors of a range of instances.
+	 */
+	void uploadAll( final GL3 gl, final Slot slot, final OverlayModelUpdate data, final int start, final int end )
+	{
+		layout.uploadAll( gl, uploader, vbos, slot.offset, data, start, end );
+		uploadColors( gl, slot, data, start, end );
+	}
+
+	/**
+	 * Binds the instance buffer textures, and sets the uniforms through which
+	 * the specified shader program reads the specified slot. The program must
+	 * be in use; its uniforms must be set afterwards. The textures must be
+	 * unbound with {@link #unbindTextures(GL3)} after drawing.
+	 */
+	void bindTextures( final GL3 gl, final DefaultShader prog, final Slot slot )
+	{
+		bindTextures( gl, slot, ( name, value ) -> prog.getUniform1i( name ).set( value ) );
+	}
+
+	/**
+	 * Binds the instance buffer textures, and passes the values of the int
+	 * uniforms through which a shader program reads the specified slot to
+	 * the specified consumer: the texture unit of each sampler, and the
+	 * <code>instanceOffset</code>. For the programs not made with the shader
+	 * generator.
+	 */
+	void bindTextures( final GL3 gl, final Slot slot, final ObjIntConsumer< String > uniforms )
+	{
+		final int[] active = new int[ 1 ];
+		gl.glGetIntegerv( GL_ACTIVE_TEXTURE, active, 0 );
+		previousActiveTexture = active[ 0 ];
+		for ( int b = 0; b < textures.length; b++ )
+		{
+			gl.glActiveTexture( GL_TEXTURE0 + firstTextureUnit + b );
+			gl.glBindTexture( GL_TEXTURE_BUFFER, textures[ b ] );
+			final String sampler = b < colorBuffer ? layout.samplerName( b ) : "colors";
+			uniforms.accept( sampler, firstTextureUnit + b );
+		}
+		gl.glActiveTexture( previousActiveTexture );
+		uniforms.accept( "instanceOffset", slot.offset );
+	}
+
+	/**
+	 * Unbinds the instance buffer textures.
+	 */
+	void unbindTextures( final GL3 gl )
+	{
+		for ( int b = 0; b < textures.length; b++ )
+		{
+			gl.glActiveTexture( GL_TEXTURE0 + firstTextureUnit + b );
+			gl.glBindTexture( GL_TEXTURE_BUFFER, 0 );
+		}
+		gl.glActiveTexture( previousActiveTexture );
+	}
+
+	/**
+	 * Draws with the specified mesh the instances whose indices are at the
+	 * positions <code>first</code> to <code>first + count</code> of the
+	 * specified slot. The shader program must be in use, and the textures
+	 * bound.
+	 */
+	void draw( final GL3 gl, final Slot slot, final int first, final int count, final Part mesh )
+	{
+		if ( count == 0 )
+			return;
+
+		gl.glBindVertexArray( vao );
+		if ( baseInstance )
+		{
+			if ( pointersFirstInstance != 0 )
+				setPointers( gl, 0 );
+			gl.getGL4().glDrawElementsInstancedBaseInstance(
+					mesh.mode,
+					mesh.indexCount,
+					GL_UNSIGNED_INT,
+					mesh.indexOffset(),
+					count,
+					slot.offset + first );
+		}
+		else
+		{
+			if ( pointersFirstInstance != slot.offset + first )
+				setPointers( gl, slot.offset + first );
+			gl.glDrawElementsInstanced(
+					mesh.mode,
+					mesh.indexCount,
+					GL_UNSIGNED_INT,
+					mesh.indexOffset(),
+					count );
+		}
+		gl.glBindVertexArray( 0 );
+	}
+
+	/**
+	 * Draws with the specified mesh the instances described by a
+	 * <code>DrawElementsIndirectCommand</code> in the specified buffer. The
+	 * base instance of the command must include the offset of the slot. The
+	 * shader program must be in use, and the textures bound. Requires
+	 * OpenGL 4.3.
+	 *
+	 * @param gl
+	 *            the GL context.
+	 * @param commands
+	 *            the indirect draw buffer.
+	 * @param offset
+	 *            the offset of the command in the buffer, in bytes.
+	 * @param mesh
+	 *            the mesh, whose primitive mode is used.
+	 */
+	void drawIndirect( final GL3 gl, final int commands, final long offset, final Part mesh )
+	{
+		gl.glBindVertexArray( vao );
+		if ( pointersFirstInstance != 0 )
+			setPointers( gl, 0 );
+		gl.glBindBuffer( GL_DRAW_INDIRECT_BUFFER, commands );
+		gl.getGL4().glDrawElementsIndirect( mesh.mode, GL_UNSIGNED_INT, offset );
+		gl.glBindBuffer( GL_DRAW_INDIRECT_BUFFER, 0 );
+		gl.glBindVertexArray( 0 );
+	}
+
+	/**
+	 * Returns the name of the buffer of instance indices. It changes when the
+	 * arena is compacted.
+	 */
+	int indexBuffer()
+	{
+		return vbos[ idBuffer ];
+	}
+
+	/**
+	 * Sets up the instance index attribute pointer. The VAO must be bound.
+	 */
+	private void setPointers( final GL3 gl, final int first )
+	{
+		// Instance index -> layout = 1
+		gl.glBindBuffer( GL_ARRAY_BUFFER, vbos[ idBuffer ] );
+		gl.glEnableVertexAttribArray( 1 );
+		gl.glVertexAttribIPointer( 1,
+				1,
+				GL_INT,
+				Integer.BYTES,
+				( long ) first * Integer.BYTES );
+		gl.glVertexAttribDivisor( 1, 1 );
+		pointersFirstInstance = first;
+	}
+
+	/**
+	 * Points the buffer textures to the current buffers.
+	 */
+	private void attachTextures( final GL3 gl )
+	{
+		final int[] active = new int[ 1 ];
+		gl.glGetIntegerv( GL_ACTIVE_TEXTURE, active, 0 );
+		gl.glActiveTexture( GL_TEXTURE0 + firstTextureUnit );
+		for ( int b = 0; b < textures.length; b++ )
+		{
+			gl.glBindTexture( GL_TEXTURE_BUFFER, textures[ b ] );
+			gl.glTexBuffer( GL_TEXTURE_BUFFER,
+					b < colorBuffer ? layout.textureFormat( b ) : GL_RGBA8,
+					vbos[ b ] );
+		}
+		gl.glBindTexture( GL_TEXTURE_BUFFER, 0 );
+		gl.glActiveTexture( active[ 0 ] );
+	}
+
+	private Slot allocateFree( final int n )
+	{
+		for ( final Map.Entry< Integer, Integer > range : free.entrySet() )
+		{
+			final int offset = range.getKey();
+			final int length = range.getValue();
+			if ( length < n )
+				continue;
+
+			free.remove( offset );
+			if ( length > n )
+				free.put( offset + n, length - n );
+			return new Slot( offset, n );
+		}
+		return null;
+	}
+
+	/**
+	 * Moves the live slots at the beginning of new buffers of the specified
+	 * capacity.
+	 */
+	private void relocate( final GL3 gl, final int newCapacity )
+	{
+		final int[] newVbos = createInstanceBuffers( gl, newCapacity );
+		int offset = 0;
+		for ( final Slot slot : slots )
+		{
+			for ( int b = 0; b < vbos.length; b++ )
+			{
+				final int stride = stride( b );
+				gl.glBindBuffer( GL_COPY_READ_BUFFER, vbos[ b ] );
+				gl.glBindBuffer( GL_COPY_WRITE_BUFFER, newVbos[ b ] );
+				gl.glCopyBufferSubData(
+						GL_COPY_READ_BUFFER,
+						GL_COPY_WRITE_BUFFER,
+						( long ) slot.offset * stride,
+						( long ) offset * stride,
+						( long ) slot.capacity * stride );
+			}
+			slot.offset = offset;
+			offset += slot.capacity;
+		}
+		gl.glBindBuffer( GL_COPY_READ_BUFFER, 0 );
+		gl.glBindBuffer( GL_COPY_WRITE_BUFFER, 0 );
+
+		gl.glDeleteBuffers( vbos.length, vbos, 0 );
+		vbos = newVbos;
+		capacity = newCapacity;
+		free.clear();
+		if ( offset < capacity )
+			free.put( offset, capacity - offset );
+
+		// The attribute pointer and the textures refer to the old buffers.
+		pointersFirstInstance = -1;
+		attachTextures( gl );
+	}
+
+	private int[] createInstanceBuffers( final GL3 gl, final int n )
+	{
+		final int nBuffers = idBuffer + 1;
+		final int[] buffers = new int[ nBuffers ];
+		gl.glGenBuffers( nBuffers, buffers, 0 );
+		for ( int b = 0; b < nBuffers; b++ )
+		{
+			gl.glBindBuffer( GL_ARRAY_BUFFER, buffers[ b ] );
+			gl.glBufferData( GL_ARRAY_BUFFER,
+					( long ) n * stride( b ),
+					null,
+					GL_DYNAMIC_DRAW );
+		}
+		return buffers;
+	}
+
+	/**
+	 * Bytes per instance of the buffer at the specified index: the layout
+	 * buffers, then the color buffer and the index buffer.
+	 */
+	private int stride( final int buffer )
+	{
+		return buffer < colorBuffer ? layout.stride( buffer ) : Integer.BYTES;
+	}
+}
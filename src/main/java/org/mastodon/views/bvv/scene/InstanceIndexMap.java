@@ -0,0 +1,100 @@
+package org.mastodon.views.bvv.scene;
+
+import java.util.Arrays;
+
+/**
+ * Map of spot internal pool index to instance index in the buffers of the
+ * frame the spot belongs to.
+ * <p>
+ * The map is a dense array addressed by pool index, split in pages allocated
+ * on demand. Since a spot belongs to a single frame, one map is shared by all
+ * the frames of an {@link OverlaySceneRenderer}, and reused across frame
+ * rebuilds.
+ * <p>
+ * Pool indices are recycled, and a frame may be rebuilt after another one
+ * claimed an index. Entries must therefore be checked against the spot id
+ * stored by the frame at the returned instance index.
+ * <p>
+ * Each entry is only written and read under the monitor of the generator of
+ * its frame.
+ */
+public class InstanceIndexMap
+{
+
+	private static final int PAGE_BITS = 12;
+
+	private static final int PAGE_SIZE = 1 << PAGE_BITS;
+
+	private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+	private volatile int[][] pages = new int[ 16 ][];
+
+	/**
+	 * Returns the instance index mapped to the specified spot.
+	 *
+	 * @param id
+	 *            the spot internal pool index.
+	 * @return the instance index, or -1 if there is none.
+	 */
+	int get( final int id )
+	{
+		final int[][] p = pages;
+		final int pi = id >>> PAGE_BITS;
+		if ( pi >= p.length )
+			return -1;
+		final int[] page = p[ pi ];
+		return page == null ? -1 : page[ id & PAGE_MASK ];
+	}
+
+	/**
+	 * Maps the specified spot to the specified instance index.
+	 *
+	 * @param id
+	 *            the spot internal pool index.
+	 * @param index
+	 *            the instance index.
+	 */
+	void put( final int id, final int index )
+	{
+		final int[][] p = pages;
+		final int pi = id >>> PAGE_BITS;
+		int[] page = pi < p.length ? p[ pi ] : null;
+		if ( page == null )
+			page = allocatePage( pi );
+		page[ id & PAGE_MASK ] = index;
+	}
+
+	/**
+	 * Removes the mapping of the specified spot.
+	 *
+	 * @param id
+	 *            the spot internal pool index.
+	 */
+	void remove( final int id )
+	{
+		final int[][] p = pages;
+		final int pi = id >>> PAGE_BITS;
+		if ( pi >= p.length )
+			return;
+		final int[] page = p[ pi ];
+		if ( page != null )
+			page[ id & PAGE_MASK ] = -1;
+	}
+
+	private synchronized int[] allocatePage( final int pi )
+	{
+		int[][] p = pages;
+		if ( pi >= p.length )
+		{
+			p = Arrays.copyOf( p, Math.max( pi + 1, 2 * p.length ) );
+			pages = p;
+		}
+		if ( p[ pi ] == null )
+		{
+			final int[] page = new int[ PAGE_SIZE ];
+			Arrays.fill( page, -1 );
+			p[ pi ] = page;
+		}
+		return p[ pi ];
+	}
+}
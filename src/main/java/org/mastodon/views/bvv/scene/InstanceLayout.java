@@ -0,0 +1,164 @@
+package org.mastodon.views.bvv.scene;
+
+import org.mastodon.views.bvv.scene.OverlayModelUpdateGenerator.OverlayModelUpdate;
+
+import com.jogamp.opengl.GL3;
+
+/**
+ * Layout of the shape and translation instance attributes in GPU buffers.
+ * <p>
+ * The shaders read the instances through buffer textures on the buffers of
+ * the layout, with the functions defined by the layout shader segment:
+ * <ul>
+ * <li><code>mat3 instanceMatrix( int i )</code>: the shape matrix;
+ * <li><code>vec3 instanceInverseSquaredRadii( int i )</code>: the inverse
+ * squared radii of the shape matrix columns, see {@link ShapeMatrices};
+ * <li><code>vec3 instanceTranslation( int i )</code>: the translation.
+ * </ul>
+ * Colors are not managed by the layout: they are always in their own
+ * buffer, because they are rewritten much more often than the geometry.
+ * <p>
+ * The layout does not own its buffers: they are created by the
+ * {@link InstanceArena}, which stores the instances of all the frames in the
+ * same buffers. Methods take the buffer names and the index of the first
+ * instance of a frame in them.
+ */
+interface InstanceLayout
+{
+
+	/**
+	 * Returns the number of buffers of this layout.
+	 *
+	 * @return the number of buffers.
+	 */
+	int numBuffers();
+
+	/**
+	 * Returns the number of bytes per instance in the specified buffer.
+	 *
+	 * @param buffer
+	 *            the buffer index, from 0 to {@link #numBuffers()} - 1.
+	 * @return the number of bytes.
+	 */
+	int stride( int buffer );
+
+	/**
+	 * Returns the number of bytes used per instance by the buffers of this
+	 * layout.
+	 *
+	 * @return the number of bytes.
+	 */
+	default int bytesPerInstance()
+	{
+		int bytes = 0;
+		for ( int b = 0; b < numBuffers(); b++ )
+			bytes += stride( b );
+		return bytes;
+	}
+
+	/**
+	 * Returns the internal format of the buffer texture on the specified
+	 * buffer.
+	 *
+	 * @param buffer
+	 *            the buffer index, from 0 to {@link #numBuffers()} - 1.
+	 * @return the internal format, like <code>GL_R32F</code>.
+	 */
+	int textureFormat( int buffer );
+
+	/**
+	 * Returns the name of the sampler through which the shaders read the
+	 * specified buffer.
+	 *
+	 * @param buffer
+	 *            the buffer index, from 0 to {@link #numBuffers()} - 1.
+	 * @return the sampler uniform name.
+	 */
+	String samplerName( int buffer );
+
+	/**
+	 * Returns the name of the shader resource that declares the samplers of
+	 * this layout and defines the functions reading the instances.
+	 *
+	 * @return the resource name, relative to this class.
+	 */
+	String shaderSegment();
+
+	/**
+	 * Uploads the shapes of a range of instances.
+	 *
+	 * @param gl
+	 *            the GL context.
+	 * @param uploader
+	 *            the uploader to write the buffers with.
+	 * @param vbos
+	 *            the buffers of this layout.
+	 * @param firstInstance
+	 *            the index in the buffers of the instance 0 of the data.
+	 * @param data
+	 *            the data to upload from.
+	 * @param start
+	 *            the first instance index in the data, inclusive.
+	 * @param end
+	 *            the last instance index in the data, exclusive.
+	 */
+	void uploadShapes( GL3 gl, BufferUploader uploader, int[] vbos, int firstInstance, OverlayModelUpdate data, int start, int end );
+
+	/**
+	 * Uploads the translations of a range of instances.
+	 *
+	 * @param gl
+	 *            the GL context.
+	 * @param uploader
+	 *            the uploader to write the buffers with.
+	 * @param vbos
+	 *            the buffers of this layout.
+	 * @param firstInstance
+	 *            the index in the buffers of the instance 0 of the data.
+	 * @param data
+	 *            the data to upload from.
+	 * @param start
+	 *            the first instance index in the data, inclusive.
+	 * @param end
+	 *            the last instance index in the data, exclusive.
+	 */
+	void uploadPositions( GL3 gl, BufferUploader uploader, int[] vbos, int firstInstance, OverlayModelUpdate data, int start, int end );
+
+	/**
+	 * Uploads the shapes and the translations of a range of instances.
+	 *
+	 * @param gl
+	 *            the GL context.
+	 * @param uploader
+	 *            the uploader to write the buffers with.
+	 * @param vbos
+	 *            the buffers of this layout.
+	 * @param firstInstance
+	 *            the index in the buffers of the instance 0 of the data.
+	 * @param data
+	 *            the data to upload from.
+	 * @param start
+	 *            the first instance index in the data, inclusive.
+	 * @param end
+	 *            the last instance index in the data, exclusive.
+	 */
+	default void uploadAll( final GL3 gl, final BufferUploader uploader, final int[] vbos, final int firstInstance, final OverlayModelUpdate data, final int start, final int end )
+	{
+		uploadShapes( gl, uploader, vbos, firstInstance, data, start, end );
+		uploadPositions( gl, uploader, vbos, firstInstance, data, start, end );
+	}
+
+	/**
+	 * Returns a new layout, as specified by the render options.
+	 *
+	 * @param options
+	 *            the render options.
+	 * @return a new layout.
+	 */
+	static InstanceLayout create( final OverlayRenderOptions options )
+	{
+		return options.isCompactInstanceLayout()
+				? new CompactInstanceLayout()
+				: new SeparateInstanceLayout();
+	}
+}
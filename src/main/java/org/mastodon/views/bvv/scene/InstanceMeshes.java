@@ -0,0 +1,193 @@
+package org.mastodon.views.bvv.scene;
+
+import static com.jogamp.opengl.GL.GL_POINTS;
+import static com.jogamp.opengl.GL.GL_TRIANGLES;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+import com.jogamp.opengl.util.GLBuffers;
+
+import gnu.trove.list.array.TFloatArrayList;
+import gnu.trove.list.array.TIntArrayList;
+import net.imglib2.RealPoint;
+import net.imglib2.mesh.Mesh;
+import net.imglib2.mesh.Meshes;
+import net.imglib2.mesh.impl.nio.BufferMesh;
+import net.imglib2.mesh.util.Icosahedron;
+
+/**
+ * The meshes that can be drawn for each instance, stored in a single vertex
+ * buffer and a single index buffer. A mesh is drawn by passing its first
+ * index as offset to the draw call.
+ * <p>
+ * All the spot meshes are in the frame of the unit sphere, which the instance
+ * matrix maps to the ellipsoid. The link mesh is in the frame of the link.
+ */
+final class InstanceMeshes
+{
+
+	/**
+	 * A range of indices in the index buffer.
+	 */
+	static final class Part
+	{
+
+		/**
+		 * The primitive type of the mesh.
+		 */
+		final int mode;
+
+		/**
+		 * The first index of the mesh in the index buffer.
+		 */
+		final int firstIndex;
+
+		/**
+		 * The number of indices of the mesh.
+		 */
+		final int indexCount;
+
+		private Part( final int mode, final int firstIndex, final int indexCount )
+		{
+			this.mode = mode;
+			this.firstIndex = firstIndex;
+			this.indexCount = indexCount;
+		}
+
+		/**
+		 * Returns the offset of the first index of the mesh in the index
+		 * buffer, in bytes.
+		 */
+		long indexOffset()
+		{
+			return ( long ) firstIndex * Integer.BYTES;
+		}
+
+		/**
+		 * Returns the number of primitives of the mesh.
+		 */
+		int primitiveCount()
+		{
+			return mode == GL_TRIANGLES ? indexCount / 3 : indexCount;
+		}
+	}
+
+	/**
+	 * Max number of subdivisions of the icosahedron spheres.
+	 */
+	static final int MAX_SUBDIVISIONS = 3;
+
+	/**
+	 * Icosahedron spheres, indexed by number of subdivisions: 20, 80, 320 and
+	 * 1280 triangles.
+	 */
+	private static final Part[] SPHERES = new Part[ MAX_SUBDIVISIONS + 1 ];
+
+	/**
+	 * The sphere drawn when the level of detail is not adapted to the screen
+	 * size: 2 subdivisions.
+	 */
+	static final Part SPHERE;
+
+	/**
+	 * A single point, on the unit sphere, for the spots smaller than a pixel.
+	 */
+	static final Part POINT;
+
+	/**
+	 * The cube [-1, 1]³, bounding the unit sphere: 12 triangles. Drawn for the
+	 * ray-cast impostors.
+	 */
+	static final Part BOX;
+
+	/**
+	 * A quad drawn for each link, as a line of constant width on the screen:
+	 * x goes from 0 at the source to 1 at the target, y from -1 to 1 across
+	 * the line. 2 triangles.
+	 */
+	static final Part LINK;
+
+	/**
+	 * The vertex positions of all the meshes, 3 floats per vertex.
+	 */
+	static final FloatBuffer VERTICES;
+
+	/**
+	 * The indices of all the meshes.
+	 */
+	static final IntBuffer INDICES;
+
+	private static final int[] BOX_TRIANGLES = new int[] {
+			0, 4, 6, 0, 6, 2, // x = -1
+			1, 3, 7, 1, 7, 5, // x = 1
+			0, 1, 5, 0, 5, 4, // y = -1
+			2, 6, 7, 2, 7, 3, // y = 1
+			0, 2, 3, 0, 3, 1, // z = -1
+			4, 5, 7, 4, 7, 6 // z = 1
+	};
+
+	static
+	{
+		final TFloatArrayList vertices = new TFloatArrayList();
+		final TIntArrayList indices = new TIntArrayList();
+
+		// Spheres.
+		for ( int s = 0; s <= MAX_SUBDIVISIONS; s++ )
+		{
+			final Mesh core = Icosahedron.sphere( new RealPoint( 3 ), 1., s );
+			final BufferMesh mesh = new BufferMesh( core.vertices().size(), core.triangles().size() );
+			Meshes.copy( core, mesh );
+			SPHERES[ s ] = append( GL_TRIANGLES, mesh.vertices().verts(), mesh.triangles().indices(), vertices, indices );
+		}
+		SPHERE = SPHERES[ 2 ];
+
+		// Point, at the center of the spot once scaled to a sub-pixel size.
+		POINT = append( GL_POINTS, FloatBuffer.wrap( new float[] { 0f, 0f, -1f } ), IntBuffer.wrap( new int[] { 0 } ), vertices, indices );
+
+		// Box. Corner i has coordinates -1 or 1 depending on its bits 0, 1, 2.
+		final FloatBuffer corners = FloatBuffer.allocate( 8 * 3 );
+		for ( int i = 0; i < 8; i++ )
+			for ( int d = 0; d < 3; d++ )
+				corners.put( ( i & ( 1 << d ) ) == 0 ? -1f : 1f );
+		BOX = append( GL_TRIANGLES, corners, IntBuffer.wrap( BOX_TRIANGLES ), vertices, indices );
+
+		// Link quad.
+		final FloatBuffer quad = FloatBuffer.wrap( new float[] { 0f, -1f, 0f, 1f, -1f, 0f, 1f, 1f, 0f, 0f, 1f, 0f } );
+		LINK = append( GL_TRIANGLES, quad, IntBuffer.wrap( new int[] { 0, 1, 2, 0, 2, 3 } ), vertices, indices );
+
+		VERTICES = GLBuffers.newDirectFloatBuffer( vertices.toArray() );
+		INDICES = GLBuffers.newDirectIntBuffer( indices.toArray() );
+	}
+
+	/**
+	 * Returns the icosahedron sphere with the specified number of
+	 * subdivisions.
+	 *
+	 * @param subdivisions
+	 *            the number of subdivisions, from 0 to
+	 *            {@link #MAX_SUBDIVISIONS}.
+	 * @return the sphere mesh.
+	 */
+	static Part sphere( final int subdivisions )
+	{
+		return SPHERES[ subdivisions ];
+	}
+
+	/**
+	 * Appends a mesh to the vertex and index lists.
+	 */
+	private static Part append( final int mode, final FloatBuffer meshVertices, final IntBuffer meshIndices, final TFloatArrayList vertices, final TIntArrayList indices )
+	{
+		final int firstVertex = vertices.size() / 3;
+		final int firstIndex = indices.size();
+		for ( int i = 0; i < meshVertices.capacity(); i++ )
+			vertices.add( meshVertices.get( i ) );
+		for ( int i = 0; i < meshIndices.capacity(); i++ )
+			indices.add( firstVertex + meshIndices.get( i ) );
+		return new Part( mode, firstIndex, meshIndices.capacity() );
+	}
+
+	private InstanceMeshes()
+	{}
+}
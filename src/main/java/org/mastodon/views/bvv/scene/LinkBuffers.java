@@ -0,0 +1,200 @@
+package org.mastodon.views.bvv.scene;
+
+import static com.jogamp.opengl.GL.GL_ARRAY_BUFFER;
+import static com.jogamp.opengl.GL.GL_DYNAMIC_DRAW;
+import static com.jogamp.opengl.GL.GL_ELEMENT_ARRAY_BUFFER;
+import static com.jogamp.opengl.GL.GL_FLOAT;
+import static com.jogamp.opengl.GL.GL_UNSIGNED_BYTE;
+import static com.jogamp.opengl.GL.GL_UNSIGNED_INT;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+import org.mastodon.views.bvv.scene.LinkUpdateGenerator.LinkUpdate;
+
+import com.jogamp.opengl.GL3;
+
+/**
+ * The link instances of the whole graph on the GPU, with their VAO.
+ * <p>
+ * The link mesh {@link InstanceMeshes#LINK} is read from the shared
+ * {@link MeshBuffers}. The ends, the timepoint and the color of each link are
+ * instanced attributes, so that all the links are drawn with a single
+ * instanced draw call:
+ * <ul>
+ * <li>layout = 1: the position of the source, <code>vec3</code>;
+ * <li>layout = 2: the position of the target, <code>vec3</code>;
+ * <li>layout = 3: the color, <code>vec4</code> of normalized unsigned bytes;
+ * <li>layout = 4: the timepoint, <code>float</code>.
+ * </ul>
+ * <p>
+ * Must only be used on the GL thread.
+ */
+class LinkBuffers
+{
+
+	private static final int ENDS_STRIDE = LinkUpdate.FLOATS * Float.BYTES;
+
+	private static final int COLOR_STRIDE = Integer.BYTES;
+
+	private MeshBuffers meshBuffers;
+
+	private int vao;
+
+	private int endBuffer;
+
+	private int colorBuffer;
+
+	private int capacity;
+
+	/**
+	 * Creates the VAO. The link buffers are created by
+	 * {@link #reallocate(GL3, LinkUpdate)}.
+	 */
+	void init( final GL3 gl )
+	{
+		// Before binding the VAO: they may be uploaded by this call.
+		meshBuffers = MeshBuffers.acquire( gl );
+
+		final int[] vaos = new int[ 1 ];
+		gl.glGenVertexArrays( 1, vaos, 0 );
+		vao = vaos[ 0 ];
+		gl.glBindVertexArray( vao );
+
+		// Mesh vertex positions -> layout = 0.
+		gl.glBindBuffer( GL_ARRAY_BUFFER, meshBuffers.vertexBuffer() );
+		gl.glVertexAttribPointer( 0, 3, GL_FLOAT, false, 3 * Float.BYTES, 0 );
+		gl.glEnableVertexAttribArray( 0 );
+		gl.glBindBuffer( GL_ELEMENT_ARRAY_BUFFER, meshBuffers.indexBuffer() );
+
+		gl.glBindVertexArray( 0 );
+	}
+
+	/**
+	 * Returns <code>true</code> if the link buffers were created.
+	 */
+	boolean isAllocated()
+	{
+		return capacity > 0;
+	}
+
+	/**
+	 * Returns the number of bytes of GPU memory used by the link buffers.
+	 */
+	long bytes()
+	{
+		return ( long ) capacity * ( ENDS_STRIDE + COLOR_STRIDE );
+	}
+
+	/**
+	 * Recreates the link buffers with the capacity of the specified data, and
+	 * uploads all its links.
+	 */
+	void reallocate( final GL3 gl, final LinkUpdate data )
+	{
+		deleteBuffers( gl );
+		capacity = Math.max( 1, data.capacity() );
+
+		final int[] buffers = new int[ 2 ];
+		gl.glGenBuffers( 2, buffers, 0 );
+		endBuffer = buffers[ 0 ];
+		colorBuffer = buffers[ 1 ];
+		gl.glBindBuffer( GL_ARRAY_BUFFER, endBuffer );
+		gl.glBufferData( GL_ARRAY_BUFFER, ( long ) capacity * ENDS_STRIDE, null, GL_DYNAMIC_DRAW );
+		gl.glBindBuffer( GL_ARRAY_BUFFER, colorBuffer );
+		gl.glBufferData( GL_ARRAY_BUFFER, ( long ) capacity * COLOR_STRIDE, null, GL_DYNAMIC_DRAW );
+		uploadEnds( gl, data, 0, data.numLinks );
+		uploadColors( gl, data, 0, data.numLinks );
+
+		gl.glBindVertexArray( vao );
+
+		// Source -> layout = 1, target -> layout = 2.
+		gl.glBindBuffer( GL_ARRAY_BUFFER, endBuffer );
+		gl.glVertexAttribPointer( 1, 3, GL_FLOAT, false, ENDS_STRIDE, 0 );
+		gl.glEnableVertexAttribArray( 1 );
+		gl.glVertexAttribDivisor( 1, 1 );
+		gl.glVertexAttribPointer( 2, 3, GL_FLOAT, false, ENDS_STRIDE, 3 * Float.BYTES );
+		gl.glEnableVertexAttribArray( 2 );
+		gl.glVertexAttribDivisor( 2, 1 );
+
+		// Timepoint -> layout = 4.
+		gl.glVertexAttribPointer( 4, 1, GL_FLOAT, false, ENDS_STRIDE, 6 * Float.BYTES );
+		gl.glEnableVertexAttribArray( 4 );
+		gl.glVertexAttribDivisor( 4, 1 );
+
+		// Color -> layout = 3.
+		gl.glBindBuffer( GL_ARRAY_BUFFER, colorBuffer );
+		gl.glVertexAttribPointer( 3, 4, GL_UNSIGNED_BYTE, true, COLOR_STRIDE, 0 );
+		gl.glEnableVertexAttribArray( 3 );
+		gl.glVertexAttribDivisor( 3, 1 );
+
+		gl.glBindVertexArray( 0 );
+		gl.glBindBuffer( GL_ARRAY_BUFFER, 0 );
+	}
+
+	/**
+	 * Uploads the ends and the timepoints of a range of links.
+	 */
+	void uploadEnds( final GL3 gl, final LinkUpdate data, final int start, final int end )
+	{
+		if ( end <= start )
+			return;
+		final FloatBuffer ends = data.endBuffer.duplicate();
+		ends.limit( LinkUpdate.FLOATS * end );
+		ends.position( LinkUpdate.FLOATS * start );
+		gl.glBindBuffer( GL_ARRAY_BUFFER, endBuffer );
+		gl.glBufferSubData( GL_ARRAY_BUFFER, ( long ) start * ENDS_STRIDE, ( long ) ( end - start ) * ENDS_STRIDE, ends );
+	}
+
+	/**
+	 * Uploads the colors of a range of links.
+	 */
+	void uploadColors( final GL3 gl, final LinkUpdate data, final int start, final int end )
+	{
+		if ( end <= start )
+			return;
+		final IntBuffer colors = data.colorBuffer.duplicate();
+		colors.limit( end );
+		colors.position( start );
+		gl.glBindBuffer( GL_ARRAY_BUFFER, colorBuffer );
+		gl.glBufferSubData( GL_ARRAY_BUFFER, ( long ) start * COLOR_STRIDE, ( long ) ( end - start ) * COLOR_STRIDE, colors );
+	}
+
+	/**
+	 * Draws the first <code>n</code> links. The link shader program must be in
+	 * use.
+	 */
+	void draw( final GL3 gl, final int n )
+	{
+		if ( n == 0 || !isAllocated() )
+			return;
+
+		final InstanceMeshes.Part mesh = InstanceMeshes.LINK;
+		gl.glBindVertexArray( vao );
+		gl.glDrawElementsInstanced( mesh.mode, mesh.indexCount, GL_UNSIGNED_INT, mesh.indexOffset(), n );
+		gl.glBindVertexArray( 0 );
+	}
+
+	/**
+	 * Deletes all the GL objects of these buffers.
+	 */
+	void dispose( final GL3 gl )
+	{
+		if ( vao == 0 )
+			return;
+
+		deleteBuffers( gl );
+		gl.glDeleteVertexArrays( 1, new int[] { vao }, 0 );
+		vao = 0;
+		meshBuffers.release( gl );
+		meshBuffers = null;
+	}
+
+	private void deleteBuffers( final GL3 gl )
+	{
+		if ( capacity == 0 )
+			return;
+		gl.glDeleteBuffers( 2, new int[] { endBuffer, colorBuffer }, 0 );
+		capacity = 0;
+	}
+}
@@ -0,0 +1,225 @@
+package org.mastodon.views.bvv.scene;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.locks.Lock;
+
+import org.mastodon.model.SelectionModel;
+import org.mastodon.ui.coloring.GraphColorGenerator;
+import org.mastodon.views.bdv.overlay.OverlayEdge;
+import org.mastodon.views.bdv.overlay.OverlayGraph;
+import org.mastodon.views.bdv.overlay.OverlayVertex;
+import org.mastodon.views.bdv.overlay.RenderSettings;
+import org.mastodon.views.bvv.scene.LinkUpdateGenerator.LinkTarget;
+import org.mastodon.views.bvv.scene.LinkUpdateGenerator.LinkUpdate;
+
+import com.jogamp.opengl.GL3;
+
+import bvv.core.backend.jogl.JoglGpuContext;
+import bvv.core.render.RenderData;
+import bvv.core.shadergen.DefaultShader;
+import gnu.trove.list.array.TIntArrayList;
+
+/**
+ * Renders the links of the whole graph in OpenGL, as the history of the
+ * tracks up to the current timepoint.
+ * <p>
+ * All the links are stored once on the GPU, each with its timepoint. The
+ * shaders only draw the links in the time window
+ * <code>[t - window, t]</code>, so changing the timepoint or the window only
+ * changes uniforms. Graph edits patch the link buffers in place.
+ */
+class LinkRenderer< V extends OverlayVertex< V, E >, E extends OverlayEdge< E, V > >
+{
+
+	private final OverlayRenderOptions options;
+
+	private final LinkUpdateGenerator< V, E > links;
+
+	/**
+	 * The link instances on the GPU, created on the GL thread.
+	 */
+	private LinkBuffers linkBuffers;
+
+	private final Uploader uploader = new Uploader();
+
+	/**
+	 * The background regenerations of the links, and their selection.
+	 */
+	private final RegenJobs jobs;
+
+	LinkRenderer(
+			final OverlayGraph< V, E > graph,
+			final Lock readLock,
+			final SelectionModel< V, E > selection,
+			final GraphColorGenerator< V, E > coloring,
+			final RenderSettings settings,
+			final OverlayRenderOptions options,
+			final DirectBufferPool pool,
+			final ExecutorService executor,
+			final Runnable dataReady )
+	{
+		this.links = new LinkUpdateGenerator<>( graph, readLock, selection, coloring, settings, pool );
+		this.options = options;
+		this.jobs = new RegenJobs( executor, links::regenAll, links::regenColors, dataReady );
+	}
+
+	/*
+	 * Update methods
+	 */
+
+	void rebuild()
+	{
+		jobs.requestRegenAll();
+	}
+
+	void updateColors()
+	{
+		jobs.requestRegenColors();
+	}
+
+	/**
+	 * Signals that the selection changed.
+	 *
+	 * @param selectedIds
+	 *            the edge ids of all the selected links.
+	 */
+	void updateSelection( final TIntArrayList selectedIds )
+	{
+		jobs.updateSelection( selectedIds );
+	}
+
+	/**
+	 * Adds a link instance for the specified edge, without regenerating the
+	 * other links.
+	 *
+	 * @param e
+	 *            the edge.
+	 */
+	void addLink( final E e )
+	{
+		links.addLink( e );
+	}
+
+	/**
+	 * Removes the link instance of the specified edge, without regenerating
+	 * the other links.
+	 *
+	 * @param e
+	 *            the edge.
+	 */
+	void removeLink( final E e )
+	{
+		links.removeLink( e );
+	}
+
+	/**
+	 * Queues an update of the ends of the link of the specified edge, after
+	 * one of its vertices moved.
+	 *
+	 * @param e
+	 *            the edge.
+	 */
+	void updateLink( final E e )
+	{
+		links.updateLink( e );
+	}
+
+	void stop()
+	{
+		jobs.close();
+	}
+
+	/*
+	 * OpenGL methods.
+	 */
+
+	/**
+	 * Uploads the links that changed, and draws the links of the time window
+	 * ending at the current timepoint with a single instanced draw call.
+	 *
+	 * @param gl
+	 *            the GL context.
+	 * @param data
+	 *            the render data.
+	 * @param programs
+	 *            the shader programs of the GL context.
+	 */
+	void render( final GL3 gl, final RenderData data, final ShaderPrograms programs )
+	{
+		// Is the display closing and should we close everything?
+		if ( jobs.isClosed() )
+		{
+			dispose( gl );
+			return;
+		}
+
+		// Do we need to regenerate the links or the colors?
+		jobs.submit();
+
+		// Did the selection changed?
+		final TIntArrayList selectedIds = jobs.takeSelection();
+		if ( selectedIds != null )
+			links.updateSelection( selectedIds );
+
+		if ( linkBuffers == null )
+		{
+			linkBuffers = new LinkBuffers();
+			linkBuffers.init( gl );
+			links.requestReallocation();
+		}
+		uploader.gl = gl;
+		final int numLinks = links.transferUpdates( uploader );
+		if ( numLinks == 0 || !linkBuffers.isAllocated() )
+			return;
+
+		final JoglGpuContext context = JoglGpuContext.get( gl );
+		final DefaultShader prog = programs.linkShader();
+		prog.use( context );
+		prog.getUniformMatrix4f( "pvm" ).set( data.getPv() );
+		prog.getUniform2f( "viewportSize" ).set( ( float ) data.getScreenWidth(), ( float ) data.getScreenHeight() );
+		prog.getUniform1f( "linkWidth" ).set( ( float ) options.getLinkWidth() );
+		prog.getUniform1f( "timepoint" ).set( data.getTimepoint() );
+		prog.getUniform1f( "window" ).set( Math.max( 0, options.getTrackWindow() ) );
+		prog.setUniforms( context );
+		linkBuffers.draw( gl, numLinks );
+	}
+
+	/**
+	 * Releases the GPU and CPU buffers of the links. Must be called on the GL
+	 * thread.
+	 */
+	void dispose( final GL3 gl )
+	{
+		if ( linkBuffers != null )
+			linkBuffers.dispose( gl );
+		linkBuffers = null;
+		links.dispose();
+	}
+
+	/**
+	 * Uploads the link data changed since the last render.
+	 */
+	private class Uploader implements LinkTarget
+	{
+
+		private GL3 gl;
+
+		@Override
+		public void reallocate( final LinkUpdate data )
+		{
+			linkBuffers.reallocate( gl, data );
+		}
+
+		@Override
+		public void uploadEnds( final LinkUpdate data, final int start, final int end )
+		{
+			linkBuffers.uploadEnds( gl, data, start, end );
+		}
+
+		@Override
+		public void uploadColors( final LinkUpdate data, final int start, final int end )
+		{
+			linkBuffers.uploadColors( gl, data, start, end );
+		}
+	}
+}
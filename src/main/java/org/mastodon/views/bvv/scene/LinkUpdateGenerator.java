@@ -0,0 +1,610 @@
+package org.mastodon.views.bvv.scene;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+
+import org.mastodon.model.SelectionModel;
+import org.mastodon.ui.coloring.GraphColorGenerator;
+import org.mastodon.views.bdv.overlay.OverlayEdge;
+import org.mastodon.views.bdv.overlay.OverlayGraph;
+import org.mastodon.views.bdv.overlay.OverlayVertex;
+import org.mastodon.views.bdv.overlay.RenderSettings;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.set.hash.TIntHashSet;
+
+/**
+ * Generates the link instances of all the edges of the graph, in a form ready
+ * to be transferred, and patches them when links are added or removed and
+ * when their vertices move.
+ * <p>
+ * Each link instance stores the positions of its source and of its target, 3
+ * floats each, then its timepoint: the timepoint of its latest vertex, as a
+ * float. It also has a packed color.
+ * <p>
+ * Like the {@link OverlayModelUpdateGenerator} of the spots of a frame, all
+ * the edits are made while holding the monitor of this generator, and the
+ * methods that need the graph read lock acquire it before the monitor.
+ */
+class LinkUpdateGenerator< V extends OverlayVertex< V, E >, E extends OverlayEdge< E, V > >
+{
+
+	/**
+	 * Min number of spare link slots in the buffers, for the links added
+	 * after a full update.
+	 */
+	private static final int MIN_SPARE_CAPACITY = 64;
+
+	private final OverlayGraph< V, E > graph;
+
+	private final Lock readLock;
+
+	private final SelectionModel< V, E > selection;
+
+	private final GraphColorGenerator< V, E > coloring;
+
+	private final RenderSettings settings;
+
+	private final DirectBufferPool pool;
+
+	/**
+	 * Link buffers superseded by a growth of the buffers, released to the pool
+	 * on the next transfer.
+	 */
+	private final List< LinkUpdate > retired = new ArrayList<>();
+
+	/**
+	 * Map of edge id to link index.
+	 */
+	private final TIntIntHashMap linkIndices = new TIntIntHashMap( 16, 0.5f, -1, -1 );
+
+	/**
+	 * The edge id of each link.
+	 */
+	private int[] edgeIds;
+
+	/**
+	 * The link data of the last full update, edited in place by the link
+	 * updates.
+	 */
+	private LinkUpdate current;
+
+	/**
+	 * The color given by the color generator to each link, 0 if there is
+	 * none.
+	 */
+	private int[] generatedColors;
+
+	/**
+	 * The selection state of each link.
+	 */
+	private boolean[] selected;
+
+	/**
+	 * The indices of the selected links.
+	 */
+	private TIntArrayList selectedLinks;
+
+	/**
+	 * The default link color used for the current colors.
+	 */
+	private int defColor;
+
+	/**
+	 * Whether the link buffers were regenerated or grew since the last
+	 * transfer.
+	 */
+	private boolean reallocated;
+
+	/**
+	 * Whether the buffers were returned to the pool for good.
+	 */
+	private boolean disposed;
+
+	/**
+	 * The links whose ends changed since the last upload.
+	 */
+	private final DirtyInstances dirtyEnds = new DirtyInstances();
+
+	/**
+	 * The links whose color changed since the last upload.
+	 */
+	private final DirtyInstances dirtyColors = new DirtyInstances();
+
+	LinkUpdateGenerator(
+			final OverlayGraph< V, E > graph,
+			final Lock readLock,
+			final SelectionModel< V, E > selection,
+			final GraphColorGenerator< V, E > coloring,
+			final RenderSettings settings,
+			final DirectBufferPool pool )
+	{
+		this.graph = graph;
+		this.readLock = readLock;
+		this.selection = selection;
+		this.coloring = coloring;
+		this.settings = settings;
+		this.pool = pool;
+	}
+
+	/**
+	 * Recreates all the buffers that will be transferred to the GPU by the
+	 * next call to {@link #transferUpdates(LinkTarget)}, with all the edges
+	 * of the graph.
+	 * <p>
+	 * This method does not need a GL context and can be called by any thread,
+	 * but not concurrently with itself or {@link #regenColors()}.
+	 */
+	void regenAll()
+	{
+		final int defColor = settings.getColorPast();
+		final V ref = graph.vertexRef();
+		final V ref2 = graph.vertexRef();
+
+		// Graph lock first, then this generator, like the listener threads.
+		readLock.lock();
+		try
+		{
+			final int linkCount = graph.edges().size();
+			final int capacity = linkCount + Math.max( MIN_SPARE_CAPACITY, linkCount / 4 );
+			final LinkUpdate update = new LinkUpdate( 0, pool.floats( LinkUpdate.FLOATS * capacity ), pool.ints( capacity ) );
+			final int[] ids = new int[ capacity ];
+			final int[] generatedColors = new int[ capacity ];
+			final boolean[] selected = new boolean[ capacity ];
+			final TIntIntHashMap linkIndices = new TIntIntHashMap( 2 * capacity, 0.5f, -1, -1 );
+			for ( final E e : graph.edges() )
+				fillLink( e, ref, ref2, update.numLinks++, defColor, update, ids, generatedColors, selected, linkIndices );
+
+			final TIntArrayList selectedLinks = new TIntArrayList();
+			for ( int i = 0; i < update.numLinks; i++ )
+				if ( selected[ i ] )
+					selectedLinks.add( i );
+
+			// The new data supersedes the pending link updates.
+			synchronized ( this )
+			{
+				if ( disposed )
+				{
+					release( update );
+					return;
+				}
+				releaseAll();
+				this.linkIndices.clear();
+				this.linkIndices.putAll( linkIndices );
+				this.edgeIds = ids;
+				this.current = update;
+				this.defColor = defColor;
+				this.generatedColors = generatedColors;
+				this.selected = selected;
+				this.selectedLinks = selectedLinks;
+				this.reallocated = true;
+				dirtyEnds.clear();
+				dirtyColors.clear();
+			}
+		}
+		finally
+		{
+			readLock.unlock();
+			graph.releaseRef( ref );
+			graph.releaseRef( ref2 );
+		}
+	}
+
+	/**
+	 * Recomputes the colors of all the links and marks them for upload. This
+	 * assumes that the edges of the graph have not changed.
+	 * <p>
+	 * This method can be called by any thread, but not concurrently with
+	 * itself or {@link #regenAll()}.
+	 */
+	void regenColors()
+	{
+		final V ref = graph.vertexRef();
+		final V ref2 = graph.vertexRef();
+
+		// Graph lock first, then this generator, like the listener threads.
+		readLock.lock();
+		try
+		{
+			synchronized ( this )
+			{
+				if ( current == null )
+					return;
+
+				defColor = settings.getColorPast();
+				selectedLinks.resetQuick();
+				for ( final E e : graph.edges() )
+					recolor( e, ref, ref2 );
+				dirtyColors.add( 0, current.numLinks );
+			}
+		}
+		finally
+		{
+			readLock.unlock();
+			graph.releaseRef( ref );
+			graph.releaseRef( ref2 );
+		}
+	}
+
+	private void recolor( final E e, final V ref, final V ref2 )
+	{
+		final int index = linkIndices.get( e.getInternalPoolIndex() );
+		if ( index < 0 )
+			return;
+
+		inputColor( e, ref, ref2, index, defColor, current.colorBuffer, generatedColors, selected );
+		if ( selected[ index ] )
+			selectedLinks.add( index );
+	}
+
+	/**
+	 * Updates the colors of the links whose selection state changed, and
+	 * marks them for upload. The color generator is not queried.
+	 *
+	 * @param selectedIds
+	 *            the edge ids of all the selected links.
+	 */
+	synchronized void updateSelection( final TIntArrayList selectedIds )
+	{
+		if ( current == null )
+			return;
+
+		final TIntArrayList dirty = new TIntArrayList();
+		final TIntArrayList newSelection = new TIntArrayList( selectedIds.size() );
+		final TIntHashSet newSelectionSet = new TIntHashSet( selectedIds.size() );
+
+		// Newly selected.
+		for ( int k = 0; k < selectedIds.size(); k++ )
+		{
+			final int index = linkIndices.get( selectedIds.getQuick( k ) );
+			if ( index < 0 )
+				continue;
+
+			newSelection.add( index );
+			newSelectionSet.add( index );
+			if ( !selected[ index ] )
+			{
+				selected[ index ] = true;
+				dirty.add( index );
+			}
+		}
+
+		// Newly deselected.
+		for ( int k = 0; k < selectedLinks.size(); k++ )
+		{
+			final int index = selectedLinks.getQuick( k );
+			if ( !newSelectionSet.contains( index ) )
+			{
+				selected[ index ] = false;
+				dirty.add( index );
+			}
+		}
+		selectedLinks = newSelection;
+
+		// Recompute colors.
+		for ( int k = 0; k < dirty.size(); k++ )
+		{
+			final int index = dirty.getQuick( k );
+			current.colorBuffer.put( index, OverlayModelUpdateGenerator.packRGBA(
+					OverlayModelUpdateGenerator.getColor( selected[ index ], defColor, generatedColors[ index ] ) ) );
+			dirtyColors.add( index );
+		}
+	}
+
+	/**
+	 * Adds a link instance for the specified edge after the last one, and
+	 * marks it for upload. The buffers grow geometrically when they are full.
+	 * Does nothing if the edge already has a link instance.
+	 *
+	 * @param e
+	 *            the edge.
+	 */
+	synchronized void addLink( final E e )
+	{
+		if ( current == null )
+			return;
+		final int id = e.getInternalPoolIndex();
+		if ( linkIndices.containsKey( id ) )
+			return;
+
+		final int index = current.numLinks;
+		ensureCapacity( index + 1 );
+		final V ref = graph.vertexRef();
+		final V ref2 = graph.vertexRef();
+		fillLink( e, ref, ref2, index, defColor, current, edgeIds, generatedColors, selected, linkIndices );
+		graph.releaseRef( ref );
+		graph.releaseRef( ref2 );
+		if ( selected[ index ] )
+			selectedLinks.add( index );
+		current.numLinks = index + 1;
+
+		dirtyEnds.add( index );
+		dirtyColors.add( index );
+	}
+
+	/**
+	 * Removes the link instance of the specified edge. The last link is moved
+	 * to the freed slot, and marked for upload. Does nothing if the edge has
+	 * no link instance.
+	 *
+	 * @param e
+	 *            the edge.
+	 */
+	synchronized void removeLink( final E e )
+	{
+		if ( current == null )
+			return;
+		final int index = linkIndices.remove( e.getInternalPoolIndex() );
+		if ( index < 0 )
+			return;
+
+		if ( selected[ index ] )
+			selectedLinks.remove( index );
+
+		final int last = current.numLinks - 1;
+		if ( index != last )
+		{
+			final FloatBuffer ends = current.endBuffer;
+			for ( int k = 0; k < LinkUpdate.FLOATS; k++ )
+				ends.put( index * LinkUpdate.FLOATS + k, ends.get( last * LinkUpdate.FLOATS + k ) );
+			current.colorBuffer.put( index, current.colorBuffer.get( last ) );
+			generatedColors[ index ] = generatedColors[ last ];
+			selected[ index ] = selected[ last ];
+			if ( selected[ index ] )
+				selectedLinks.set( selectedLinks.indexOf( last ), index );
+
+			edgeIds[ index ] = edgeIds[ last ];
+			linkIndices.put( edgeIds[ index ], index );
+
+			dirtyEnds.add( index );
+			dirtyColors.add( index );
+		}
+		current.numLinks = last;
+	}
+
+	/**
+	 * Stores the positions of the vertices of the specified edge and marks
+	 * its link for upload. Does nothing if the edge has no link instance.
+	 *
+	 * @param e
+	 *            the edge.
+	 */
+	synchronized void updateLink( final E e )
+	{
+		if ( current == null )
+			return;
+		final int index = linkIndices.get( e.getInternalPoolIndex() );
+		if ( index < 0 )
+			return;
+
+		final V ref = graph.vertexRef();
+		inputEnds( e, ref, index, current.endBuffer );
+		graph.releaseRef( ref );
+		dirtyEnds.add( index );
+	}
+
+	/**
+	 * Grows the link buffers so that they can store at least the specified
+	 * number of links. The GPU buffers will be reallocated on the next
+	 * transfer.
+	 */
+	private void ensureCapacity( final int minCapacity )
+	{
+		final int capacity = current.capacity();
+		if ( minCapacity <= capacity )
+			return;
+
+		final int n = current.numLinks;
+		final int newCapacity = Math.max( minCapacity, Math.max( 2 * capacity, MIN_SPARE_CAPACITY ) );
+		final FloatBuffer endBuffer = pool.floats( LinkUpdate.FLOATS * newCapacity );
+		final IntBuffer colorBuffer = pool.ints( newCapacity );
+		for ( int i = 0; i < LinkUpdate.FLOATS * n; i++ )
+			endBuffer.put( i, current.endBuffer.get( i ) );
+		for ( int i = 0; i < n; i++ )
+			colorBuffer.put( i, current.colorBuffer.get( i ) );
+
+		generatedColors = Arrays.copyOf( generatedColors, newCapacity );
+		selected = Arrays.copyOf( selected, newCapacity );
+		edgeIds = Arrays.copyOf( edgeIds, newCapacity );
+		// The rendering thread may still be reading the old buffers.
+		retired.add( current );
+		current = new LinkUpdate( n, endBuffer, colorBuffer );
+		reallocated = true;
+	}
+
+	/**
+	 * Passes the link data changed since the last call to the specified
+	 * target. If the buffers were regenerated or grew, the target is asked to
+	 * reallocate its buffers with the whole data. Otherwise it receives the
+	 * ranges of links whose ends or color changed. Link updates are blocked
+	 * until this method returns.
+	 *
+	 * @param target
+	 *            the target of the transfer.
+	 * @return the number of links.
+	 */
+	synchronized int transferUpdates( final LinkTarget target )
+	{
+		if ( current == null )
+			return 0;
+
+		releaseRetired();
+
+		final LinkUpdate data = current;
+		if ( reallocated )
+		{
+			target.reallocate( data );
+			reallocated = false;
+			dirtyEnds.clear();
+			dirtyColors.clear();
+		}
+		else
+		{
+			final int n = data.numLinks;
+			dirtyEnds.drain( n, ( start, end ) -> target.uploadEnds( data, start, end ) );
+			dirtyColors.drain( n, ( start, end ) -> target.uploadColors( data, start, end ) );
+		}
+		return data.numLinks;
+	}
+
+	/**
+	 * Asks for the whole link data to be passed to the next transfer, for
+	 * instance because the GPU buffers were lost.
+	 */
+	synchronized void requestReallocation()
+	{
+		if ( current != null )
+			reallocated = true;
+	}
+
+	/**
+	 * Returns all the link buffers to the pool. The link data must be
+	 * regenerated before the next transfer.
+	 */
+	synchronized void dispose()
+	{
+		releaseAll();
+		current = null;
+		disposed = true;
+	}
+
+	private void releaseAll()
+	{
+		releaseRetired();
+		if ( current != null )
+			release( current );
+	}
+
+	private void releaseRetired()
+	{
+		for ( final LinkUpdate old : retired )
+			release( old );
+		retired.clear();
+	}
+
+	private void release( final LinkUpdate update )
+	{
+		pool.release( update.endBuffer );
+		pool.release( update.colorBuffer );
+	}
+
+	/**
+	 * Writes the ends, the color and the id of the specified edge at the
+	 * specified link index.
+	 */
+	private void fillLink(
+			final E e,
+			final V ref,
+			final V ref2,
+			final int index,
+			final int defColor,
+			final LinkUpdate data,
+			final int[] ids,
+			final int[] generatedColors,
+			final boolean[] selected,
+			final TIntIntHashMap linkIndices )
+	{
+		final int id = e.getInternalPoolIndex();
+		ids[ index ] = id;
+		linkIndices.put( id, index );
+		inputEnds( e, ref, index, data.endBuffer );
+		inputColor( e, ref, ref2, index, defColor, data.colorBuffer, generatedColors, selected );
+	}
+
+	/**
+	 * Writes the positions of the source and of the target of the specified
+	 * edge, and its timepoint, at the specified link index.
+	 */
+	private static < V extends OverlayVertex< V, E >, E extends OverlayEdge< E, V > > void inputEnds( final E e, final V ref, final int index, final FloatBuffer ends )
+	{
+		final int o = index * LinkUpdate.FLOATS;
+		final V source = e.getSource( ref );
+		final int ts = source.getTimepoint();
+		for ( int d = 0; d < 3; d++ )
+			ends.put( o + d, source.getFloatPosition( d ) );
+		final V target = e.getTarget( ref );
+		for ( int d = 0; d < 3; d++ )
+			ends.put( o + 3 + d, target.getFloatPosition( d ) );
+		ends.put( o + 6, Math.max( ts, target.getTimepoint() ) );
+	}
+
+	/**
+	 * Writes the packed color of the specified edge at the specified link
+	 * index. The generated color and the selection state are stored too.
+	 */
+	private void inputColor(
+			final E e,
+			final V ref,
+			final V ref2,
+			final int index,
+			final int defColor,
+			final IntBuffer colorBuffer,
+			final int[] generatedColors,
+			final boolean[] selected )
+	{
+		final boolean isSelected = selection.isSelected( e );
+		final int color = coloring.color( e, e.getSource( ref ), e.getTarget( ref2 ) );
+		generatedColors[ index ] = color;
+		selected[ index ] = isSelected;
+		colorBuffer.put( index, OverlayModelUpdateGenerator.packRGBA(
+				OverlayModelUpdateGenerator.getColor( isSelected, defColor, color ) ) );
+	}
+
+	/**
+	 * Receives the link data to transfer to the GPU.
+	 */
+	interface LinkTarget
+	{
+		/**
+		 * The link buffers grew: the GPU buffers must be recreated with the
+		 * capacity and the content of the specified data.
+		 */
+		void reallocate( LinkUpdate data );
+
+		void uploadEnds( LinkUpdate data, int start, int end );
+
+		void uploadColors( LinkUpdate data, int start, int end );
+	}
+
+	/**
+	 * Link buffers. They may have more capacity than the number of links.
+	 */
+	static class LinkUpdate
+	{
+
+		/**
+		 * Number of floats per link in {@link #endBuffer}.
+		 */
+		static final int FLOATS = 7;
+
+		/**
+		 * The positions of the source and of the target of each link, then
+		 * its timepoint, 7 floats per link.
+		 */
+		final FloatBuffer endBuffer;
+
+		final IntBuffer colorBuffer;
+
+		int numLinks;
+
+		LinkUpdate( final int numLinks, final FloatBuffer endBuffer, final IntBuffer colorBuffer )
+		{
+			this.numLinks = numLinks;
+			this.endBuffer = endBuffer;
+			this.colorBuffer = colorBuffer;
+		}
+
+		/**
+		 * Returns the max number of links these buffers can store.
+		 */
+		int capacity()
+		{
+			return colorBuffer.capacity();
+		}
+	}
+}
@@ -0,0 +1,304 @@
+package org.mastodon.views.bvv.scene;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+
+import org.joml.Matrix4fc;
+import org.mastodon.views.bvv.scene.InstanceMeshes.Part;
+import org.mastodon.views.bvv.scene.OverlayModelUpdateGenerator.OverlayModelUpdate;
+
+/**
+ * Sorts the instances of a frame in buckets of the mesh to draw them with,
+ * based on their projected radius on the screen.
+ * <p>
+ * The projected radius of an instance is its largest semi-axis, scaled by the
+ * projection at its center. Instances smaller than half a pixel are drawn as
+ * points, and the larger ones with icosahedron spheres of 0 to 3
+ * subdivisions, so that their triangles are a few pixels wide. Instances
+ * behind the camera are not drawn, nor the instances outside of the view
+ * frustum if a set of visible instances is given.
+ * <p>
+ * If the instances would use more triangles than a budget, all the instances
+ * are moved to coarser meshes, as if they were 2, 4, 8... times smaller,
+ * until they fit. The number of triangles thus stays roughly constant when
+ * zooming in.
+ * <p>
+ * The result is a list of instance indices, grouped by bucket.
+ */
+class LodBuckets
+{
+
+	/**
+	 * The mesh of each bucket.
+	 */
+	private static final Part[] MESHES = new Part[] {
+			InstanceMeshes.POINT,
+			InstanceMeshes.sphere( 0 ),
+			InstanceMeshes.sphere( 1 ),
+			InstanceMeshes.sphere( 2 ),
+			InstanceMeshes.sphere( 3 ) };
+
+	static final int N_BUCKETS = MESHES.length;
+
+	/**
+	 * The smallest octave of the projected radius of each bucket but the
+	 * first: 0.5, 8, 16 and 32 pixels.
+	 */
+	private static final int[] MIN_OCTAVES = { -1, 3, 4, 5 };
+
+	/**
+	 * Octave of the projected radius of the culled instances.
+	 */
+	private static final byte CULLED = Byte.MIN_VALUE;
+
+	private static final int MIN_OCTAVE = -16;
+
+	private static final int MAX_OCTAVE = 30;
+
+	/**
+	 * Max number of octaves the instances are shifted by to fit in the
+	 * triangle budget.
+	 */
+	private static final int MAX_BIAS = 16;
+
+	/**
+	 * The position of the first index of each bucket, then the number of
+	 * indices.
+	 */
+	private final int[] starts = new int[ N_BUCKETS + 1 ];
+
+	/**
+	 * The mesh of each bucket, for this sort.
+	 */
+	private final Part[] meshes = MESHES.clone();
+
+	/**
+	 * Octave of the projected radius of each instance.
+	 */
+	private byte[] octaves = new byte[ 0 ];
+
+	private final int[] histogram = new int[ MAX_OCTAVE - MIN_OCTAVE + 1 ];
+
+	private int bias;
+
+	/**
+	 * Puts all the visible instances in a single bucket, drawn with the
+	 * specified mesh, in order.
+	 *
+	 * @param n
+	 *            the number of instances.
+	 * @param visible
+	 *            the visible instances, or <code>null</code> if all of them
+	 *            are.
+	 * @param mesh
+	 *            the mesh to draw all the instances with.
+	 * @param ids
+	 *            the buffer to write the instance indices to.
+	 */
+	void all( final int n, final BitSet visible, final Part mesh, final IntBuffer ids )
+	{
+		int size = 0;
+		for ( int i = next( visible, 0, n ); i < n; i = next( visible, i + 1, n ) )
+			ids.put( size++, i );
+		starts[ 0 ] = 0;
+		for ( int b = 1; b <= N_BUCKETS; b++ )
+			starts[ b ] = size;
+		meshes[ 0 ] = mesh;
+		bias = 0;
+	}
+
+	/**
+	 * Sorts the instances by projected radius.
+	 *
+	 * @param data
+	 *            the instances.
+	 * @param n
+	 *            the number of instances to sort.
+	 * @param visible
+	 *            the visible instances, or <code>null</code> if all of them
+	 *            are.
+	 * @param pvm
+	 *            the projection-view matrix.
+	 * @param screenHeight
+	 *            the height of the screen, in pixels.
+	 * @param triangleBudget
+	 *            the max number of triangles to draw, if the instances can
+	 *            be made coarse enough.
+	 * @param ids
+	 *            the buffer to write the instance indices to.
+	 */
+	void sort( final OverlayModelUpdate data, final int n, final BitSet visible, final Matrix4fc pvm, final double screenHeight, final long triangleBudget, final IntBuffer ids )
+	{
+		System.arraycopy( MESHES, 0, meshes, 0, N_BUCKETS );
+		if ( octaves.length < n )
+			octaves = new byte[ Math.max( n, octaves.length * 2 ) ];
+
+		/*
+		 * The projected radius of a sphere of radius r at a point of clip
+		 * coordinate w is about r * scale / w pixels.
+		 */
+		final double scale = 0.5 * screenHeight * Math.sqrt(
+				pvm.m01() * pvm.m01() + pvm.m11() * pvm.m11() + pvm.m21() * pvm.m21() );
+
+		final FloatBuffer shapes = data.shapeBuffer;
+		final FloatBuffer translations = data.translationBuffer;
+		Arrays.fill( histogram, 0 );
+		for ( int i = next( visible, 0, n ); i < n; i = next( visible, i + 1, n ) )
+		{
+			final float x = translations.get( 3 * i );
+			final float y = translations.get( 3 * i + 1 );
+			final float z = translations.get( 3 * i + 2 );
+			final float w = pvm.m03() * x + pvm.m13() * y + pvm.m23() * z + pvm.m33();
+			if ( w <= 0 )
+			{
+				octaves[ i ] = CULLED;
+				continue;
+			}
+
+			// The columns of the shape matrix have the length of the semi-axes.
+			float r2 = 0;
+			for ( int c = 0; c < 3; c++ )
+			{
+				final int o = ShapeMatrices.FLOATS * i + 3 * c;
+				final float a = shapes.get( o );
+				final float b = shapes.get( o + 1 );
+				final float d = shapes.get( o + 2 );
+				r2 = Math.max( r2, a * a + b * b + d * d );
+			}
+			final double radius = Math.sqrt( r2 ) * scale / w;
+			final int octave = Math.max( MIN_OCTAVE, Math.min( MAX_OCTAVE, Math.getExponent( radius ) ) );
+			octaves[ i ] = ( byte ) octave;
+			histogram[ octave - MIN_OCTAVE ]++;
+		}
+
+		// Coarsen until the budget is met.
+		bias = 0;
+		while ( bias < MAX_BIAS && primitives( bias ) > triangleBudget )
+			bias++;
+
+		// Counting sort.
+		Arrays.fill( starts, 0 );
+		for ( int o = 0; o < histogram.length; o++ )
+			starts[ bucket( o + MIN_OCTAVE - bias ) + 1 ] += histogram[ o ];
+		for ( int b = 0; b < N_BUCKETS; b++ )
+			starts[ b + 1 ] += starts[ b ];
+		final int[] cursors = starts.clone();
+		for ( int i = next( visible, 0, n ); i < n; i = next( visible, i + 1, n ) )
+		{
+			final byte octave = octaves[ i ];
+			if ( octave != CULLED )
+				ids.put( cursors[ bucket( octave - bias ) ]++, i );
+		}
+	}
+
+	/**
+	 * Returns the number of buckets.
+	 */
+	int numBuckets()
+	{
+		return N_BUCKETS;
+	}
+
+	/**
+	 * Returns the position of the first index of the specified bucket.
+	 */
+	int first( final int bucket )
+	{
+		return starts[ bucket ];
+	}
+
+	/**
+	 * Returns the number of indices of the specified bucket.
+	 */
+	int count( final int bucket )
+	{
+		return starts[ bucket + 1 ] - starts[ bucket ];
+	}
+
+	/**
+	 * Returns the total number of indices.
+	 */
+	int size()
+	{
+		return starts[ N_BUCKETS ];
+	}
+
+	/**
+	 * Returns the mesh of the specified bucket.
+	 */
+	Part mesh( final int bucket )
+	{
+		return meshes[ bucket ];
+	}
+
+	/**
+	 * Returns the mesh of the specified bucket, before any sort replaces it.
+	 */
+	static Part defaultMesh( final int bucket )
+	{
+		return MESHES[ bucket ];
+	}
+
+	/**
+	 * Returns the number of octaves the instances were shifted by to fit in
+	 * the triangle budget.
+	 */
+	int bias()
+	{
+		return bias;
+	}
+
+	/**
+	 * Returns the number of primitives drawn if the instances are shifted by
+	 * the specified number of octaves.
+	 */
+	private long primitives( final int bias )
+	{
+		long sum = 0;
+		for ( int o = 0; o < histogram.length; o++ )
+			sum += ( long ) histogram[ o ] * MESHES[ bucket( o + MIN_OCTAVE - bias ) ].primitiveCount();
+		return sum;
+	}
+
+	/**
+	 * Returns the first visible instance from the specified one, or
+	 * <code>n</code> if there is none.
+	 */
+	private static int next( final BitSet visible, final int from, final int n )
+	{
+		if ( visible == null )
+			return from;
+		final int i = visible.nextSetBit( from );
+		return i < 0 ? n : Math.min( i, n );
+	}
+
+	/**
+	 * Returns the bucket of an instance with a projected radius in the
+	 * specified octave: [2^octave, 2^(octave+1)[ pixels.
+	 */
+	static int bucket( final int octave )
+	{
+		int b = 0;
+		while ( b < MIN_OCTAVES.length && octave >= MIN_OCTAVES[ b ] )
+			b++;
+		return b;
+	}
+
+	/**
+	 * Returns the smallest projected radius, in pixels, of each bucket but the
+	 * first. An instance with a projected radius <code>px</code> goes to the
+	 * number of thresholds <code>&lt;= px</code>, as with
+	 * {@link #bucket(int)}. Used by the GPU culling shader.
+	 *
+	 * @return a new array of {@link #N_BUCKETS} - 1 thresholds.
+	 */
+	static float[] thresholds()
+	{
+		final float[] thresholds = new float[ MIN_OCTAVES.length ];
+		for ( int b = 0; b < thresholds.length; b++ )
+			thresholds[ b ] = Math.scalb( 1f, MIN_OCTAVES[ b ] );
+		return thresholds;
+	}
+}
@@ -0,0 +1,113 @@
+package org.mastodon.views.bvv.scene;
+
+import static com.jogamp.opengl.GL.GL_ARRAY_BUFFER;
+import static com.jogamp.opengl.GL.GL_ELEMENT_ARRAY_BUFFER;
+import static com.jogamp.opengl.GL.GL_STATIC_DRAW;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import com.jogamp.opengl.GL3;
+import com.jogamp.opengl.GLContext;
+
+/**
+ * The vertex and index buffers of {@link InstanceMeshes}, uploaded once per
+ * GL context and shared by the VAOs of all the {@link InstanceArena}s drawing
+ * in it.
+ * <p>
+ * Contexts sharing their objects share the same buffers, weakly keyed by the
+ * master context of their share group like {@link ShaderPrograms}. Each arena
+ * acquires the buffers when it is initialized, before binding its VAO, and
+ * releases them when it is disposed. The last release deletes them.
+ * <p>
+ * Must only be used on the GL thread.
+ */
+class MeshBuffers
+{
+
+	private static final Map< GLContext, MeshBuffers > registry = new WeakHashMap<>();
+
+	private int users;
+
+	private final int vertexBuffer;
+
+	private final int indexBuffer;
+
+	private MeshBuffers( final GL3 gl )
+	{
+		final int[] buffers = new int[ 2 ];
+		gl.glGenBuffers( 2, buffers, 0 );
+		vertexBuffer = buffers[ 0 ];
+		indexBuffer = buffers[ 1 ];
+
+		gl.glBindBuffer( GL_ARRAY_BUFFER, vertexBuffer );
+		gl.glBufferData( GL_ARRAY_BUFFER,
+				InstanceMeshes.VERTICES.capacity() * Float.BYTES,
+				InstanceMeshes.VERTICES,
+				GL_STATIC_DRAW );
+		gl.glBindBuffer( GL_ARRAY_BUFFER, 0 );
+
+		// Bound without a VAO: the element array binding is then global.
+		gl.glBindBuffer( GL_ELEMENT_ARRAY_BUFFER, indexBuffer );
+		gl.glBufferData( GL_ELEMENT_ARRAY_BUFFER,
+				InstanceMeshes.INDICES.capacity() * Integer.BYTES,
+				InstanceMeshes.INDICES,
+				GL_STATIC_DRAW );
+		gl.glBindBuffer( GL_ELEMENT_ARRAY_BUFFER, 0 );
+	}
+
+	/**
+	 * Returns the mesh buffers of the specified context, uploaded if needed,
+	 * and counts one more user of them. They must be released with
+	 * {@link #release(GL3)}.
+	 *
+	 * @param gl
+	 *            the GL context, with no VAO bound.
+	 * @return the mesh buffers of the context.
+	 */
+	static synchronized MeshBuffers acquire( final GL3 gl )
+	{
+		final GLContext key = ShaderPrograms.shareGroup( gl );
+		MeshBuffers buffers = registry.get( key );
+		if ( buffers == null )
+		{
+			buffers = new MeshBuffers( gl );
+			registry.put( key, buffers );
+		}
+		buffers.users++;
+		return buffers;
+	}
+
+	/**
+	 * Counts one less user of these buffers. The last user deletes them.
+	 *
+	 * @param gl
+	 *            the GL context they were acquired with.
+	 */
+	void release( final GL3 gl )
+	{
+		synchronized ( MeshBuffers.class )
+		{
+			if ( --users > 0 )
+				return;
+			registry.remove( ShaderPrograms.shareGroup( gl ), this );
+		}
+		gl.glDeleteBuffers( 2, new int[] { vertexBuffer, indexBuffer }, 0 );
+	}
+
+	/**
+	 * Returns the name of the buffer of vertex positions, 3 floats each.
+	 */
+	int vertexBuffer()
+	{
+		return vertexBuffer;
+	}
+
+	/**
+	 * Returns the name of the buffer of triangle and point indices.
+	 */
+	int indexBuffer()
+	{
+		return indexBuffer;
+	}
+}
@@ -1,37 +1,74 @@
 package org.mastodon.views.bvv.scene;
 
-import java.awt.Color;
+import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.locks.Lock;
 import java.util.function.Supplier;
 
-import org.joml.Matrix3f;
 import org.joml.Vector3f;
+import org.mastodon.kdtree.ClipConvexPolytope;
 import org.mastodon.model.SelectionModel;
 import org.mastodon.spatial.SpatialIndex;
 import org.mastodon.ui.coloring.GraphColorGenerator;
 import org.mastodon.views.bdv.overlay.OverlayVertex;
 import org.mastodon.views.bdv.overlay.RenderSettings;
-import org.mastodon.views.bdv.overlay.util.JamaEigenvalueDecomposition;
 
-import com.jogamp.opengl.util.GLBuffers;
-
-import gnu.trove.map.hash.TIntIntHashMap;
-import net.imglib2.RealLocalizable;
-import net.imglib2.type.numeric.ARGBType;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.set.hash.TIntHashSet;
 
 /**
  * Represents an update of the model representation in the GPU, in a form ready
  * to be transferred.
+ * <p>
+ * The instance data is edited by the graph listener threads and read by the
+ * rendering thread. All the edits are made while holding the monitor of this
+ * generator. The methods that need the graph read lock acquire it before the
+ * monitor, like the listener threads which are notified under the graph write
+ * lock.
  */
 public class OverlayModelUpdateGenerator< V extends OverlayVertex< V, ? > >
 {
 
+	/**
+	 * Max number of chunks a frame is split into in parallel mode.
+	 */
+	private static final int PARALLELISM = ForkJoinPool.getCommonPoolParallelism() + 1;
+
+	/**
+	 * Min number of instances per chunk in parallel mode.
+	 */
+	private static final int MIN_CHUNK_SIZE = 4096;
+
+	/**
+	 * Min number of spare instance slots in the buffers, for the vertices
+	 * added after a full update.
+	 */
+	private static final int MIN_SPARE_CAPACITY = 64;
+
 	private final Supplier< SpatialIndex< V > > dataSupplier;
 
+	/**
+	 * Creates the vertex lookups of the workers in parallel mode, or
+	 * <code>null</code> if the buffers are generated serially.
+	 */
+	private final Supplier< VertexLookup< V > > lookups;
+
 	private final ModelDataCreator< V > creator = new ModelDataCreator<>();
 
+	/**
+	 * Data creator for the updates of single vertices, used by the listener
+	 * threads.
+	 */
+	private final ModelDataCreator< V > updateCreator = new ModelDataCreator<>();
+
 	private final RenderSettings settings;
 
 	private final SelectionModel< V, ? > selection;
@@ -40,165 +77,764 @@ public class OverlayModelUpdateGenerator< V extends OverlayVertex< V, ? > >
 
 	private final Lock readLock;
 
-	private TIntIntHashMap idMap;
+	private final OverlayRenderOptions options;
 
-	final ShapeUpdate< V > shapeUpdate;
+	private final ShapeCache shapeCache;
 
-	final PositionUpdate positionUpdate;
+	/**
+	 * Map of spot id to instance index, shared with the other frames.
+	 */
+	private final InstanceIndexMap indexMap;
+
+	private final DirectBufferPool pool;
+
+	/**
+	 * Instance buffers superseded by a growth of the buffers, released to the
+	 * pool on the next transfer.
+	 */
+	private final List< OverlayModelUpdate > retired = new ArrayList<>();
+
+	/**
+	 * The spot id of each instance.
+	 */
+	private int[] instanceIds;
+
+	/**
+	 * The instance data of the last full update. It is edited in place by the
+	 * vertex updates, and uploaded from there.
+	 */
+	private OverlayModelUpdate current;
+
+	/**
+	 * Whether the instance buffers were regenerated or grew since the last
+	 * transfer.
+	 */
+	private boolean reallocated;
+
+	/**
+	 * Whether the buffers were returned to the pool for good.
+	 */
+	private boolean disposed;
+
+	/**
+	 * The instances whose shape changed since the last upload.
+	 */
+	private final DirtyInstances dirtyShapes = new DirtyInstances();
+
+	/**
+	 * The instances whose position changed since the last upload.
+	 */
+	private final DirtyInstances dirtyPositions = new DirtyInstances();
+
+	/**
+	 * The instances whose color changed since the last upload.
+	 */
+	private final DirtyInstances dirtyColors = new DirtyInstances();
+
+	/**
+	 * The packed colors of the instances.
+	 */
+	private IntBuffer colors;
+
+	/**
+	 * The color given by the color generator to each instance, 0 if there is
+	 * none.
+	 */
+	private int[] generatedColors;
+
+	/**
+	 * The selection state of each instance.
+	 */
+	private boolean[] selected;
+
+	/**
+	 * The indices of the selected instances.
+	 */
+	private TIntArrayList selectedInstances;
+
+	/**
+	 * The instances found in the last frustum searched, plus the instances
+	 * added or moved since then.
+	 */
+	private final BitSet visible = new BitSet();
+
+	/**
+	 * Whether {@link #visible} was searched since the last full update.
+	 */
+	private boolean clipped;
+
+	/**
+	 * The largest semi-axis of the instances, or more.
+	 */
+	private double maxRadius;
+
+	/**
+	 * The default spot color used for the current colors.
+	 */
+	private int defColor;
 
 	public OverlayModelUpdateGenerator(
 			final Supplier< SpatialIndex< V > > dataSupplier,
 			final Lock readLock,
 			final SelectionModel< V, ? > selection,
 			final GraphColorGenerator< V, ? > coloring,
-			final RenderSettings settings )
+			final RenderSettings settings,
+			final OverlayRenderOptions options,
+			final ShapeCache shapeCache,
+			final InstanceIndexMap indexMap,
+			final DirectBufferPool pool,
+			final Supplier< VertexLookup< V > > lookups )
 	{
 		this.dataSupplier = dataSupplier;
+		this.lookups = lookups;
+		this.options = options;
+		this.shapeCache = shapeCache;
+		this.indexMap = indexMap;
+		this.pool = pool;
 		this.readLock = readLock;
 		this.selection = selection;
 		this.coloring = coloring;
 		this.settings = settings;
-		this.shapeUpdate = new ShapeUpdate<>();
-		this.positionUpdate = new PositionUpdate();
 	}
 
 	/**
-	 * Recreates the color buffer for the whole model. This assumes that the
-	 * vertex collection in the current frame has not changed.
-	 * 
-	 * @return a new {@link FloatBuffer}
+	 * Recomputes the colors of all the instances and marks them for upload.
+	 * This assumes that the vertex collection in the current frame has not
+	 * changed.
+	 * <p>
+	 * This method can be called by any thread, but not concurrently with
+	 * itself or {@link #regenAll()}.
 	 */
-	FloatBuffer regenColors()
+	void regenColors()
 	{
 		final SpatialIndex< V > si = dataSupplier.get();
-		final int size = si.size();
 
-		final FloatBuffer colorBuffer = GLBuffers.newDirectFloatBuffer( 3 * size );
+		// Graph lock first, then this generator, like the listener threads.
+		readLock.lock();
+		try
+		{
+			synchronized ( this )
+			{
+				if ( current == null )
+					return;
+
+				defColor = settings.getColorSpot();
+				selectedInstances.resetQuick();
+				final int size = si.size();
+				final Iterator< V > it = si.iterator();
+				for ( int i = 0; i < size; i++ )
+				{
+					final V v = it.next();
+					final int id = v.getInternalPoolIndex();
+					final int index = indexOf( id );
+					if ( index < 0 )
+						continue;
+
+					inputColor( v, index, defColor, colors, generatedColors, selected );
+					if ( selected[ index ] )
+						selectedInstances.add( index );
+				}
+				dirtyColors.add( 0, current.numInstances );
+			}
+		}
+		finally
+		{
+			readLock.unlock();
+		}
+	}
 
-		final int defColor = settings.getColorSpot();
-		final Vector3f colorVector = new Vector3f();
-		final Iterator< V > it = si.iterator();
-		for ( int i = 0; i < size; i++ )
+	/**
+	 * Updates the colors of the instances whose selection state changed, and
+	 * marks them for upload. The color generator is not queried: this assumes
+	 * that only the selection changed since the last color update.
+	 * 
+	 * @param selectedIds
+	 *            the spot ids of all the selected vertices in this frame.
+	 *            Vertices not in this frame are ignored.
+	 */
+	synchronized void updateSelection( final TIntArrayList selectedIds )
+	{
+		if ( current == null )
+			return;
+
+		final TIntArrayList dirty = new TIntArrayList();
+		final TIntArrayList newSelection = new TIntArrayList( selectedIds.size() );
+		final TIntHashSet newSelectionSet = new TIntHashSet( selectedIds.size() );
+
+		// Newly selected.
+		for ( int k = 0; k < selectedIds.size(); k++ )
 		{
-			final V v = it.next();
-			final int id = v.getInternalPoolIndex();
-			final int index = idMap.get( id );
+			final int index = indexOf( selectedIds.getQuick( k ) );
+			if ( index < 0 )
+				continue;
+
+			newSelection.add( index );
+			newSelectionSet.add( index );
+			if ( !selected[ index ] )
+			{
+				selected[ index ] = true;
+				dirty.add( index );
+			}
+		}
+
+		// Newly deselected.
+		for ( int k = 0; k < selectedInstances.size(); k++ )
+		{
+			final int index = selectedInstances.getQuick( k );
+			if ( !newSelectionSet.contains( index ) )
+			{
+				selected[ index ] = false;
+				dirty.add( index );
+			}
+		}
+		selectedInstances = newSelection;
+
+		// Recompute colors.
+		for ( int k = 0; k < dirty.size(); k++ )
+		{
+			final int index = dirty.getQuick( k );
+			colors.put( index, packRGBA( getColor( selected[ index ], defColor, generatedColors[ index ] ) ) );
+			dirtyColors.add( index );
+		}
+	}
+
+	/**
+	 * Recomputes the shape of the specified vertex and marks it for upload.
+	 * Does nothing if the vertex is not in the last full update.
+	 * 
+	 * @param v
+	 *            the vertex.
+	 */
+	synchronized void updateShape( final V v )
+	{
+		if ( current == null )
+			return;
+		final int index = indexOf( v.getInternalPoolIndex() );
+		if ( index < 0 )
+			return;
+
+		updateCreator.inputShapeMatrix( v, current.shapeBuffer, index * ShapeMatrices.FLOATS );
+		maxRadius = Math.max( maxRadius, radius( current.shapeBuffer, index ) );
+		visible.set( index );
+		dirtyShapes.add( index );
+	}
 
-			getVertexColor( v, defColor, colorVector );
-			colorVector.get( index * 3, colorBuffer );
+	/**
+	 * Stores the position of the specified vertex and marks it for upload.
+	 * Does nothing if the vertex is not in the last full update.
+	 * 
+	 * @param v
+	 *            the vertex.
+	 */
+	synchronized void updatePosition( final V v )
+	{
+		if ( current == null )
+			return;
+		final int index = indexOf( v.getInternalPoolIndex() );
+		if ( index < 0 )
+			return;
+
+		final FloatBuffer translations = current.translationBuffer;
+		for ( int d = 0; d < 3; d++ )
+			translations.put( index * 3 + d, v.getFloatPosition( d ) );
+		visible.set( index );
+		dirtyPositions.add( index );
+	}
+
+	/**
+	 * Adds an instance for the specified vertex after the last one, and marks
+	 * it for upload. The buffers grow geometrically when they are full. Does
+	 * nothing if the vertex already has an instance.
+	 * 
+	 * @param v
+	 *            the vertex.
+	 */
+	synchronized void addVertex( final V v )
+	{
+		if ( current == null )
+			return;
+		final int id = v.getInternalPoolIndex();
+		if ( indexOf( id ) >= 0 )
+			return;
+
+		final int index = current.numInstances;
+		ensureCapacity( index + 1 );
+
+		updateCreator.inputShapeMatrix( v, current.shapeBuffer, index * ShapeMatrices.FLOATS );
+		final FloatBuffer translations = current.translationBuffer;
+		for ( int d = 0; d < 3; d++ )
+			translations.put( index * 3 + d, v.getFloatPosition( d ) );
+		inputColor( v, index, defColor, colors, generatedColors, selected );
+		if ( selected[ index ] )
+			selectedInstances.add( index );
+
+		instanceIds[ index ] = id;
+		indexMap.put( id, index );
+		current.numInstances = index + 1;
+		maxRadius = Math.max( maxRadius, radius( current.shapeBuffer, index ) );
+		visible.set( index );
+
+		dirtyShapes.add( index );
+		dirtyPositions.add( index );
+		dirtyColors.add( index );
+	}
+
+	/**
+	 * Removes the instance of the specified vertex. The last instance is moved
+	 * to the freed slot, and marked for upload. Does nothing if the vertex has
+	 * no instance.
+	 * 
+	 * @param v
+	 *            the vertex.
+	 */
+	synchronized void removeVertex( final V v )
+	{
+		if ( current == null )
+			return;
+		final int id = v.getInternalPoolIndex();
+		final int index = indexOf( id );
+		if ( index < 0 )
+			return;
+		indexMap.remove( id );
+
+		if ( selected[ index ] )
+			selectedInstances.remove( index );
+
+		final int last = current.numInstances - 1;
+		if ( index != last )
+		{
+			final FloatBuffer shapes = current.shapeBuffer;
+			for ( int k = 0; k < ShapeMatrices.FLOATS; k++ )
+				shapes.put( index * ShapeMatrices.FLOATS + k, shapes.get( last * ShapeMatrices.FLOATS + k ) );
+			final FloatBuffer translations = current.translationBuffer;
+			for ( int d = 0; d < 3; d++ )
+				translations.put( index * 3 + d, translations.get( last * 3 + d ) );
+			colors.put( index, colors.get( last ) );
+			generatedColors[ index ] = generatedColors[ last ];
+			selected[ index ] = selected[ last ];
+			if ( selected[ index ] )
+				selectedInstances.set( selectedInstances.indexOf( last ), index );
+
+			instanceIds[ index ] = instanceIds[ last ];
+			indexMap.put( instanceIds[ index ], index );
+			visible.set( index, visible.get( last ) );
+
+			dirtyShapes.add( index );
+			dirtyPositions.add( index );
+			dirtyColors.add( index );
 		}
-		return colorBuffer;
+		visible.clear( last );
+		current.numInstances = last;
 	}
 
-	void updateShape( final V v )
+	/**
+	 * Returns the index of the instance of the specified spot in this frame,
+	 * or -1 if it is not in this frame. The entries of the shared map are
+	 * checked, because pool indices are recycled.
+	 */
+	private int indexOf( final int id )
 	{
-		final int index = idMap.get( v.getInternalPoolIndex() );
-		shapeUpdate.set( index, v );
+		final int index = indexMap.get( id );
+		return ( index >= 0 && index < current.numInstances && instanceIds[ index ] == id )
+				? index
+				: -1;
 	}
 
-	void updatePosition( final V v )
+	/**
+	 * Grows the instance buffers so that they can store at least the
+	 * specified number of instances. The GPU buffers will be reallocated on
+	 * the next transfer.
+	 */
+	private void ensureCapacity( final int minCapacity )
 	{
-		final int index = idMap.get( v.getInternalPoolIndex() );
-		positionUpdate.set( index, v );
+		final int capacity = current.capacity();
+		if ( minCapacity <= capacity )
+			return;
+
+		final int n = current.numInstances;
+		final int newCapacity = Math.max( minCapacity, Math.max( 2 * capacity, MIN_SPARE_CAPACITY ) );
+		final FloatBuffer shapeBuffer = pool.floats( ShapeMatrices.FLOATS * newCapacity );
+		final FloatBuffer translationBuffer = pool.floats( 3 * newCapacity );
+		final IntBuffer colorBuffer = pool.ints( newCapacity );
+		for ( int i = 0; i < ShapeMatrices.FLOATS * n; i++ )
+			shapeBuffer.put( i, current.shapeBuffer.get( i ) );
+		for ( int i = 0; i < 3 * n; i++ )
+			translationBuffer.put( i, current.translationBuffer.get( i ) );
+		for ( int i = 0; i < n; i++ )
+			colorBuffer.put( i, colors.get( i ) );
+
+		generatedColors = Arrays.copyOf( generatedColors, newCapacity );
+		selected = Arrays.copyOf( selected, newCapacity );
+		instanceIds = Arrays.copyOf( instanceIds, newCapacity );
+		colors = colorBuffer;
+		// The rendering thread may still be reading the old buffers.
+		retired.add( current );
+		current = new OverlayModelUpdate( n, shapeBuffer, translationBuffer, colorBuffer );
+		reallocated = true;
 	}
 
 	/**
-	 * Recreates all the buffers that will be transferred to the GPU later.
+	 * Passes the instance data changed since the last call to the specified
+	 * target. If the buffers were regenerated or grew, the target is asked to
+	 * reallocate its buffers with the whole data. Otherwise it receives the
+	 * ranges of instances whose shape, position or color changed. Vertex
+	 * updates are blocked until this method returns, so that the target can
+	 * read the instance data.
 	 * 
-	 * @return an update representing the full model.
+	 * @param target
+	 *            the target of the transfer.
+	 * @return the number of instances.
+	 */
+	synchronized int transferUpdates( final UpdateTarget target )
+	{
+		if ( current == null )
+			return 0;
+
+		releaseRetired();
+
+		final OverlayModelUpdate data = current;
+		if ( reallocated )
+		{
+			target.reallocate( data );
+			reallocated = false;
+			dirtyShapes.clear();
+			dirtyPositions.clear();
+			dirtyColors.clear();
+		}
+		else
+		{
+			final int n = data.numInstances;
+			dirtyPositions.drain( n, ( start, end ) -> target.uploadPositions( data, start, end ) );
+			dirtyShapes.drain( n, ( start, end ) -> target.uploadShapes( data, start, end ) );
+			dirtyColors.drain( n, ( start, end ) -> target.uploadColors( data, start, end ) );
+		}
+		target.transferred( data, clipped ? visible : null );
+		return data.numInstances;
+	}
+
+	/**
+	 * Searches the instances of the vertices in the specified frustum with
+	 * the spatial index of this frame. The next transfers only pass these
+	 * instances to the target as visible, plus the ones added or edited
+	 * since. The frustum is extended by the largest semi-axis of the
+	 * instances, so that the spots overlapping it are found too.
+	 * <p>
+	 * Does nothing if the instance data was not generated yet.
+	 *
+	 * @param frustum
+	 *            the frustum.
 	 */
-	OverlayModelUpdate regenAll()
+	void clip( final ViewFrustum frustum )
 	{
 		final SpatialIndex< V > si = dataSupplier.get();
-		final int instanceCount = si.size();
-		final int defColor = settings.getColorSpot();
 
-		// Model matrix buffer (4x4)
-		final FloatBuffer shapeBuffer = GLBuffers.newDirectFloatBuffer( 9 * instanceCount );
-		final Matrix3f modelMatrix = new Matrix3f();
+		// Graph lock first, then this generator, like the listener threads.
+		readLock.lock();
+		try
+		{
+			final double margin;
+			synchronized ( this )
+			{
+				if ( current == null )
+					return;
+				margin = maxRadius;
+			}
 
-		// Translation buffer (3x1)
-		final FloatBuffer translationBuffer = GLBuffers.newDirectFloatBuffer( 3 * instanceCount );
-		final Vector3f pos = new Vector3f();
+			final ClipConvexPolytope< V > clip = si.getClipConvexPolytope();
+			clip.clip( frustum.polytope( margin ) );
 
-		// Color buffer (3x1)
-		final FloatBuffer colorBuffer = GLBuffers.newDirectFloatBuffer( 3 * instanceCount );
-		final Vector3f colorVector = new Vector3f();
+			synchronized ( this )
+			{
+				if ( current == null )
+					return;
+				visible.clear();
+				for ( final V v : clip.getInsideValues() )
+				{
+					final int index = indexOf( v.getInternalPoolIndex() );
+					if ( index >= 0 )
+						visible.set( index );
+				}
+				clipped = true;
+			}
+		}
+		finally
+		{
+			readLock.unlock();
+		}
+	}
 
-		// Map of spot id -> instance index.
-		this.idMap = new TIntIntHashMap( instanceCount, 0.5f, -1, -1 );
+	/**
+	 * Returns whether the visible instances were searched since the last
+	 * full update.
+	 *
+	 * @return <code>true</code> if {@link #clip(ViewFrustum)} was called
+	 *         since the last full update.
+	 */
+	synchronized boolean isClipped()
+	{
+		return clipped;
+	}
+
+	/**
+	 * Returns the index of the instance of the specified spot in the data of
+	 * the last transfer.
+	 *
+	 * @param id
+	 *            the spot internal pool index, or -1.
+	 * @return the instance index, or -1 if the spot is not in this frame.
+	 */
+	synchronized int instanceIndex( final int id )
+	{
+		return ( id < 0 || current == null ) ? -1 : indexOf( id );
+	}
+
+	/**
+	 * Asks for the whole instance data to be passed to the next transfer, for
+	 * instance because the GPU buffers were lost.
+	 */
+	synchronized void requestReallocation()
+	{
+		if ( current != null )
+			reallocated = true;
+	}
+
+	/**
+	 * Returns all the instance buffers to the pool. The instance data must be
+	 * regenerated before the next transfer.
+	 */
+	synchronized void dispose()
+	{
+		releaseAll();
+		current = null;
+		disposed = true;
+	}
 
-		// Feed the buffers.
+	private void releaseAll()
+	{
+		releaseRetired();
+		if ( current != null )
+			release( current );
+	}
+
+	private void releaseRetired()
+	{
+		for ( final OverlayModelUpdate old : retired )
+			release( old );
+		retired.clear();
+	}
+
+	private void release( final OverlayModelUpdate update )
+	{
+		pool.release( update.shapeBuffer );
+		pool.release( update.translationBuffer );
+		pool.release( update.colorBuffer );
+	}
+
+	/**
+	 * Recreates all the buffers that will be transferred to the GPU by the
+	 * next call to {@link #transferUpdates(UpdateTarget)}. The buffers have
+	 * some spare capacity for the vertices added later.
+	 * <p>
+	 * This method does not need a GL context and can be called by any thread,
+	 * but not concurrently with itself or {@link #regenColors()}.
+	 */
+	void regenAll()
+	{
+		final SpatialIndex< V > si = dataSupplier.get();
+		final int defColor = settings.getColorSpot();
+
+		/*
+		 * Graph lock first, then this generator, like the listener threads.
+		 * The lock is held until the new data is published, so that no vertex
+		 * update is lost in between.
+		 */
 		readLock.lock();
 		try
 		{
+			final int instanceCount = si.size();
+			final int capacity = instanceCount + Math.max( MIN_SPARE_CAPACITY, instanceCount / 4 );
 
-			final Iterator< V > it = si.iterator();
-			for ( int i = 0; i < instanceCount; i++ )
+			// Model matrix buffer (3x3)
+			final FloatBuffer shapeBuffer = pool.floats( ShapeMatrices.FLOATS * capacity );
+
+			// Translation buffer (3x1)
+			final FloatBuffer translationBuffer = pool.floats( 3 * capacity );
+
+			// Color buffer (packed RGBA)
+			final IntBuffer colorBuffer = pool.ints( capacity );
+			final int[] generatedColors = new int[ capacity ];
+			final boolean[] selected = new boolean[ capacity ];
+
+			// Spot id of each instance.
+			final int[] ids = new int[ capacity ];
+
+			// Whether the shape of each instance was not in the cache.
+			final boolean[] computed = new boolean[ capacity ];
+
+			// Feed the buffers.
+			final int nChunks = ( lookups != null && options.isParallelBufferGeneration() )
+					? Math.min( PARALLELISM, instanceCount / MIN_CHUNK_SIZE )
+					: 1;
+			if ( nChunks <= 1 )
 			{
-				final V v = it.next();
+				final Vector3f pos = new Vector3f();
+				final Iterator< V > it = si.iterator();
+				for ( int i = 0; i < instanceCount; i++ )
+				{
+					final V v = it.next();
+					fillGeometry( v, i, creator, pos, ids, computed, shapeBuffer, translationBuffer );
+					inputColor( v, i, defColor, colorBuffer, generatedColors, selected );
+				}
+			}
+			else
+			{
+				/*
+				 * One serial pass collects the spot ids in iteration order.
+				 * Then each worker looks the vertices of its range up with its
+				 * own lookup, hence its own vertex refs, and uses its own data
+				 * creator. The workers rely on the read lock held here.
+				 */
+				int n = 0;
+				for ( final V v : si )
+					ids[ n++ ] = v.getInternalPoolIndex();
+
+				final List< ForkJoinTask< ? > > tasks = new ArrayList<>( nChunks );
+				for ( int c = 0; c < nChunks; c++ )
+				{
+					final int start = ( int ) ( ( long ) c * instanceCount / nChunks );
+					final int end = ( int ) ( ( long ) ( c + 1 ) * instanceCount / nChunks );
+					final VertexLookup< V > lookup = lookups.get();
+					tasks.add( ForkJoinTask.adapt( () -> fillChunk( lookup, start, end, new ModelDataCreator<>(), ids, computed, shapeBuffer, translationBuffer ) ) );
+				}
+				ForkJoinTask.invokeAll( tasks );
+
+				/*
+				 * Colors and selection serially, in the same order: the color
+				 * generators and the selection model are not meant to be read
+				 * concurrently.
+				 */
+				final Iterator< V > it = si.iterator();
+				for ( int i = 0; i < instanceCount; i++ )
+					inputColor( it.next(), i, defColor, colorBuffer, generatedColors, selected );
+			}
 
-				// Index map.
-				final int id = v.getInternalPoolIndex();
-				idMap.put( id, i );
+			/*
+			 * Store the shapes we had to compute, before releasing the read
+			 * lock: a covariance edit invalidating a spot in between would
+			 * otherwise be overwritten with its stale shape.
+			 */
+			shapeCache.putAll( ids, computed, shapeBuffer );
 
-				// Model matrix for covariance.
-				creator.inputShapeMatrix( v, modelMatrix );
-				modelMatrix.get( i * 9, shapeBuffer );
+			final TIntArrayList selectedInstances = new TIntArrayList();
+			for ( int i = 0; i < instanceCount; i++ )
+				if ( selected[ i ] )
+					selectedInstances.add( i );
 
-				// X, Y, Z translation.
-				creator.inputPositionVector( v, pos );
-				pos.get( i * 3, translationBuffer );
+			double maxRadius = 0;
+			for ( int i = 0; i < instanceCount; i++ )
+				maxRadius = Math.max( maxRadius, radius( shapeBuffer, i ) );
+
+			final OverlayModelUpdate update = new OverlayModelUpdate( instanceCount, shapeBuffer, translationBuffer, colorBuffer );
 
-				// Instance color.
-				getVertexColor( v, defColor, colorVector );
-				colorVector.get( i * 3, colorBuffer );
+			// The new data supersedes the pending vertex updates.
+			synchronized ( this )
+			{
+				if ( disposed )
+				{
+					release( update );
+					return;
+				}
+				for ( int i = 0; i < instanceCount; i++ )
+					indexMap.put( ids[ i ], i );
+				releaseAll();
+				this.instanceIds = ids;
+				this.current = update;
+				this.defColor = defColor;
+				this.colors = colorBuffer;
+				this.generatedColors = generatedColors;
+				this.selected = selected;
+				this.selectedInstances = selectedInstances;
+				this.maxRadius = maxRadius;
+				this.reallocated = true;
+				visible.clear();
+				clipped = false;
+				dirtyShapes.clear();
+				dirtyPositions.clear();
+				dirtyColors.clear();
 			}
 		}
 		finally
 		{
 			readLock.unlock();
 		}
-
-		return new OverlayModelUpdate( si.size(), shapeBuffer, translationBuffer, colorBuffer );
 	}
 
-	private static class ModelDataCreator< V extends OverlayVertex< V, ? > >
+	/**
+	 * Writes the shapes and translations of the instances <code>start</code>
+	 * (inclusive) to <code>end</code> (exclusive) in the specified buffers,
+	 * from the spot ids already collected in <code>ids</code>. Buffer writes
+	 * are absolute, so that several chunks can be filled concurrently. The
+	 * shape cache is only read here.
+	 */
+	private void fillChunk(
+			final VertexLookup< V > lookup,
+			final int start,
+			final int end,
+			final ModelDataCreator< V > creator,
+			final int[] ids,
+			final boolean[] computed,
+			final FloatBuffer shapeBuffer,
+			final FloatBuffer translationBuffer )
 	{
+		final Vector3f pos = new Vector3f();
+		for ( int i = start; i < end; i++ )
+			fillGeometry( lookup.getVertex( ids[ i ] ), i, creator, pos, ids, computed, shapeBuffer, translationBuffer );
+	}
 
-		private final JamaEigenvalueDecomposition eig3 = new JamaEigenvalueDecomposition( 3 );
+	/**
+	 * Writes the shape and the translation of the instance of the specified
+	 * vertex at the specified index.
+	 */
+	private void fillGeometry(
+			final V v,
+			final int i,
+			final ModelDataCreator< V > creator,
+			final Vector3f pos,
+			final int[] ids,
+			final boolean[] computed,
+			final FloatBuffer shapeBuffer,
+			final FloatBuffer translationBuffer )
+	{
+		// Spot id.
+		final int id = v.getInternalPoolIndex();
+		ids[ i ] = id;
 
-		private final double[] radii = new double[ 3 ];
+		// Model matrix for covariance, from the cache if we can.
+		if ( !shapeCache.get( id, shapeBuffer, i * ShapeMatrices.FLOATS ) )
+		{
+			creator.inputShapeMatrix( v, shapeBuffer, i * ShapeMatrices.FLOATS );
+			computed[ i ] = true;
+		}
 
-		private final double[][] S = new double[ 3 ][ 3 ];
+		// X, Y, Z translation.
+		creator.inputPositionVector( v, pos );
+		pos.get( i * 3, translationBuffer );
+	}
 
-		private final Matrix3f scaling = new Matrix3f();
+	private static class ModelDataCreator< V extends OverlayVertex< V, ? > >
+	{
 
-		private final Matrix3f rotation = new Matrix3f();
+		private final double[][] S = new double[ 3 ][ 3 ];
 
-		private void inputShapeMatrix( final V v, final Matrix3f modelMatrix )
+		/**
+		 * Writes the shape matrix of the specified vertex in the specified
+		 * buffer, in column-major order, followed by its inverse squared
+		 * radii.
+		 */
+		private void inputShapeMatrix( final V v, final FloatBuffer dest, final int offset )
 		{
 			v.getCovariance( S );
-
-			eig3.decomposeSymmetric( S );
-			final double[] eigenvalues = eig3.getRealEigenvalues();
-			for ( int d = 0; d < eigenvalues.length; d++ )
-				radii[ d ] = Math.sqrt( eigenvalues[ d ] );
-			final double[][] V = eig3.getV();
-
-			// Scaling
-			scaling.scaling(
-					( float ) radii[ 0 ],
-					( float ) radii[ 1 ],
-					( float ) radii[ 2 ] );
-
-			// Rotation
-			for ( int r = 0; r < 3; r++ )
-				for ( int c = 0; c < 3; c++ )
-					rotation.set( c, r, ( float ) V[ c ][ r ] );
-
-			modelMatrix.set( rotation );
-			modelMatrix.mul( scaling );
+			ShapeMatrices.shapeMatrix( S, dest, offset );
 		}
 
 		public void inputPositionVector( final V v, final Vector3f holder )
@@ -209,6 +845,42 @@ public class OverlayModelUpdateGenerator< V extends OverlayVertex< V, ? > >
 		}
 	}
 
+	/**
+	 * Receives the instance data to transfer to the GPU.
+	 */
+	interface UpdateTarget
+	{
+		/**
+		 * The instance buffers grew: the GPU buffers must be recreated with
+		 * the capacity and the content of the specified data.
+		 */
+		void reallocate( OverlayModelUpdate data );
+
+		void uploadShapes( OverlayModelUpdate data, int start, int end );
+
+		void uploadPositions( OverlayModelUpdate data, int start, int end );
+
+		void uploadColors( OverlayModelUpdate data, int start, int end );
+
+		/**
+		 * Called at the end of each transfer, with the up-to-date instance
+		 * data, which can be read until this method returns.
+		 *
+		 * @param data
+		 *            the instance data.
+		 * @param visible
+		 *            the instances in the last frustum searched, or
+		 *            <code>null</code> if none was searched since the last
+		 *            full update.
+		 */
+		default void transferred( final OverlayModelUpdate data, final BitSet visible )
+		{}
+	}
+
+	/**
+	 * Instance buffers. They may have more capacity than the number of
+	 * instances.
+	 */
 	static class OverlayModelUpdate
 	{
 
@@ -216,68 +888,85 @@ public class OverlayModelUpdateGenerator< V extends OverlayVertex< V, ? > >
 
 		final FloatBuffer translationBuffer;
 
-		final FloatBuffer colorBuffer;
+		final IntBuffer colorBuffer;
 
-		final int numInstances;
+		int numInstances;
 
-		private OverlayModelUpdate( final int numInstances, final FloatBuffer shapeBuffer, final FloatBuffer translationBuffer, final FloatBuffer colorBuffer )
+		OverlayModelUpdate( final int numInstances, final FloatBuffer shapeBuffer, final FloatBuffer translationBuffer, final IntBuffer colorBuffer )
 		{
 			this.numInstances = numInstances;
 			this.shapeBuffer = shapeBuffer;
 			this.translationBuffer = translationBuffer;
 			this.colorBuffer = colorBuffer;
 		}
+
+		/**
+		 * Returns the max number of instances these buffers can store.
+		 */
+		int capacity()
+		{
+			return colorBuffer.capacity();
+		}
 	}
 
 	/*
 	 * Color utilities.
 	 */
 
-	private void getVertexColor( final V v, final int defColor, final Vector3f colorVector )
+	/**
+	 * Writes the color of the specified vertex at the specified instance
+	 * index, packed so that its bytes in native order are R, G, B and A. It
+	 * can be uploaded as normalized <code>GL_UNSIGNED_BYTE</code> attributes.
+	 * The generated color and the selection state are stored too.
+	 */
+	private void inputColor(
+			final V v,
+			final int index,
+			final int defColor,
+			final IntBuffer colorBuffer,
+			final int[] generatedColors,
+			final boolean[] selected )
 	{
 		final boolean isSelected = selection.isSelected( v );
 		final int color = coloring.color( v );
-		final Color c = getColor( isSelected, defColor, color );
-		colorVector.x = c.getRed() / 255f;
-		colorVector.y = c.getGreen() / 255f;
-		colorVector.z = c.getBlue() / 255f;
+		generatedColors[ index ] = color;
+		selected[ index ] = isSelected;
+		colorBuffer.put( index, packRGBA( getColor( isSelected, defColor, color ) ) );
 	}
 
-	private static Color getColor(
+	/**
+	 * Returns the largest semi-axis of the specified instance: the length of
+	 * the longest column of its shape matrix.
+	 */
+	private static double radius( final FloatBuffer shapes, final int index )
+	{
+		float r2 = 0;
+		for ( int c = 0; c < 3; c++ )
+		{
+			final int o = ShapeMatrices.FLOATS * index + 3 * c;
+			final float x = shapes.get( o );
+			final float y = shapes.get( o + 1 );
+			final float z = shapes.get( o + 2 );
+			r2 = Math.max( r2, x * x + y * y + z * z );
+		}
+		return Math.sqrt( r2 );
+	}
+
+	/**
+	 * Returns the RGB color of an instance, or of a link.
+	 */
+	static int getColor(
 			final boolean isSelected,
 			final int defColor,
 			final int color )
 	{
-		final int r0, g0, b0;
 		if ( color == 0 )
 		{
 			// No coloring. Color are set by the RenderSettings.
-			if ( isSelected )
-			{
-				final int compColor = complementaryColor( defColor );
-				r0 = ( compColor >> 16 ) & 0xff;
-				g0 = ( compColor >> 8 ) & 0xff;
-				b0 = ( compColor ) & 0xff;
-			}
-			else
-			{
-				r0 = ( defColor >> 16 ) & 0xff;
-				g0 = ( defColor >> 8 ) & 0xff;
-				b0 = ( defColor ) & 0xff;
-			}
+			return isSelected ? complementaryColor( defColor ) : defColor;
 		}
-		else
-		{
-			// Use the generated color.
-			r0 = isSelected ? 255 : ( ( color >> 16 ) & 0xff );
-			g0 = isSelected ? 0 : ( ( color >> 8 ) & 0xff );
-			b0 = isSelected ? 0 : ( color & 0xff );
-		}
-		final double r = r0 / 255.;
-		final double g = g0 / 255.;
-		final double b = b0 / 255.;
-		final double a = 1.;
-		return new Color( truncRGBA( r, g, b, a ), true );
+		// Use the generated color.
+		return isSelected ? 0xff0000 : color;
 	}
 
 	private static final int complementaryColor( final int color )
@@ -285,70 +974,20 @@ public class OverlayModelUpdateGenerator< V extends OverlayVertex< V, ? > >
 		return 0xff000000 | ~color;
 	}
 
-	private static int trunc255( final int i )
-	{
-		return Math.min( 255, Math.max( 0, i ) );
-	}
-
-	private static int truncRGBA( final int r, final int g, final int b, final int a )
-	{
-		return ARGBType.rgba(
-				trunc255( r ),
-				trunc255( g ),
-				trunc255( b ),
-				trunc255( a ) );
-	}
+	private static final boolean LITTLE_ENDIAN = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
 
-	private static int truncRGBA( final double r, final double g, final double b, final double a )
-	{
-		return truncRGBA(
-				( int ) ( 255 * r ),
-				( int ) ( 255 * g ),
-				( int ) ( 255 * b ),
-				( int ) ( 255 * a ) );
-	}
-
-	/*
-	 * Static classes.
+	/**
+	 * Packs an RGB color and an opaque alpha so that the bytes of the int are
+	 * R, G, B, A in native order.
 	 */
-
-	static class PositionUpdate
+	static int packRGBA( final int rgb )
 	{
-
-		int index;
-
-		final FloatBuffer buffer = GLBuffers.newDirectFloatBuffer( 3 );
-
-		public void set( final int index, final RealLocalizable pos )
-		{
-			this.index = index;
-			buffer.clear();
-			buffer
-					.put( pos.getFloatPosition( 0 ) )
-					.put( pos.getFloatPosition( 1 ) )
-					.put( pos.getFloatPosition( 2 ) );
-			buffer.rewind();
-		}
-	}
-
-	static class ShapeUpdate< V extends OverlayVertex< V, ? > >
-	{
-
-		int index;
-
-		final FloatBuffer buffer = GLBuffers.newDirectFloatBuffer( 9 );
-
-		private final ModelDataCreator< V > creator = new ModelDataCreator<>();
-
-		private final Matrix3f matrix = new Matrix3f();
-
-		private void set( final int index, final V v )
-		{
-			this.index = index;
-			creator.inputShapeMatrix( v, matrix );
-			buffer.clear();
-			matrix.get( buffer );
-			buffer.rewind();
-		}
+		final int r = ( rgb >> 16 ) & 0xff;
+		final int g = ( rgb >> 8 ) & 0xff;
+		final int b = rgb & 0xff;
+		final int a = 0xff;
+		return LITTLE_ENDIAN
+				? ( a << 24 ) | ( b << 16 ) | ( g << 8 ) | r
+				: ( r << 24 ) | ( g << 16 ) | ( b << 8 ) | a;
 	}
 }
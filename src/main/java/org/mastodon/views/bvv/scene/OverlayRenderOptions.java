@@ -0,0 +1,486 @@
+package org.mastodon.views.bvv.scene;
+
+import org.scijava.listeners.Listeners;
+
+/**
+ * Options that tune how the overlay scene is generated and rendered.
+ * <p>
+ * A single instance is shared by the {@link OverlaySceneRenderer} and all its
+ * {@link FrameRenderer}s. Changes are picked up the next time the buffers of a
+ * frame are generated. The {@link OverlaySceneRenderer} listens to changes and
+ * regenerates its frames. Options that do not change the buffers, like the
+ * ellipsoid mode, the prefetch window or the GPU memory budget, are read at
+ * each render and do not notify the listeners.
+ */
+public class OverlayRenderOptions
+{
+
+	public interface UpdateListener
+	{
+		public void optionsChanged();
+	}
+
+	/**
+	 * How the ellipsoids of the spots are drawn.
+	 */
+	public enum EllipsoidMode
+	{
+		/**
+		 * A triangle mesh approximating a sphere, transformed by the shape of
+		 * each spot.
+		 */
+		MESH,
+
+		/**
+		 * The bounding box of each ellipsoid, in which the exact ellipsoid is
+		 * ray-cast per fragment. Far fewer vertices than the mesh, for more
+		 * work per fragment.
+		 */
+		IMPOSTOR;
+	}
+
+	/**
+	 * Default value for {@link #getEllipsoidMode()}.
+	 */
+	public static final EllipsoidMode DEFAULT_ELLIPSOID_MODE = EllipsoidMode.MESH;
+
+	private volatile EllipsoidMode ellipsoidMode = DEFAULT_ELLIPSOID_MODE;
+
+	/**
+	 * Default value for {@link #isLevelOfDetail()}.
+	 */
+	public static final boolean DEFAULT_LEVEL_OF_DETAIL = true;
+
+	private volatile boolean levelOfDetail = DEFAULT_LEVEL_OF_DETAIL;
+
+	/**
+	 * Default value for {@link #getTriangleBudget()}: 20 million triangles.
+	 */
+	public static final long DEFAULT_TRIANGLE_BUDGET = 20_000_000L;
+
+	private volatile long triangleBudget = DEFAULT_TRIANGLE_BUDGET;
+
+	/**
+	 * Default value for {@link #isFrustumCulling()}.
+	 */
+	public static final boolean DEFAULT_FRUSTUM_CULLING = true;
+
+	private volatile boolean frustumCulling = DEFAULT_FRUSTUM_CULLING;
+
+	/**
+	 * Default value for {@link #getCullingTolerance()}.
+	 */
+	public static final double DEFAULT_CULLING_TOLERANCE = 0.25;
+
+	private volatile double cullingTolerance = DEFAULT_CULLING_TOLERANCE;
+
+	/**
+	 * Default value for {@link #isGpuCulling()}.
+	 */
+	public static final boolean DEFAULT_GPU_CULLING = false;
+
+	private volatile boolean gpuCulling = DEFAULT_GPU_CULLING;
+
+	/**
+	 * Default value for {@link #getLinkWidth()}, in pixels.
+	 */
+	public static final double DEFAULT_LINK_WIDTH = 2.;
+
+	private volatile double linkWidth = DEFAULT_LINK_WIDTH;
+
+	/**
+	 * Default value for {@link #getTrackWindow()}, in timepoints.
+	 */
+	public static final int DEFAULT_TRACK_WINDOW = 10;
+
+	private volatile int trackWindow = DEFAULT_TRACK_WINDOW;
+
+	/**
+	 * Default value for {@link #isParallelBufferGeneration()}.
+	 */
+	public static final boolean DEFAULT_PARALLEL_BUFFER_GENERATION = true;
+
+	/**
+	 * Default value for {@link #isCompactInstanceLayout()}.
+	 */
+	public static final boolean DEFAULT_COMPACT_INSTANCE_LAYOUT = false;
+
+	private volatile boolean parallelBufferGeneration = DEFAULT_PARALLEL_BUFFER_GENERATION;
+
+	private volatile boolean compactInstanceLayout = DEFAULT_COMPACT_INSTANCE_LAYOUT;
+
+	/**
+	 * Default value for {@link #isPersistentMapping()}.
+	 */
+	public static final boolean DEFAULT_PERSISTENT_MAPPING = false;
+
+	private volatile boolean persistentMapping = DEFAULT_PERSISTENT_MAPPING;
+
+	/**
+	 * Default value for {@link #getPrefetchWindow()}.
+	 */
+	public static final int DEFAULT_PREFETCH_WINDOW = 2;
+
+	private volatile int prefetchWindow = DEFAULT_PREFETCH_WINDOW;
+
+	/**
+	 * Default value for {@link #getGpuMemoryBudget()}: 512 MB.
+	 */
+	public static final long DEFAULT_GPU_MEMORY_BUDGET = 512L << 20;
+
+	private volatile long gpuMemoryBudget = DEFAULT_GPU_MEMORY_BUDGET;
+
+	private final Listeners.List< UpdateListener > updateListeners = new Listeners.SynchronizedList<>();
+
+	public Listeners< UpdateListener > updateListeners()
+	{
+		return updateListeners;
+	}
+
+	private void notifyListeners()
+	{
+		for ( final UpdateListener l : updateListeners.list )
+			l.optionsChanged();
+	}
+
+	/**
+	 * Returns whether the instance buffers of a frame are generated by several
+	 * threads.
+	 *
+	 * @return <code>true</code> if buffer generation is parallel.
+	 */
+	public boolean isParallelBufferGeneration()
+	{
+		return parallelBufferGeneration;
+	}
+
+	/**
+	 * Sets whether the instance buffers of a frame are generated by several
+	 * threads of the common fork-join pool. Small frames are always generated
+	 * on the calling thread.
+	 * <p>
+	 * In parallel mode, the shapes and positions of the vertices are read
+	 * concurrently, with distinct vertex refs, while the graph read lock is
+	 * held. The selection model and the color generator are still queried by
+	 * a single thread.
+	 *
+	 * @param parallelBufferGeneration
+	 *            whether to generate buffers in parallel.
+	 */
+	public void setParallelBufferGeneration( final boolean parallelBufferGeneration )
+	{
+		if ( this.parallelBufferGeneration != parallelBufferGeneration )
+		{
+			this.parallelBufferGeneration = parallelBufferGeneration;
+			notifyListeners();
+		}
+	}
+
+	/**
+	 * Returns whether the shape and translation of the instances are stored
+	 * in a single interleaved buffer, with the shape matrix as half-floats.
+	 *
+	 * @return <code>true</code> if the compact layout is used.
+	 */
+	public boolean isCompactInstanceLayout()
+	{
+		return compactInstanceLayout;
+	}
+
+	/**
+	 * Sets whether the shape and translation of the instances are stored in a
+	 * single interleaved buffer, with the shape matrix as half-floats. This
+	 * uses 48 bytes per instance on the GPU, colors included, against 64 bytes
+	 * for the default layout.
+	 *
+	 * @param compactInstanceLayout
+	 *            whether to use the compact layout.
+	 */
+	public void setCompactInstanceLayout( final boolean compactInstanceLayout )
+	{
+		if ( this.compactInstanceLayout != compactInstanceLayout )
+		{
+			this.compactInstanceLayout = compactInstanceLayout;
+			notifyListeners();
+		}
+	}
+
+	/**
+	 * Returns how the ellipsoids of the spots are drawn.
+	 *
+	 * @return the ellipsoid mode.
+	 */
+	public EllipsoidMode getEllipsoidMode()
+	{
+		return ellipsoidMode;
+	}
+
+	/**
+	 * Sets how the ellipsoids of the spots are drawn. The instance buffers
+	 * are the same for all the modes.
+	 *
+	 * @param ellipsoidMode
+	 *            the ellipsoid mode.
+	 */
+	public void setEllipsoidMode( final EllipsoidMode ellipsoidMode )
+	{
+		this.ellipsoidMode = ellipsoidMode;
+	}
+
+	/**
+	 * Returns whether the mesh of each ellipsoid depends on its size on the
+	 * screen.
+	 *
+	 * @return <code>true</code> if the level of detail is adapted.
+	 */
+	public boolean isLevelOfDetail()
+	{
+		return levelOfDetail;
+	}
+
+	/**
+	 * Sets whether the mesh of each ellipsoid depends on its size on the
+	 * screen, in {@link EllipsoidMode#MESH} mode. Ellipsoids smaller than
+	 * half a pixel are drawn as points, and the larger ones with 20 to 1280
+	 * triangles. Otherwise, all of them are drawn with 320 triangles.
+	 *
+	 * @param levelOfDetail
+	 *            whether to adapt the level of detail.
+	 */
+	public void setLevelOfDetail( final boolean levelOfDetail )
+	{
+		this.levelOfDetail = levelOfDetail;
+	}
+
+	/**
+	 * Returns the max number of triangles drawn per frame when the level of
+	 * detail is adapted.
+	 *
+	 * @return the triangle budget.
+	 */
+	public long getTriangleBudget()
+	{
+		return triangleBudget;
+	}
+
+	/**
+	 * Sets the max number of triangles drawn per frame when the level of
+	 * detail is adapted. If the ellipsoids would need more, they are all
+	 * drawn with coarser meshes.
+	 *
+	 * @param triangleBudget
+	 *            the triangle budget.
+	 */
+	public void setTriangleBudget( final long triangleBudget )
+	{
+		this.triangleBudget = triangleBudget;
+	}
+
+	/**
+	 * Returns whether the spots outside of the view are skipped.
+	 *
+	 * @return <code>true</code> if the spots are culled.
+	 */
+	public boolean isFrustumCulling()
+	{
+		return frustumCulling;
+	}
+
+	/**
+	 * Sets whether the spots outside of the view are skipped. The visible
+	 * spots are found with the spatial index of each frame, in a frustum
+	 * larger than the view by the culling tolerance, and only searched again
+	 * when the view leaves this frustum.
+	 *
+	 * @param frustumCulling
+	 *            whether to cull the spots.
+	 */
+	public void setFrustumCulling( final boolean frustumCulling )
+	{
+		this.frustumCulling = frustumCulling;
+	}
+
+	/**
+	 * Returns by how much the frustum of the visible spots extends beyond the
+	 * view, as a fraction of the view size.
+	 *
+	 * @return the culling tolerance.
+	 */
+	public double getCullingTolerance()
+	{
+		return cullingTolerance;
+	}
+
+	/**
+	 * Sets by how much the frustum of the visible spots extends beyond the
+	 * view, as a fraction of the view size on each side. A larger tolerance
+	 * draws more spots, but searches them less often when the camera moves.
+	 *
+	 * @param cullingTolerance
+	 *            the culling tolerance, 0 or more.
+	 */
+	public void setCullingTolerance( final double cullingTolerance )
+	{
+		this.cullingTolerance = cullingTolerance;
+	}
+
+	/**
+	 * Returns whether the spots are culled and sorted by level of detail on
+	 * the GPU.
+	 *
+	 * @return <code>true</code> if the GPU culling is requested.
+	 */
+	public boolean isGpuCulling()
+	{
+		return gpuCulling;
+	}
+
+	/**
+	 * Sets whether the spots are culled and sorted by level of detail on the
+	 * GPU, with a compute shader, and drawn with indirect draw commands. This
+	 * requires OpenGL 4.3; the spots are culled and sorted on the CPU when it
+	 * is not supported. The view frustum is then exact at each render, and
+	 * the culling tolerance and the triangle budget are ignored.
+	 *
+	 * @param gpuCulling
+	 *            whether to cull the spots on the GPU.
+	 */
+	public void setGpuCulling( final boolean gpuCulling )
+	{
+		this.gpuCulling = gpuCulling;
+	}
+
+	/**
+	 * Returns the width of the links on the screen.
+	 *
+	 * @return the link width, in pixels.
+	 */
+	public double getLinkWidth()
+	{
+		return linkWidth;
+	}
+
+	/**
+	 * Sets the width of the links on the screen. The links are drawn as lines
+	 * of constant width, whatever their distance to the camera.
+	 *
+	 * @param linkWidth
+	 *            the link width, in pixels.
+	 */
+	public void setLinkWidth( final double linkWidth )
+	{
+		this.linkWidth = linkWidth;
+	}
+
+	/**
+	 * Returns the length of the track history drawn before the current
+	 * timepoint.
+	 *
+	 * @return the track window, in timepoints.
+	 */
+	public int getTrackWindow()
+	{
+		return trackWindow;
+	}
+
+	/**
+	 * Sets the length of the track history drawn before the current
+	 * timepoint. Only the links whose latest vertex is in the window are
+	 * drawn, darker as they get older.
+	 *
+	 * @param trackWindow
+	 *            the track window, in timepoints.
+	 */
+	public void setTrackWindow( final int trackWindow )
+	{
+		this.trackWindow = trackWindow;
+	}
+
+	/**
+	 * Returns whether instance data is uploaded through a persistently mapped
+	 * staging buffer.
+	 *
+	 * @return <code>true</code> if persistent mapping is requested.
+	 */
+	public boolean isPersistentMapping()
+	{
+		return persistentMapping;
+	}
+
+	/**
+	 * Sets whether instance data is uploaded through a staging buffer mapped
+	 * persistently in client memory, instead of with
+	 * <code>glBufferSubData</code>. Edits are then copied once by the CPU in
+	 * the mapped memory, like <code>glBufferSubData</code> copies them in
+	 * driver memory, and moved by the GPU, which avoids implicit
+	 * synchronizations when many edits are streamed. Requires
+	 * <code>ARB_buffer_storage</code> (OpenGL 4.4); ignored if the context
+	 * does not support it.
+	 *
+	 * @param persistentMapping
+	 *            whether to use persistent mapping.
+	 */
+	public void setPersistentMapping( final boolean persistentMapping )
+	{
+		if ( this.persistentMapping != persistentMapping )
+		{
+			this.persistentMapping = persistentMapping;
+			notifyListeners();
+		}
+	}
+
+	/**
+	 * Returns the number of timepoints before and after the current one whose
+	 * buffers are prepared in the background.
+	 *
+	 * @return the prefetch window.
+	 */
+	public int getPrefetchWindow()
+	{
+		return prefetchWindow;
+	}
+
+	/**
+	 * Sets the number of timepoints before and after the current one whose
+	 * buffers are prepared in the background, so that stepping through time
+	 * does not wait for buffer generation. The timepoints ahead in the
+	 * direction of the last time step are prepared first. Set to 0 to disable
+	 * prefetching.
+	 *
+	 * @param prefetchWindow
+	 *            the prefetch window, in timepoints.
+	 */
+	public void setPrefetchWindow( final int prefetchWindow )
+	{
+		this.prefetchWindow = Math.max( 0, prefetchWindow );
+	}
+
+	/**
+	 * Returns the max number of bytes of GPU memory used by the buffers of
+	 * the frames.
+	 *
+	 * @return the GPU memory budget, in bytes.
+	 */
+	public long getGpuMemoryBudget()
+	{
+		return gpuMemoryBudget;
+	}
+
+	/**
+	 * Sets the max number of bytes of GPU memory used by the buffers of the
+	 * frames. When it is exceeded, the frames rendered least recently are
+	 * evicted: their GPU and CPU buffers are released, and they are
+	 * regenerated if they are displayed again. If that is not enough, the
+	 * frames of the prefetch window release their GPU buffers, the farthest
+	 * first, and upload them again when they are displayed. Only the current
+	 * frame is always kept, so the budget is only exceeded if it does not fit
+	 * in it alone.
+	 *
+	 * @param gpuMemoryBudget
+	 *            the GPU memory budget, in bytes.
+	 */
+	public void setGpuMemoryBudget( final long gpuMemoryBudget )
+	{
+		this.gpuMemoryBudget = gpuMemoryBudget;
+	}
+}
@@ -1,7 +1,15 @@
 package org.mastodon.views.bvv.scene;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
 import java.util.function.Supplier;
 
 import org.mastodon.model.FocusModel;
@@ -16,11 +24,16 @@ import org.mastodon.views.bdv.overlay.OverlayVertex;
 import org.mastodon.views.bdv.overlay.RenderSettings;
 import org.mastodon.views.bdv.overlay.Visibilities;
 import org.mastodon.views.bdv.overlay.Visibilities.VisibilityMode;
+import org.scijava.listeners.Listeners;
 
 import com.jogamp.opengl.GL3;
+import com.jogamp.opengl.GLAutoDrawable;
+import com.jogamp.opengl.GLEventListener;
 
 import bvv.core.VolumeViewerPanel.RenderScene;
 import bvv.core.render.RenderData;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TIntObjectHashMap;
 
 /**
  * 3D overlay of the graph using OpenGL.
@@ -34,10 +47,18 @@ public class OverlaySceneRenderer< V extends OverlayVertex< V, E >, E extends Ov
 		implements RenderScene
 {
 
+	/**
+	 * Number of threads regenerating frame buffers. Each regeneration is
+	 * itself parallel.
+	 */
+	private static final int N_WORKERS = 2;
+
 	private final OverlayGraph< V, E > graph;
 
 	private final HighlightModel< V, E > highlight;
 
+	private final FocusModel< V > focus;
+
 	private final SelectionModel< V, E > selection;
 
 	private final GraphColorGenerator< V, E > coloring;
@@ -46,8 +67,72 @@ public class OverlaySceneRenderer< V extends OverlayVertex< V, E >, E extends Ov
 
 	private final Visibilities< V, E > visibilities;
 
+	private final OverlayRenderOptions options;
+
+	private final ShapeCache shapeCache;
+
+	private final InstanceIndexMap indexMap;
+
+	private final DirectBufferPool bufferPool;
+
 	private final Map< Integer, FrameRenderer< V > > renderers;
 
+	/**
+	 * The links of the whole graph, drawn in a time window.
+	 */
+	private final LinkRenderer< V, E > links;
+
+	/**
+	 * Regenerates the frame buffers in the background.
+	 */
+	private final ExecutorService executor;
+
+	private final Listeners.List< DataReadyListener > dataReadyListeners = new Listeners.SynchronizedList<>();
+
+	private volatile boolean stopped = false;
+
+	/**
+	 * The instance buffers of all the frames. Created on the GL thread.
+	 */
+	private InstanceArena arena;
+
+	/**
+	 * The shader programs of the GL context, shared with the other scenes
+	 * drawing in it. Acquired on the GL thread.
+	 */
+	private ShaderPrograms programs;
+
+	/**
+	 * The timepoint rendered last.
+	 */
+	private int lastTimepoint = -1;
+
+	/**
+	 * The direction of the last time step, -1, 0 or 1.
+	 */
+	private int direction = 0;
+
+	/**
+	 * The number of timepoints of the dataset. No frame is prefetched past
+	 * the last one.
+	 */
+	private volatile int numTimepoints = Integer.MAX_VALUE;
+
+	/**
+	 * Creates the vertex lookups of the workers generating the frame buffers
+	 * in parallel, or <code>null</code>.
+	 */
+	private volatile Supplier< VertexLookup< V > > vertexLookups;
+
+	/**
+	 * Notified when buffers regenerated in the background are ready to be
+	 * uploaded. The scene must then be repainted.
+	 */
+	public interface DataReadyListener
+	{
+		public void dataReady();
+	}
+
 	public OverlaySceneRenderer( final OverlayGraph< V, E > graph,
 			final HighlightModel< V, E > highlight,
 			final FocusModel< V > focus,
@@ -57,24 +142,183 @@ public class OverlaySceneRenderer< V extends OverlayVertex< V, E >, E extends Ov
 	{
 		this.graph = graph;
 		this.highlight = highlight;
+		this.focus = focus;
 		this.selection = selection;
 		this.coloring = coloring;
 		this.visibilities = new Visibilities<>( graph, selection, focus, graph.getLock() );
 		this.settings = renderSettings;
-		this.renderers = new HashMap<>();
+		this.options = new OverlayRenderOptions();
+		this.shapeCache = new ShapeCache();
+		this.indexMap = new InstanceIndexMap();
+		this.bufferPool = new DirectBufferPool();
+		this.renderers = new ConcurrentHashMap<>();
+		this.executor = Executors.newFixedThreadPool( N_WORKERS, new ThreadFactory()
+		{
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread( final Runnable r )
+			{
+				final Thread thread = new Thread( r, "Mastodon BVV overlay buffers " + count.incrementAndGet() );
+				thread.setDaemon( true );
+				return thread;
+			}
+		} );
+		this.links = new LinkRenderer<>( graph, graph.getLock().readLock(), selection, coloring, settings, options, bufferPool, executor, this::notifyDataReady );
+		options.updateListeners().add( () -> rebuildFrames() );
 	}
 
 	@Override
 	public void render( final GL3 gl, final RenderData data )
 	{
+		if ( stopped )
+		{
+			dispose( gl );
+			return;
+		}
 		if ( visibilities.getMode() == VisibilityMode.NONE )
 			return;
-		if ( !settings.getDrawSpots() )
+		if ( !settings.getDrawSpots() && !settings.getDrawLinks() )
 			return;
 
 		final int t = data.getTimepoint();
+		// Create the arena, or recreate it if the options changed.
+		if ( arena == null || !arena.matches( options ) )
+		{
+			/*
+			 * Init the new arena before disposing of the old one, so that the
+			 * shared mesh buffers are not released and uploaded again. It is
+			 * only used if its init succeeds.
+			 */
+			final InstanceArena created = new InstanceArena( InstanceLayout.create( options ), bufferPool, options.isPersistentMapping() );
+			created.init( gl );
+			final InstanceArena old = arena;
+			arena = created;
+			if ( old != null )
+				old.dispose( gl );
+		}
+		if ( programs == null )
+			programs = ShaderPrograms.acquire( gl );
+
 		final FrameRenderer< V > renderer = renderers.computeIfAbsent( t, tp -> createRenderer( tp ) );
-		renderer.render( gl, data );
+		if ( settings.getDrawSpots() )
+			renderSpots( gl, data, renderer );
+		if ( settings.getDrawLinks() )
+			links.render( gl, data, programs );
+		arena.endFrame( gl );
+		prefetch( t );
+		enforceGpuMemoryBudget( gl, t );
+	}
+
+	/**
+	 * Draws the spots of the specified frame. The highlighted and focused
+	 * spots are passed to the shaders as instance indices, so that changing
+	 * them only costs a lookup.
+	 */
+	private void renderSpots( final GL3 gl, final RenderData data, final FrameRenderer< V > renderer )
+	{
+		int highlightedId = -1;
+		int focusedId = -1;
+		final V ref = graph.vertexRef();
+		final Lock lock = graph.getLock().readLock();
+		lock.lock();
+		try
+		{
+			final V hv = highlight.getHighlightedVertex( ref );
+			if ( hv != null )
+				highlightedId = hv.getInternalPoolIndex();
+			final V fv = focus.getFocusedVertex( ref );
+			if ( fv != null )
+				focusedId = fv.getInternalPoolIndex();
+		}
+		finally
+		{
+			lock.unlock();
+			graph.releaseRef( ref );
+		}
+		renderer.render( gl, data, arena, programs, highlightedId, focusedId );
+	}
+
+	/**
+	 * Frees GPU memory until the frames fit in the budget. The frames outside
+	 * the prefetch window around the specified timepoint are evicted first,
+	 * the ones rendered least recently first. Then the frames of the prefetch
+	 * window release their GPU buffers, the farthest first, but keep their
+	 * instance data. Only the frame of the specified timepoint is kept in any
+	 * case, including the bytes the arena had no room for.
+	 */
+	private void enforceGpuMemoryBudget( final GL3 gl, final int t )
+	{
+		// The buffer textures of the arena cannot address more.
+		final long budget = Math.min( options.getGpuMemoryBudget(), arena.maxBytes() );
+		long total = 0;
+		for ( final FrameRenderer< V > renderer : renderers.values() )
+			total += renderer.getRequiredGpuBytes();
+		if ( total <= budget )
+			return;
+
+		final int window = options.getPrefetchWindow();
+		final List< Map.Entry< Integer, FrameRenderer< V > > > outside = new ArrayList<>();
+		final List< Map.Entry< Integer, FrameRenderer< V > > > inside = new ArrayList<>();
+		for ( final Map.Entry< Integer, FrameRenderer< V > > entry : renderers.entrySet() )
+		{
+			if ( entry.getKey() == t || entry.getValue().getGpuBytes() == 0 )
+				continue;
+			if ( Math.abs( entry.getKey() - t ) > window )
+				outside.add( entry );
+			else
+				inside.add( entry );
+		}
+
+		outside.sort( Comparator.comparingLong( e -> e.getValue().getLastRenderTime() ) );
+		for ( final Map.Entry< Integer, FrameRenderer< V > > entry : outside )
+		{
+			if ( total <= budget )
+				return;
+			final FrameRenderer< V > renderer = entry.getValue();
+			total -= renderer.getGpuBytes();
+			renderers.remove( entry.getKey() );
+			renderer.evict( gl );
+		}
+
+		// Farthest first, and behind the direction of navigation first.
+		final Comparator< Map.Entry< Integer, FrameRenderer< V > > > farthest = Comparator.comparingInt( e -> -Math.abs( e.getKey() - t ) );
+		inside.sort( farthest.thenComparingInt( e -> Integer.signum( e.getKey() - t ) == direction ? 1 : 0 ) );
+		for ( final Map.Entry< Integer, FrameRenderer< V > > entry : inside )
+		{
+			if ( total <= budget )
+				return;
+			final FrameRenderer< V > renderer = entry.getValue();
+			total -= renderer.getGpuBytes();
+			renderer.releaseGpuBuffers( gl );
+		}
+	}
+
+	/**
+	 * Prepares the buffers of the timepoints around the specified one in the
+	 * background, ahead in the direction of navigation first.
+	 */
+	private void prefetch( final int t )
+	{
+		if ( t != lastTimepoint )
+		{
+			direction = ( lastTimepoint < 0 ) ? 0 : Integer.signum( t - lastTimepoint );
+			lastTimepoint = t;
+		}
+
+		final int window = options.getPrefetchWindow();
+		final int ahead = direction < 0 ? -1 : 1;
+		for ( int d = 1; d <= window; d++ )
+			prefetchFrame( t + ahead * d );
+		for ( int d = 1; d <= window; d++ )
+			prefetchFrame( t - ahead * d );
+	}
+
+	private void prefetchFrame( final int t )
+	{
+		if ( t < 0 || t >= numTimepoints )
+			return;
+		renderers.computeIfAbsent( t, tp -> createRenderer( tp ) ).prefetch();
 	}
 
 	private FrameRenderer< V > createRenderer( final int t )
@@ -84,13 +328,84 @@ public class OverlaySceneRenderer< V extends OverlayVertex< V, E >, E extends Ov
 		final FrameRenderer< V > renderer = new FrameRenderer<>(
 				dataSupplier,
 				index.readLock(),
-				highlight,
 				selection,
 				coloring,
-				settings );
+				settings,
+				options,
+				shapeCache,
+				indexMap,
+				bufferPool,
+				vertexLookups,
+				executor,
+				this::notifyDataReady );
 		return renderer;
 	}
 
+	/**
+	 * Returns the options used to generate and render the overlay of this
+	 * scene.
+	 *
+	 * @return the options.
+	 */
+	public OverlayRenderOptions getOptions()
+	{
+		return options;
+	}
+
+	/**
+	 * Sets the number of timepoints of the dataset, so that only existing
+	 * timepoints are prefetched. Unbounded by default.
+	 *
+	 * @param numTimepoints
+	 *            the number of timepoints.
+	 */
+	public void setNumTimepoints( final int numTimepoints )
+	{
+		this.numTimepoints = numTimepoints;
+	}
+
+	/**
+	 * Sets how the workers generating the frame buffers in parallel find the
+	 * vertices of the graph. Without it, the buffers are generated serially,
+	 * whatever {@link OverlayRenderOptions#isParallelBufferGeneration()}
+	 * says. Must be called before the first render.
+	 *
+	 * @param vertexLookups
+	 *            creates a new vertex lookup for each worker.
+	 */
+	public void setVertexLookups( final Supplier< VertexLookup< V > > vertexLookups )
+	{
+		this.vertexLookups = vertexLookups;
+	}
+
+	/**
+	 * Returns the listeners notified when buffers regenerated in the
+	 * background are ready to be uploaded. The scene must then be repainted.
+	 *
+	 * @return the listeners.
+	 */
+	public Listeners< DataReadyListener > dataReadyListeners()
+	{
+		return dataReadyListeners;
+	}
+
+	private void notifyDataReady()
+	{
+		for ( final DataReadyListener l : dataReadyListeners.list )
+			l.dataReady();
+	}
+
+	/**
+	 * Returns the pool of direct buffers used to generate the overlay of this
+	 * scene. Its cap and its statistics can be inspected and tuned there.
+	 *
+	 * @return the buffer pool.
+	 */
+	public DirectBufferPool getBufferPool()
+	{
+		return bufferPool;
+	}
+
 	/**
 	 * Signals that the color should be updated.
 	 */
@@ -104,20 +419,79 @@ public class OverlaySceneRenderer< V extends OverlayVertex< V, E >, E extends Ov
 
 			renderer.updateColors();
 		}
+		links.updateColors();
+	}
+
+	/**
+	 * Signals that the selection changed. Only the instances whose selection
+	 * state changed are recolored. Use {@link #updateColors()} when the
+	 * coloring itself changed.
+	 */
+	public void updateSelection()
+	{
+		// Spot ids of the selected vertices, per timepoint, and edge ids of
+		// the selected links.
+		final TIntObjectHashMap< TIntArrayList > selectedIds = new TIntObjectHashMap<>();
+		final TIntArrayList selectedLinkIds = new TIntArrayList();
+		final Lock lock = graph.getLock().readLock();
+		lock.lock();
+		try
+		{
+			for ( final V v : selection.getSelectedVertices() )
+			{
+				final int t = v.getTimepoint();
+				TIntArrayList ids = selectedIds.get( t );
+				if ( ids == null )
+				{
+					ids = new TIntArrayList();
+					selectedIds.put( t, ids );
+				}
+				ids.add( v.getInternalPoolIndex() );
+			}
+			for ( final E e : selection.getSelectedEdges() )
+				selectedLinkIds.add( e.getInternalPoolIndex() );
+		}
+		finally
+		{
+			lock.unlock();
+		}
+		links.updateSelection( selectedLinkIds );
+
+		final TIntArrayList none = new TIntArrayList();
+		for ( final Integer t : renderers.keySet() )
+		{
+			final FrameRenderer< V > renderer = renderers.get( t );
+			if ( renderer == null )
+				continue;
+
+			final TIntArrayList ids = selectedIds.get( t );
+			renderer.updateSelection( ids == null ? none : ids );
+		}
 	}
 
+	/**
+	 * Signals that the specified vertex moved. Its instance and the instances
+	 * of its links are updated, without regenerating the buffers. Called by
+	 * the graph listeners, which hold the graph lock.
+	 * 
+	 * @param v
+	 *            the vertex.
+	 */
 	public void updatePosition( final V v )
 	{
 		final int t = v.getTimepoint();
 		final FrameRenderer< V > renderer = renderers.get( t );
-		if ( renderer == null )
-			return;
+		if ( renderer != null )
+			renderer.updatePosition( v );
 
-		renderer.updatePosition( v );
+		// The links of the vertex.
+		for ( final E e : v.edges() )
+			links.updateLink( e );
 	}
 
 	public void updateShape( final V v )
 	{
+		shapeCache.invalidate( v.getInternalPoolIndex() );
 		final int t = v.getTimepoint();
 		final FrameRenderer< V > renderer = renderers.get( t );
 		if ( renderer == null )
@@ -126,6 +500,62 @@ public class OverlaySceneRenderer< V extends OverlayVertex< V, E >, E extends Ov
 		renderer.updateShape( v );
 	}
 
+	/**
+	 * Signals that the specified vertex has been added to the graph. Its
+	 * instance is appended to the frame buffers, without regenerating them.
+	 * 
+	 * @param v
+	 *            the vertex.
+	 */
+	public void vertexAdded( final V v )
+	{
+		// Pool indices are recycled.
+		shapeCache.invalidate( v.getInternalPoolIndex() );
+		final FrameRenderer< V > renderer = renderers.get( v.getTimepoint() );
+		if ( renderer != null )
+			renderer.addVertex( v );
+	}
+
+	/**
+	 * Signals that the specified vertex is about to be removed from the graph.
+	 * Its instance is removed from the frame buffers, without regenerating
+	 * them. The graph signals the removal of its edges before.
+	 * 
+	 * @param v
+	 *            the vertex.
+	 */
+	public void vertexRemoved( final V v )
+	{
+		shapeCache.invalidate( v.getInternalPoolIndex() );
+		final FrameRenderer< V > renderer = renderers.get( v.getTimepoint() );
+		if ( renderer != null )
+			renderer.removeVertex( v );
+	}
+
+	/**
+	 * Signals that the specified edge has been added to the graph. Its link
+	 * instance is appended to the links, without regenerating them.
+	 * 
+	 * @param e
+	 *            the edge.
+	 */
+	public void edgeAdded( final E e )
+	{
+		links.addLink( e );
+	}
+
+	/**
+	 * Signals that the specified edge is about to be removed from the graph.
+	 * Its link instance is removed, without regenerating the other links.
+	 * 
+	 * @param e
+	 *            the edge.
+	 */
+	public void edgeRemoved( final E e )
+	{
+		links.removeLink( e );
+	}
+
 	public void rebuild( final int t )
 	{
 		final FrameRenderer< V > renderer = renderers.get( t );
@@ -134,12 +564,46 @@ public class OverlaySceneRenderer< V extends OverlayVertex< V, E >, E extends Ov
 	}
 
 	public void rebuild()
+	{
+		// The whole graph changed.
+		shapeCache.clear();
+		rebuildFrames();
+		links.rebuild();
+	}
+
+	private void rebuildFrames()
 	{
 		// Mark everything for update.
 		for ( final Integer t : renderers.keySet() )
 			rebuild( t );
 	}
 
+	/**
+	 * Stops this scene and releases its GL resources on the GL thread of the
+	 * specified drawable, without waiting for it. They are released at the
+	 * next display of the drawable, or when it is destroyed, whichever comes
+	 * first. Can be called from any thread.
+	 *
+	 * @param drawable
+	 *            the drawable this scene renders in.
+	 */
+	public void stop( final GLAutoDrawable drawable )
+	{
+		stop();
+		final GLEventListener disposer = new Disposer();
+		drawable.addGLEventListener( disposer );
+		drawable.invoke( false, d -> {
+			d.removeGLEventListener( disposer );
+			dispose( d.getGL().getGL3() );
+			return true;
+		} );
+	}
+
+	/**
+	 * Stops this scene. Its GL resources are released at the next render, if
+	 * there is one. Use {@link #stop(GLAutoDrawable)} to release them for
+	 * sure.
+	 */
 	public void stop()
 	{
 		for ( final Integer t : renderers.keySet() )
@@ -150,5 +614,53 @@ public class OverlaySceneRenderer< V extends OverlayVertex< V, E >, E extends Ov
 
 			renderer.stop();
 		}
+		links.stop();
+		stopped = true;
+		executor.shutdown();
+	}
+
+	/**
+	 * Releases the GL resources of this scene when its drawable is destroyed
+	 * before displaying again, with the context current.
+	 */
+	private class Disposer implements GLEventListener
+	{
+
+		@Override
+		public void init( final GLAutoDrawable drawable )
+		{}
+
+		@Override
+		public void display( final GLAutoDrawable drawable )
+		{}
+
+		@Override
+		public void reshape( final GLAutoDrawable drawable, final int x, final int y, final int width, final int height )
+		{}
+
+		@Override
+		public void dispose( final GLAutoDrawable drawable )
+		{
+			OverlaySceneRenderer.this.dispose( drawable.getGL().getGL3() );
+		}
+	}
+
+	/**
+	 * Releases the GL resources of all the frames and of the links, and the
+	 * shared resources of the context. Must be called on the GL thread. Does
+	 * nothing if they were already released.
+	 */
+	private void dispose( final GL3 gl )
+	{
+		for ( final FrameRenderer< V > renderer : renderers.values() )
+			renderer.evict( gl );
+		renderers.clear();
+		links.dispose( gl );
+		if ( arena != null )
+			arena.dispose( gl );
+		arena = null;
+		if ( programs != null )
+			programs.release( gl );
+		programs = null;
 	}
 }
@@ -0,0 +1,249 @@
+package org.mastodon.views.bvv.scene;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import gnu.trove.list.array.TIntArrayList;
+
+/**
+ * Schedules the background regenerations of the buffers of a renderer, and
+ * hands the state changed by the listener threads over to the GL thread.
+ * <p>
+ * At most one regeneration job of a renderer runs at a time. A full
+ * regeneration also regenerates the colors. The requests, the pending
+ * selection and the close flag are written by the listener threads and read
+ * on the GL thread.
+ * <p>
+ * The searches of the visible instances in a view frustum are jobs too, so
+ * that they do not block the GL thread. They are requested on the GL thread
+ * and run after the pending regenerations.
+ */
+class RegenJobs
+{
+
+	private final ExecutorService executor;
+
+	private final Runnable regenAll;
+
+	private final Runnable regenColors;
+
+	/**
+	 * Searches the visible instances in a frustum, or <code>null</code>.
+	 */
+	private final Consumer< ViewFrustum > clip;
+
+	/**
+	 * Called when a regeneration job completes.
+	 */
+	private final Runnable dataReady;
+
+	private volatile boolean doRegenAll = true;
+
+	private volatile boolean doRegenColor;
+
+	private volatile boolean closed;
+
+	/**
+	 * The ids of the selected items, if the selection changed since it was
+	 * last taken.
+	 */
+	private final AtomicReference< TIntArrayList > pendingSelection = new AtomicReference<>();
+
+	/**
+	 * The frustum of the last search requested, if it was not started yet.
+	 */
+	private final AtomicReference< ViewFrustum > pendingClip = new AtomicReference<>();
+
+	/**
+	 * Whether a search of the visible instances is running.
+	 */
+	private volatile boolean clipping;
+
+	/**
+	 * The last regeneration job submitted.
+	 */
+	private Future< ? > job;
+
+	/**
+	 * Creates the jobs of a renderer. A full regeneration is requested.
+	 *
+	 * @param executor
+	 *            runs the regenerations.
+	 * @param regenAll
+	 *            regenerates all the buffers.
+	 * @param regenColors
+	 *            regenerates the colors.
+	 * @param dataReady
+	 *            called when a regeneration job completes.
+	 */
+	RegenJobs( final ExecutorService executor, final Runnable regenAll, final Runnable regenColors, final Runnable dataReady )
+	{
+		this( executor, regenAll, regenColors, null, dataReady );
+	}
+
+	/**
+	 * Creates the jobs of a renderer that searches its visible instances in
+	 * the background. A full regeneration is requested.
+	 *
+	 * @param executor
+	 *            runs the regenerations and the searches.
+	 * @param regenAll
+	 *            regenerates all the buffers.
+	 * @param regenColors
+	 *            regenerates the colors.
+	 * @param clip
+	 *            searches the visible instances in a frustum, or
+	 *            <code>null</code>.
+	 * @param dataReady
+	 *            called when a job completes.
+	 */
+	RegenJobs( final ExecutorService executor, final Runnable regenAll, final Runnable regenColors, final Consumer< ViewFrustum > clip, final Runnable dataReady )
+	{
+		this.executor = executor;
+		this.regenAll = regenAll;
+		this.regenColors = regenColors;
+		this.clip = clip;
+		this.dataReady = dataReady;
+	}
+
+	void requestRegenAll()
+	{
+		doRegenAll = true;
+	}
+
+	void requestRegenColors()
+	{
+		doRegenColor = true;
+	}
+
+	/**
+	 * Stores the ids of the selected items, superseding the previous ones if
+	 * they were not taken yet.
+	 */
+	void updateSelection( final TIntArrayList selectedIds )
+	{
+		pendingSelection.set( selectedIds );
+	}
+
+	/**
+	 * Returns the ids of the selected items if the selection changed since
+	 * the last call, or <code>null</code>.
+	 */
+	TIntArrayList takeSelection()
+	{
+		return pendingSelection.getAndSet( null );
+	}
+
+	/**
+	 * Requests a search of the visible instances in the specified frustum,
+	 * superseding the previous request if it was not started yet. Must be
+	 * called on the GL thread.
+	 *
+	 * @param frustum
+	 *            the frustum. It must not be modified afterwards.
+	 */
+	void requestClip( final ViewFrustum frustum )
+	{
+		pendingClip.set( frustum );
+	}
+
+	/**
+	 * Returns whether a search of the visible instances was requested and did
+	 * not complete yet. Until it does, the renderer draws the instances of the
+	 * previous search. Must be called on the GL thread.
+	 */
+	boolean isClipping()
+	{
+		return clipping || pendingClip.get() != null;
+	}
+
+	/**
+	 * Signals that the renderer must release its resources at its next
+	 * render. No job is submitted afterwards.
+	 */
+	void close()
+	{
+		closed = true;
+	}
+
+	boolean isClosed()
+	{
+		return closed;
+	}
+
+	/**
+	 * Starts regenerating the buffers or the colors on the executor, if they
+	 * are out of date and if no job is running, or else the requested search
+	 * of the visible instances. Until the job completes, the renderer draws
+	 * the last uploaded data, or nothing. Must be called on the GL thread.
+	 */
+	void submit()
+	{
+		if ( closed || job != null && !job.isDone() )
+			return;
+
+		try
+		{
+			if ( doRegenAll )
+			{
+				// Colors are regenerated too.
+				doRegenAll = false;
+				doRegenColor = false;
+				job = executor.submit( () -> run( regenAll ) );
+			}
+			else if ( doRegenColor )
+			{
+				doRegenColor = false;
+				job = executor.submit( () -> run( regenColors ) );
+			}
+			else if ( clip != null && pendingClip.get() != null )
+			{
+				final ViewFrustum frustum = pendingClip.getAndSet( null );
+				clipping = true;
+				job = executor.submit( () -> runClip( frustum ) );
+			}
+		}
+		catch ( final RejectedExecutionException e )
+		{
+			// The scene was stopped while rendering: nothing to regenerate.
+			clipping = false;
+		}
+	}
+
+	private void runClip( final ViewFrustum frustum )
+	{
+		try
+		{
+			clip.accept( frustum );
+		}
+		catch ( final RuntimeException e )
+		{
+			e.printStackTrace();
+		}
+		finally
+		{
+			// Before the repaint, so that it sees the search as done.
+			clipping = false;
+			dataReady.run();
+		}
+	}
+
+	private void run( final Runnable task )
+	{
+		try
+		{
+			task.run();
+		}
+		catch ( final RuntimeException e )
+		{
+			e.printStackTrace();
+		}
+		finally
+		{
+			dataReady.run();
+		}
+	}
+}
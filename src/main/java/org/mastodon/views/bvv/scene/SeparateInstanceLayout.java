@@ -0,0 +1,70 @@
+package org.mastodon.views.bvv.scene;
+
+import static com.jogamp.opengl.GL3.GL_R32F;
+
+import java.nio.FloatBuffer;
+
+import org.mastodon.views.bvv.scene.OverlayModelUpdateGenerator.OverlayModelUpdate;
+
+import com.jogamp.opengl.GL3;
+
+/**
+ * Shapes and translations in two separate buffers of floats: 9 floats for
+ * the shape matrix and 3 for its inverse squared radii, then 3 floats for the
+ * translation.
+ */
+class SeparateInstanceLayout implements InstanceLayout
+{
+
+	private static final int SHAPE_STRIDE = ShapeMatrices.FLOATS * Float.BYTES;
+
+	private static final int TRANSLATION_STRIDE = 3 * Float.BYTES;
+
+	@Override
+	public int numBuffers()
+	{
+		return 2;
+	}
+
+	@Override
+	public int stride( final int buffer )
+	{
+		return buffer == 0 ? SHAPE_STRIDE : TRANSLATION_STRIDE;
+	}
+
+	@Override
+	public int textureFormat( final int buffer )
+	{
+		return GL_R32F;
+	}
+
+	@Override
+	public String samplerName( final int buffer )
+	{
+		return buffer == 0 ? "shapes" : "translations";
+	}
+
+	@Override
+	public String shaderSegment()
+	{
+		return "instanceSeparate.glsl";
+	}
+
+	@Override
+	public void uploadShapes( final GL3 gl, final BufferUploader uploader, final int[] vbos, final int firstInstance, final OverlayModelUpdate data, final int start, final int end )
+	{
+		final FloatBuffer shapes = data.shapeBuffer.duplicate();
+		shapes.limit( ShapeMatrices.FLOATS * end );
+		shapes.position( ShapeMatrices.FLOATS * start );
+		uploader.upload( gl, vbos[ 0 ], ( long ) ( firstInstance + start ) * SHAPE_STRIDE, shapes );
+	}
+
+	@Override
+	public void uploadPositions( final GL3 gl, final BufferUploader uploader, final int[] vbos, final int firstInstance, final OverlayModelUpdate data, final int start, final int end )
+	{
+		final FloatBuffer translations = data.translationBuffer.duplicate();
+		translations.limit( 3 * end );
+		translations.position( 3 * start );
+		uploader.upload( gl, vbos[ 1 ], ( long ) ( firstInstance + start ) * TRANSLATION_STRIDE, translations );
+	}
+}
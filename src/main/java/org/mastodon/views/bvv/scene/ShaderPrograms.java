@@ -0,0 +1,242 @@
+package org.mastodon.views.bvv.scene;
+
+import static com.jogamp.opengl.GL.GL_FALSE;
+import static com.jogamp.opengl.GL2ES2.GL_COMPILE_STATUS;
+import static com.jogamp.opengl.GL2ES2.GL_INFO_LOG_LENGTH;
+import static com.jogamp.opengl.GL2ES2.GL_LINK_STATUS;
+import static com.jogamp.opengl.GL4.GL_COMPUTE_SHADER;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.mastodon.views.bvv.scene.OverlayRenderOptions.EllipsoidMode;
+
+import com.jogamp.opengl.GL3;
+import com.jogamp.opengl.GL4;
+import com.jogamp.opengl.GLContext;
+import com.jogamp.opengl.GLException;
+
+import bvv.core.shadergen.DefaultShader;
+import bvv.core.shadergen.generate.Segment;
+import bvv.core.shadergen.generate.SegmentTemplate;
+
+/**
+ * The shader programs of the overlay, created once per GL context and shared
+ * by all the frames of all the {@link OverlaySceneRenderer}s drawing in it.
+ * <p>
+ * Contexts sharing their objects share a single registry, weakly keyed by the
+ * master context of their share group, which the registry does not reference.
+ * Each scene renderer acquires the registry of its context on its first
+ * render, and releases it when it is stopped. The compute programs are
+ * deleted when the last user releases the registry.
+ * <p>
+ * The programs of the {@link DefaultShader}s are compiled and owned by the
+ * bvv GPU context of each GL context, which offers no way to delete them:
+ * they are deleted with the GL context. The registry keeps these shaders
+ * until then, so that the scenes acquiring it again reuse them instead of
+ * compiling new programs.
+ * <p>
+ * The programs must only be used on the GL thread.
+ */
+class ShaderPrograms
+{
+
+	private static final Map< GLContext, ShaderPrograms > registry = new WeakHashMap<>();
+
+	private int users;
+
+	/**
+	 * The mesh and impostor programs, by ellipsoid mode and instance layout
+	 * segment, and the link program.
+	 */
+	private final Map< String, DefaultShader > shaders = new HashMap<>();
+
+	/**
+	 * The culling compute programs, by instance layout segment.
+	 */
+	private final Map< String, Integer > cullingPrograms = new HashMap<>();
+
+	private ShaderPrograms()
+	{}
+
+	/**
+	 * Returns the registry of the specified context, created if needed, and
+	 * counts one more user of it. It must be released with
+	 * {@link #release(GL3)}.
+	 *
+	 * @param gl
+	 *            the GL context.
+	 * @return the registry of the shader programs of the context.
+	 */
+	static synchronized ShaderPrograms acquire( final GL3 gl )
+	{
+		final GLContext key = shareGroup( gl );
+		ShaderPrograms programs = registry.get( key );
+		if ( programs == null )
+		{
+			programs = new ShaderPrograms();
+			registry.put( key, programs );
+		}
+		programs.users++;
+		return programs;
+	}
+
+	/**
+	 * Returns the context that identifies the share group of the specified
+	 * context: its shared master, or itself.
+	 */
+	static GLContext shareGroup( final GL3 gl )
+	{
+		final GLContext context = gl.getContext();
+		final GLContext master = context.getSharedMaster();
+		return master == null ? context : master;
+	}
+
+	/**
+	 * Counts one less user of this registry. The last user deletes the
+	 * compute programs. The {@link DefaultShader}s are kept for the next
+	 * users, see the class documentation.
+	 *
+	 * @param gl
+	 *            the GL context it was acquired with.
+	 */
+	void release( final GL3 gl )
+	{
+		synchronized ( ShaderPrograms.class )
+		{
+			if ( --users > 0 )
+				return;
+			for ( final int program : cullingPrograms.values() )
+				gl.glDeleteProgram( program );
+			cullingPrograms.clear();
+		}
+	}
+
+	/**
+	 * Returns the program that draws the ellipsoids in the specified mode,
+	 * reading the instances from buffers of the specified layout.
+	 *
+	 * @param mode
+	 *            the ellipsoid mode.
+	 * @param layout
+	 *            the instance layout.
+	 * @return the shader program.
+	 */
+	DefaultShader shader( final EllipsoidMode mode, final InstanceLayout layout )
+	{
+		return shaders.computeIfAbsent( mode.name() + " " + layout.shaderSegment(), k -> createShader( mode, layout ) );
+	}
+
+	/**
+	 * Returns the program that draws the links.
+	 *
+	 * @return the shader program.
+	 */
+	DefaultShader linkShader()
+	{
+		return shaders.computeIfAbsent( "links", k -> createLinkShader() );
+	}
+
+	/**
+	 * Returns the compute program of {@link GpuCulling} for the instances of
+	 * the specified layout. Requires OpenGL 4.3.
+	 *
+	 * @param gl
+	 *            the GL context.
+	 * @param layout
+	 *            the instance layout.
+	 * @return the name of the program.
+	 */
+	int cullingProgram( final GL3 gl, final InstanceLayout layout )
+	{
+		return cullingPrograms.computeIfAbsent( layout.shaderSegment(), k -> createCullingProgram( gl.getGL4(), layout ) );
+	}
+
+	/**
+	 * Creates the shader program that draws the ellipsoids in the specified
+	 * mode, reading the instances from buffers of the specified layout.
+	 *
+	 * @param mode
+	 *            the ellipsoid mode.
+	 * @param layout
+	 *            the instance layout.
+	 * @return a new shader program.
+	 */
+	static DefaultShader createShader( final EllipsoidMode mode, final InstanceLayout layout )
+	{
+		final String name = mode == EllipsoidMode.IMPOSTOR ? "Impostor" : "3D";
+		final Segment instances = new SegmentTemplate( ShaderPrograms.class, layout.shaderSegment() ).instantiate();
+		final Segment shapeMatrix = new SegmentTemplate( ShaderPrograms.class, "shapeMatrix.glsl" ).instantiate();
+		final Segment shaderVp = new SegmentTemplate( ShaderPrograms.class, "vertexShader" + name + ".glsl" ).instantiate();
+		final Segment shading = new SegmentTemplate( ShaderPrograms.class, "shading3D.glsl" ).instantiate();
+		final Segment shaderFp = new SegmentTemplate( ShaderPrograms.class, "fragmentShader" + name + ".glsl" ).instantiate();
+		return new DefaultShader( instances.getCode() + shapeMatrix.getCode() + shaderVp.getCode(), shading.getCode() + shaderFp.getCode() );
+	}
+
+	/**
+	 * Creates the shader program that draws the links as lines of constant
+	 * width on the screen.
+	 *
+	 * @return a new shader program.
+	 */
+	static DefaultShader createLinkShader()
+	{
+		final Segment shaderVp = new SegmentTemplate( ShaderPrograms.class, "vertexShaderLink.glsl" ).instantiate();
+		final Segment shaderFp = new SegmentTemplate( ShaderPrograms.class, "fragmentShaderLink.glsl" ).instantiate();
+		return new DefaultShader( shaderVp.getCode(), shaderFp.getCode() );
+	}
+
+	private static int createCullingProgram( final GL4 gl, final InstanceLayout layout )
+	{
+		final Segment instances = new SegmentTemplate( ShaderPrograms.class, layout.shaderSegment() ).instantiate();
+		final Segment cull = new SegmentTemplate( ShaderPrograms.class, "cullInstances.glsl" ).instantiate();
+		final String code = "#version 430 core\n"
+				+ "const int N_BUCKETS = " + LodBuckets.N_BUCKETS + ";\n"
+				+ instances.getCode()
+				+ cull.getCode();
+
+		final int shader = gl.glCreateShader( GL_COMPUTE_SHADER );
+		gl.glShaderSource( shader, 1, new String[] { code }, null );
+		gl.glCompileShader( shader );
+		final int[] status = new int[ 1 ];
+		gl.glGetShaderiv( shader, GL_COMPILE_STATUS, status, 0 );
+		if ( status[ 0 ] == GL_FALSE )
+		{
+			final String log = shaderLog( gl, shader );
+			gl.glDeleteShader( shader );
+			throw new GLException( "Could not compile the culling shader:\n" + log );
+		}
+
+		final int program = gl.glCreateProgram();
+		gl.glAttachShader( program, shader );
+		gl.glLinkProgram( program );
+		gl.glDeleteShader( shader );
+		gl.glGetProgramiv( program, GL_LINK_STATUS, status, 0 );
+		if ( status[ 0 ] == GL_FALSE )
+		{
+			final String log = programLog( gl, program );
+			gl.glDeleteProgram( program );
+			throw new GLException( "Could not link the culling shader:\n" + log );
+		}
+		return program;
+	}
+
+	private static String shaderLog( final GL4 gl, final int shader )
+	{
+		final int[] length = new int[ 1 ];
+		gl.glGetShaderiv( shader, GL_INFO_LOG_LENGTH, length, 0 );
+		final byte[] log = new byte[ Math.max( 1, length[ 0 ] ) ];
+		gl.glGetShaderInfoLog( shader, log.length, null, 0, log, 0 );
+		return new String( log ).trim();
+	}
+
+	private static String programLog( final GL4 gl, final int program )
+	{
+		final int[] length = new int[ 1 ];
+		gl.glGetProgramiv( program, GL_INFO_LOG_LENGTH, length, 0 );
+		final byte[] log = new byte[ Math.max( 1, length[ 0 ] ) ];
+		gl.glGetProgramInfoLog( program, log.length, null, 0, log, 0 );
+		return new String( log ).trim();
+	}
+}
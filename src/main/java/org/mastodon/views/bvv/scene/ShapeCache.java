@@ -0,0 +1,116 @@
+package org.mastodon.views.bvv.scene;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * Cache of the shape matrices of the spots, keyed by the spot internal pool
+ * index.
+ * <p>
+ * The {@link ShapeMatrices#FLOATS} floats of the shape of each spot are
+ * stored in a single primitive array. A cache entry is invalid when its first
+ * float is NaN. The cache is shared by all the frames of an
+ * {@link OverlaySceneRenderer}, so that frame rebuilds only recompute the
+ * shape of the spots that changed.
+ * <p>
+ * Entries are written by the thread generating the buffers, and invalidated
+ * by the graph listeners, when the covariance of a spot changes or when a
+ * spot is added or removed (pool indices are recycled).
+ */
+public class ShapeCache
+{
+
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private volatile float[] shapes;
+
+	public ShapeCache()
+	{
+		this.shapes = new float[ ShapeMatrices.FLOATS * INITIAL_CAPACITY ];
+		Arrays.fill( shapes, Float.NaN );
+	}
+
+	/**
+	 * Copies the cached shape matrix of the specified spot in the specified
+	 * buffer, if it is present in the cache.
+	 *
+	 * @param id
+	 *            the spot internal pool index.
+	 * @param dest
+	 *            the buffer to write to. Its position is not changed.
+	 * @param offset
+	 *            the index in the buffer of the first of the
+	 *            {@link ShapeMatrices#FLOATS} floats to write.
+	 * @return <code>true</code> if the shape was in the cache and was copied.
+	 */
+	boolean get( final int id, final FloatBuffer dest, final int offset )
+	{
+		final float[] s = shapes;
+		final int o = ShapeMatrices.FLOATS * id;
+		if ( o + ShapeMatrices.FLOATS > s.length || Float.isNaN( s[ o ] ) )
+			return false;
+		for ( int k = 0; k < ShapeMatrices.FLOATS; k++ )
+			dest.put( offset + k, s[ o + k ] );
+		return true;
+	}
+
+	/**
+	 * Stores the shape matrices of the specified instances in the cache. Must
+	 * be called under the graph read lock the shapes were computed with, so
+	 * that no invalidation happens in between.
+	 *
+	 * @param ids
+	 *            the spot internal pool index of each instance.
+	 * @param computed
+	 *            which instances to store.
+	 * @param src
+	 *            the buffer holding the shape matrices of all the instances,
+	 *            {@link ShapeMatrices#FLOATS} floats per instance.
+	 */
+	synchronized void putAll( final int[] ids, final boolean[] computed, final FloatBuffer src )
+	{
+		for ( int i = 0; i < ids.length; i++ )
+		{
+			if ( !computed[ i ] )
+				continue;
+
+			final int o = ShapeMatrices.FLOATS * ids[ i ];
+			ensureCapacity( o + ShapeMatrices.FLOATS );
+			final float[] s = shapes;
+			for ( int k = 0; k < ShapeMatrices.FLOATS; k++ )
+				s[ o + k ] = src.get( ShapeMatrices.FLOATS * i + k );
+		}
+	}
+
+	/**
+	 * Invalidates the cached shape of the specified spot.
+	 *
+	 * @param id
+	 *            the spot internal pool index.
+	 */
+	synchronized void invalidate( final int id )
+	{
+		final int o = ShapeMatrices.FLOATS * id;
+		if ( o < shapes.length )
+			shapes[ o ] = Float.NaN;
+	}
+
+	/**
+	 * Invalidates all the cached shapes.
+	 */
+	public synchronized void clear()
+	{
+		Arrays.fill( shapes, Float.NaN );
+	}
+
+	private void ensureCapacity( final int length )
+	{
+		final float[] s = shapes;
+		if ( length <= s.length )
+			return;
+
+		final float[] grown = Arrays.copyOf( s, Math.max( length, 2 * s.length ) );
+		Arrays.fill( grown, s.length, grown.length, Float.NaN );
+		shapes = grown;
+	}
+}
@@ -0,0 +1,234 @@
+package org.mastodon.views.bvv.scene;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Computes the shape matrix of an ellipsoid from its covariance matrix.
+ * <p>
+ * The shape matrix <code>M</code> is the 3x3 matrix that transforms the unit
+ * sphere into the ellipsoid: its columns are the eigenvectors of the
+ * covariance matrix, scaled by the ellipsoid radii (the square roots of the
+ * eigenvalues). Hence <code>M M<sup>T</sup> = C</code>, and
+ * <code>M = R S</code> with <code>R</code> a rotation and <code>S</code> the
+ * diagonal matrix of radii.
+ * <p>
+ * The eigen-decomposition is done by cyclic Jacobi sweeps on the 6 unique
+ * values of the symmetric covariance matrix, with primitive local variables
+ * only. It does not allocate and is robust to degenerate covariances (equal
+ * radii, flat ellipsoids).
+ * <p>
+ * The shape matrix is followed by the inverse squared radii
+ * <code>1/r<sub>i</sub><sup>2</sup></code> of its columns, so that shaders
+ * get the normal matrix <code>M<sup>-T</sup> = R S<sup>-1</sup> =
+ * M S<sup>-2</sup></code> with 3 multiplications per instance. The radii are
+ * floored there, so that flat ellipsoids do not give infinite or NaN normals.
+ */
+public final class ShapeMatrices
+{
+
+	/**
+	 * Number of floats written per ellipsoid: the 9 elements of the shape
+	 * matrix, column-major, then the 3 inverse squared radii.
+	 */
+	public static final int FLOATS = 12;
+
+	/**
+	 * Floor of the radii in the inverse squared radii, relative to the largest
+	 * radius of the ellipsoid.
+	 */
+	static final double RADIUS_FLOOR = 1e-3;
+
+	/**
+	 * Absolute floor of the radii in the inverse squared radii, so that they
+	 * stay finite as floats for a point-like ellipsoid.
+	 */
+	static final double MIN_RADIUS = 1e-15;
+
+	/**
+	 * Max number of Jacobi sweeps. Convergence is quadratic and is typically
+	 * reached after 3 or 4 sweeps.
+	 */
+	private static final int MAX_SWEEPS = 16;
+
+	/**
+	 * Convergence threshold on the off-diagonal elements, relative to the
+	 * diagonal ones.
+	 */
+	private static final double EPS = 1e-12;
+
+	/**
+	 * Computes the shape matrix of the ellipsoid with the specified covariance
+	 * and writes it, in column-major order, followed by its inverse squared
+	 * radii, in the specified buffer.
+	 *
+	 * @param c00
+	 *            the covariance element at (0, 0).
+	 * @param c01
+	 *            the covariance element at (0, 1) and (1, 0).
+	 * @param c02
+	 *            the covariance element at (0, 2) and (2, 0).
+	 * @param c11
+	 *            the covariance element at (1, 1).
+	 * @param c12
+	 *            the covariance element at (1, 2) and (2, 1).
+	 * @param c22
+	 *            the covariance element at (2, 2).
+	 * @param dest
+	 *            the buffer to write to. Its position is not changed.
+	 * @param offset
+	 *            the index in the buffer of the first of the {@link #FLOATS}
+	 *            floats to write.
+	 */
+	public static void shapeMatrix(
+			final double c00,
+			final double c01,
+			final double c02,
+			final double c11,
+			final double c12,
+			final double c22,
+			final FloatBuffer dest,
+			final int offset )
+	{
+		// Working copy of the symmetric matrix.
+		double a00 = c00, a01 = c01, a02 = c02, a11 = c11, a12 = c12, a22 = c22;
+		// Eigenvectors, as columns.
+		double v00 = 1., v01 = 0., v02 = 0.;
+		double v10 = 0., v11 = 1., v12 = 0.;
+		double v20 = 0., v21 = 0., v22 = 1.;
+
+		for ( int sweep = 0; sweep < MAX_SWEEPS; sweep++ )
+		{
+			final double off = Math.abs( a01 ) + Math.abs( a02 ) + Math.abs( a12 );
+			final double diag = Math.abs( a00 ) + Math.abs( a11 ) + Math.abs( a22 );
+			if ( off <= EPS * diag || off == 0. )
+				break;
+
+			// Rotation in the (0, 1) plane.
+			if ( a01 != 0. )
+			{
+				final double theta = ( a11 - a00 ) / ( 2. * a01 );
+				final double t = ( theta >= 0. ? 1. : -1. ) / ( Math.abs( theta ) + Math.sqrt( theta * theta + 1. ) );
+				final double c = 1. / Math.sqrt( t * t + 1. );
+				final double s = t * c;
+				a00 -= t * a01;
+				a11 += t * a01;
+				a01 = 0.;
+				final double a02r = c * a02 - s * a12;
+				final double a12r = s * a02 + c * a12;
+				a02 = a02r;
+				a12 = a12r;
+				final double v00r = c * v00 - s * v01;
+				final double v10r = c * v10 - s * v11;
+				final double v20r = c * v20 - s * v21;
+				v01 = s * v00 + c * v01;
+				v11 = s * v10 + c * v11;
+				v21 = s * v20 + c * v21;
+				v00 = v00r;
+				v10 = v10r;
+				v20 = v20r;
+			}
+
+			// Rotation in the (0, 2) plane.
+			if ( a02 != 0. )
+			{
+				final double theta = ( a22 - a00 ) / ( 2. * a02 );
+				final double t = ( theta >= 0. ? 1. : -1. ) / ( Math.abs( theta ) + Math.sqrt( theta * theta + 1. ) );
+				final double c = 1. / Math.sqrt( t * t + 1. );
+				final double s = t * c;
+				a00 -= t * a02;
+				a22 += t * a02;
+				a02 = 0.;
+				final double a01r = c * a01 - s * a12;
+				final double a12r = s * a01 + c * a12;
+				a01 = a01r;
+				a12 = a12r;
+				final double v00r = c * v00 - s * v02;
+				final double v10r = c * v10 - s * v12;
+				final double v20r = c * v20 - s * v22;
+				v02 = s * v00 + c * v02;
+				v12 = s * v10 + c * v12;
+				v22 = s * v20 + c * v22;
+				v00 = v00r;
+				v10 = v10r;
+				v20 = v20r;
+			}
+
+			// Rotation in the (1, 2) plane.
+			if ( a12 != 0. )
+			{
+				final double theta = ( a22 - a11 ) / ( 2. * a12 );
+				final double t = ( theta >= 0. ? 1. : -1. ) / ( Math.abs( theta ) + Math.sqrt( theta * theta + 1. ) );
+				final double c = 1. / Math.sqrt( t * t + 1. );
+				final double s = t * c;
+				a11 -= t * a12;
+				a22 += t * a12;
+				a12 = 0.;
+				final double a01r = c * a01 - s * a02;
+				final double a02r = s * a01 + c * a02;
+				a01 = a01r;
+				a02 = a02r;
+				final double v01r = c * v01 - s * v02;
+				final double v11r = c * v11 - s * v12;
+				final double v21r = c * v21 - s * v22;
+				v02 = s * v01 + c * v02;
+				v12 = s * v11 + c * v12;
+				v22 = s * v21 + c * v22;
+				v01 = v01r;
+				v11 = v11r;
+				v21 = v21r;
+			}
+		}
+
+		// Radii.
+		final double r0 = Math.sqrt( Math.max( 0., a00 ) );
+		final double r1 = Math.sqrt( Math.max( 0., a11 ) );
+		final double r2 = Math.sqrt( Math.max( 0., a22 ) );
+
+		// Scaled eigenvectors, column-major.
+		dest.put( offset, ( float ) ( r0 * v00 ) );
+		dest.put( offset + 1, ( float ) ( r0 * v10 ) );
+		dest.put( offset + 2, ( float ) ( r0 * v20 ) );
+		dest.put( offset + 3, ( float ) ( r1 * v01 ) );
+		dest.put( offset + 4, ( float ) ( r1 * v11 ) );
+		dest.put( offset + 5, ( float ) ( r1 * v21 ) );
+		dest.put( offset + 6, ( float ) ( r2 * v02 ) );
+		dest.put( offset + 7, ( float ) ( r2 * v12 ) );
+		dest.put( offset + 8, ( float ) ( r2 * v22 ) );
+
+		// Inverse squared radii, floored.
+		final double floor = Math.max( MIN_RADIUS, RADIUS_FLOOR * Math.max( r0, Math.max( r1, r2 ) ) );
+		dest.put( offset + 9, ( float ) inverseSquare( Math.max( floor, r0 ) ) );
+		dest.put( offset + 10, ( float ) inverseSquare( Math.max( floor, r1 ) ) );
+		dest.put( offset + 11, ( float ) inverseSquare( Math.max( floor, r2 ) ) );
+	}
+
+	/**
+	 * Computes the shape matrix of the ellipsoid with the specified covariance
+	 * and writes it, in column-major order, followed by its inverse squared
+	 * radii, in the specified buffer.
+	 *
+	 * @param cov
+	 *            the covariance matrix. Only the upper triangle is read.
+	 * @param dest
+	 *            the buffer to write to. Its position is not changed.
+	 * @param offset
+	 *            the index in the buffer of the first of the {@link #FLOATS}
+	 *            floats to write.
+	 */
+	public static void shapeMatrix( final double[][] cov, final FloatBuffer dest, final int offset )
+	{
+		shapeMatrix(
+				cov[ 0 ][ 0 ], cov[ 0 ][ 1 ], cov[ 0 ][ 2 ],
+				cov[ 1 ][ 1 ], cov[ 1 ][ 2 ],
+				cov[ 2 ][ 2 ],
+				dest, offset );
+	}
+
+	private static double inverseSquare( final double r )
+	{
+		return 1. / ( r * r );
+	}
+
+	private ShapeMatrices()
+	{}
+}
@@ -0,0 +1,284 @@
+package org.mastodon.views.bvv.scene;
+
+import static com.jogamp.opengl.GL.GL_MAP_WRITE_BIT;
+import static com.jogamp.opengl.GL3.GL_COPY_READ_BUFFER;
+import static com.jogamp.opengl.GL3.GL_COPY_WRITE_BUFFER;
+import static com.jogamp.opengl.GL3.GL_SYNC_FLUSH_COMMANDS_BIT;
+import static com.jogamp.opengl.GL3.GL_SYNC_GPU_COMMANDS_COMPLETE;
+import static com.jogamp.opengl.GL3.GL_TIMEOUT_EXPIRED;
+import static com.jogamp.opengl.GL3.GL_WAIT_FAILED;
+import static com.jogamp.opengl.GL4.GL_MAP_COHERENT_BIT;
+import static com.jogamp.opengl.GL4.GL_MAP_PERSISTENT_BIT;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+
+import com.jogamp.opengl.GL3;
+
+/**
+ * Uploads through a staging buffer mapped persistently and coherently in
+ * client memory (<code>ARB_buffer_storage</code>, OpenGL 4.4).
+ * <p>
+ * Data is written in the mapped memory, then moved to its destination by the
+ * GPU, with <code>glCopyBufferSubData</code>. The staging buffer is a ring of
+ * 3 segments: one is written by the CPU while the GPU may still read the two
+ * others. A fence is placed when a segment is complete, at the end of each
+ * frame or when it is full, and the CPU waits for it before writing in the
+ * segment again. With three segments, this wait is normally over when it
+ * starts.
+ * <p>
+ * Data packed by the caller with {@link #begin(GL3, int, long, int)} is
+ * written in the mapped memory directly. Data uploaded from an existing
+ * buffer is copied there once, as <code>glBufferSubData</code> would copy it
+ * in driver memory. The instance buffers of the generator are not mapped
+ * memory themselves: they are the CPU copy that edits, swaps and regrowths
+ * work on, and they are written off the GL thread, which owns the fences.
+ * <p>
+ * Uploads larger than a segment go through <code>glBufferSubData</code>.
+ * <p>
+ * Must only be used on the GL thread.
+ */
+class StagingRing implements BufferUploader
+{
+
+	static final int SEGMENTS = 3;
+
+	/**
+	 * Default size of a segment: 4 MB.
+	 */
+	static final int DEFAULT_SEGMENT_SIZE = 4 << 20;
+
+	private static final int ALIGNMENT = 16;
+
+	/**
+	 * Timeout of a single wait for a fence, in nanoseconds.
+	 */
+	private static final long FENCE_TIMEOUT = 100_000_000L;
+
+	private static final int FLAGS = GL_MAP_WRITE_BIT | GL_MAP_PERSISTENT_BIT | GL_MAP_COHERENT_BIT;
+
+	private final SubDataUploader fallback;
+
+	private final int segmentSize;
+
+	private final int buffer;
+
+	private final ByteBuffer mapped;
+
+	/**
+	 * The fence of each segment, or 0 if it has none.
+	 */
+	private final long[] fences = new long[ SEGMENTS ];
+
+	/**
+	 * The segment being written.
+	 */
+	private int segment = 0;
+
+	/**
+	 * Number of bytes used in the segment being written.
+	 */
+	private int cursor = 0;
+
+	private boolean pendingFallback;
+
+	private int pendingStart;
+
+	private int pendingBytes;
+
+	private int pendingVbo;
+
+	private long pendingOffset;
+
+	private StagingRing( final int buffer, final ByteBuffer mapped, final int segmentSize, final DirectBufferPool pool )
+	{
+		this.buffer = buffer;
+		this.mapped = mapped;
+		this.segmentSize = segmentSize;
+		this.fallback = new SubDataUploader( pool );
+	}
+
+	/**
+	 * Returns whether the specified context supports persistent mapping.
+	 *
+	 * @param gl
+	 *            the GL context.
+	 * @return <code>true</code> if a {@link StagingRing} can be created.
+	 */
+	static boolean isSupported( final GL3 gl )
+	{
+		return gl.isGL4()
+				&& gl.isFunctionAvailable( "glBufferStorage" )
+				&& gl.isFunctionAvailable( "glFenceSync" );
+	}
+
+	/**
+	 * Creates a staging ring in the specified context.
+	 *
+	 * @param gl
+	 *            the GL context, must be supported.
+	 * @param segmentSize
+	 *            the size of a segment, in bytes.
+	 * @param pool
+	 *            the pool of the buffers of the uploads that do not fit in a
+	 *            segment.
+	 * @return a new staging ring, or <code>null</code> if the staging buffer
+	 *         could not be mapped.
+	 */
+	static StagingRing create( final GL3 gl, final int segmentSize, final DirectBufferPool pool )
+	{
+		final long size = ( long ) SEGMENTS * segmentSize;
+		final int[] buffers = new int[ 1 ];
+		gl.glGenBuffers( 1, buffers, 0 );
+		gl.glBindBuffer( GL_COPY_READ_BUFFER, buffers[ 0 ] );
+		gl.getGL4().glBufferStorage( GL_COPY_READ_BUFFER, size, null, FLAGS );
+		final ByteBuffer mapped = gl.glMapBufferRange( GL_COPY_READ_BUFFER, 0, size, FLAGS );
+		gl.glBindBuffer( GL_COPY_READ_BUFFER, 0 );
+		if ( mapped == null )
+		{
+			gl.glDeleteBuffers( 1, buffers, 0 );
+			return null;
+		}
+		return new StagingRing( buffers[ 0 ], mapped.order( ByteOrder.nativeOrder() ), segmentSize, pool );
+	}
+
+	@Override
+	public void upload( final GL3 gl, final int vbo, final long offset, final Buffer data )
+	{
+		final int bytes = BufferUploader.remainingBytes( data );
+		final int start = reserve( gl, bytes );
+		if ( start < 0 )
+		{
+			fallback.upload( gl, vbo, offset, data );
+			return;
+		}
+		copy( data, slice( start, bytes ) );
+		copyToDestination( gl, start, vbo, offset, bytes );
+	}
+
+	@Override
+	public ByteBuffer begin( final GL3 gl, final int vbo, final long offset, final int bytes )
+	{
+		final int start = reserve( gl, bytes );
+		pendingFallback = start < 0;
+		if ( pendingFallback )
+			return fallback.begin( gl, vbo, offset, bytes );
+
+		pendingStart = start;
+		pendingBytes = bytes;
+		pendingVbo = vbo;
+		pendingOffset = offset;
+		return slice( start, bytes );
+	}
+
+	@Override
+	public void end( final GL3 gl )
+	{
+		if ( pendingFallback )
+			fallback.end( gl );
+		else
+			copyToDestination( gl, pendingStart, pendingVbo, pendingOffset, pendingBytes );
+	}
+
+	@Override
+	public void endFrame( final GL3 gl )
+	{
+		if ( cursor > 0 )
+			nextSegment( gl );
+	}
+
+	@Override
+	public void dispose( final GL3 gl )
+	{
+		for ( int s = 0; s < SEGMENTS; s++ )
+		{
+			if ( fences[ s ] != 0 )
+				gl.glDeleteSync( fences[ s ] );
+			fences[ s ] = 0;
+		}
+		gl.glBindBuffer( GL_COPY_READ_BUFFER, buffer );
+		gl.glUnmapBuffer( GL_COPY_READ_BUFFER );
+		gl.glBindBuffer( GL_COPY_READ_BUFFER, 0 );
+		gl.glDeleteBuffers( 1, new int[] { buffer }, 0 );
+	}
+
+	/**
+	 * Reserves the specified number of bytes in the current segment, moving
+	 * to the next one if it is full.
+	 *
+	 * @return the offset of the reserved range in the staging buffer, or -1
+	 *         if it does not fit in a segment.
+	 */
+	private int reserve( final GL3 gl, final int bytes )
+	{
+		if ( bytes > segmentSize )
+			return -1;
+		if ( cursor + bytes > segmentSize )
+			nextSegment( gl );
+		final int start = segment * segmentSize + cursor;
+		cursor += ( bytes + ALIGNMENT - 1 ) / ALIGNMENT * ALIGNMENT;
+		return start;
+	}
+
+	/**
+	 * Fences the current segment, and waits until the GPU is done with the
+	 * next one.
+	 */
+	private void nextSegment( final GL3 gl )
+	{
+		fences[ segment ] = gl.glFenceSync( GL_SYNC_GPU_COMMANDS_COMPLETE, 0 );
+		segment = ( segment + 1 ) % SEGMENTS;
+		cursor = 0;
+
+		final long fence = fences[ segment ];
+		if ( fence == 0 )
+			return;
+		int status;
+		do
+		{
+			status = gl.glClientWaitSync( fence, GL_SYNC_FLUSH_COMMANDS_BIT, FENCE_TIMEOUT );
+		}
+		while ( status == GL_TIMEOUT_EXPIRED );
+		if ( status == GL_WAIT_FAILED )
+			gl.glFinish();
+		gl.glDeleteSync( fence );
+		fences[ segment ] = 0;
+	}
+
+	private void copyToDestination( final GL3 gl, final int start, final int vbo, final long offset, final int bytes )
+	{
+		gl.glBindBuffer( GL_COPY_READ_BUFFER, buffer );
+		gl.glBindBuffer( GL_COPY_WRITE_BUFFER, vbo );
+		gl.glCopyBufferSubData( GL_COPY_READ_BUFFER, GL_COPY_WRITE_BUFFER, start, offset, bytes );
+		gl.glBindBuffer( GL_COPY_READ_BUFFER, 0 );
+		gl.glBindBuffer( GL_COPY_WRITE_BUFFER, 0 );
+	}
+
+	private ByteBuffer slice( final int start, final int bytes )
+	{
+		final ByteBuffer b = mapped.duplicate();
+		b.limit( start + bytes );
+		b.position( start );
+		return b.slice().order( ByteOrder.nativeOrder() );
+	}
+
+	/**
+	 * Copies the remaining elements of the source buffer at the beginning of
+	 * the destination buffer, without changing the position of the source.
+	 */
+	private static void copy( final Buffer src, final ByteBuffer dest )
+	{
+		if ( src instanceof FloatBuffer )
+			dest.asFloatBuffer().put( ( ( FloatBuffer ) src ).duplicate() );
+		else if ( src instanceof IntBuffer )
+			dest.asIntBuffer().put( ( ( IntBuffer ) src ).duplicate() );
+		else if ( src instanceof ShortBuffer )
+			dest.asShortBuffer().put( ( ( ShortBuffer ) src ).duplicate() );
+		else
+			dest.put( ( ( ByteBuffer ) src ).duplicate() );
+	}
+}
@@ -0,0 +1,54 @@
+package org.mastodon.views.bvv.scene;
+
+import static com.jogamp.opengl.GL.GL_ARRAY_BUFFER;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+import com.jogamp.opengl.GL3;
+
+/**
+ * Uploads with <code>glBufferSubData</code>. Buffers to write in are taken from
+ * a {@link DirectBufferPool}.
+ */
+class SubDataUploader implements BufferUploader
+{
+
+	private final DirectBufferPool pool;
+
+	private ByteBuffer pending;
+
+	private int pendingVbo;
+
+	private long pendingOffset;
+
+	SubDataUploader( final DirectBufferPool pool )
+	{
+		this.pool = pool;
+	}
+
+	@Override
+	public void upload( final GL3 gl, final int vbo, final long offset, final Buffer data )
+	{
+		gl.glBindBuffer( GL_ARRAY_BUFFER, vbo );
+		gl.glBufferSubData( GL_ARRAY_BUFFER, offset, BufferUploader.remainingBytes( data ), data );
+	}
+
+	@Override
+	public ByteBuffer begin( final GL3 gl, final int vbo, final long offset, final int bytes )
+	{
+		pending = pool.bytes( bytes );
+		pendingVbo = vbo;
+		pendingOffset = offset;
+		return pending;
+	}
+
+	@Override
+	public void end( final GL3 gl )
+	{
+		pending.clear();
+		upload( gl, pendingVbo, pendingOffset, pending );
+		pool.release( pending );
+		pending = null;
+	}
+}
@@ -0,0 +1,23 @@
+package org.mastodon.views.bvv.scene;
+
+/**
+ * Finds the vertices of the overlay graph by internal pool index, for the
+ * workers generating the instance buffers in parallel. A lookup returns its
+ * own vertex ref, so each thread must use its own lookup.
+ *
+ * @param <V>
+ *            the type of vertex in the overlay graph.
+ */
+public interface VertexLookup< V >
+{
+
+	/**
+	 * Returns the vertex with the specified internal pool index. The returned
+	 * ref is owned by this lookup, and only valid until the next call.
+	 *
+	 * @param id
+	 *            the internal pool index of a vertex of the graph.
+	 * @return the vertex.
+	 */
+	V getVertex( int id );
+}
@@ -0,0 +1,145 @@
+package org.mastodon.views.bvv.scene;
+
+import org.joml.Matrix4f;
+import org.joml.Matrix4fc;
+import org.joml.Vector3f;
+import org.joml.Vector4f;
+import org.joml.Vector4fc;
+
+import net.imglib2.algorithm.kdtree.ConvexPolytope;
+import net.imglib2.algorithm.kdtree.HyperPlane;
+
+/**
+ * The view frustum in which the visible spots of a frame were searched,
+ * widened by a tolerance so that small camera moves do not require a new
+ * search.
+ * <p>
+ * The frustum is derived from the projection-view matrix of the render data,
+ * whose near and far planes are the BVV <code>dClip</code> planes. It is
+ * widened in clip coordinates: with a tolerance of <code>t</code>, it
+ * extends <code>t</code> times the width, height and depth of the view on
+ * each side.
+ */
+class ViewFrustum
+{
+
+	/**
+	 * The widened projection-view matrix.
+	 */
+	private final Matrix4f widened = new Matrix4f();
+
+	/**
+	 * The plane equations of the widened frustum, with normals pointing
+	 * inwards.
+	 */
+	private final Vector4f[] planes = new Vector4f[ 6 ];
+
+	private boolean valid = false;
+
+	private final Vector3f corner = new Vector3f();
+
+	ViewFrustum()
+	{
+		for ( int p = 0; p < planes.length; p++ )
+			planes[ p ] = new Vector4f();
+	}
+
+	/**
+	 * Sets this frustum to the view of the specified matrix, widened by the
+	 * specified tolerance.
+	 *
+	 * @param pvm
+	 *            the projection-view matrix.
+	 * @param tolerance
+	 *            the fraction of the view size to add on each side.
+	 */
+	void set( final Matrix4fc pvm, final double tolerance )
+	{
+		final float s = ( float ) ( 1. / ( 1. + Math.max( 0., tolerance ) ) );
+		widened.scaling( s, s, s ).mul( pvm );
+		for ( int p = 0; p < planes.length; p++ )
+			widened.frustumPlane( p, planes[ p ] );
+		valid = true;
+	}
+
+	/**
+	 * Returns whether the view of the specified matrix lies in this frustum.
+	 * The frustum is convex, so it is enough to check the corners of the
+	 * view.
+	 *
+	 * @param pvm
+	 *            the projection-view matrix.
+	 * @return <code>true</code> if the spots searched in this frustum include
+	 *         all the spots visible with the specified matrix.
+	 */
+	boolean covers( final Matrix4fc pvm )
+	{
+		if ( !valid )
+			return false;
+		for ( int c = 0; c < 8; c++ )
+		{
+			pvm.frustumCorner( c, corner );
+			for ( final Vector4f plane : planes )
+				if ( plane.x * corner.x + plane.y * corner.y + plane.z * corner.z + plane.w < 0 )
+					return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns whether the specified sphere overlaps this frustum. Spheres
+	 * near the edges of the frustum may be reported as overlapping it.
+	 *
+	 * @param x
+	 *            the X coordinate of the center.
+	 * @param y
+	 *            the Y coordinate of the center.
+	 * @param z
+	 *            the Z coordinate of the center.
+	 * @param radius
+	 *            the radius of the sphere.
+	 * @return <code>false</code> if the sphere is outside of this frustum.
+	 */
+	boolean intersects( final float x, final float y, final float z, final float radius )
+	{
+		for ( final Vector4f plane : planes )
+			if ( plane.x * x + plane.y * y + plane.z * z + plane.w < -radius )
+				return false;
+		return true;
+	}
+
+	/**
+	 * Returns the equation of the specified plane of this frustum, with its
+	 * normal pointing inwards.
+	 *
+	 * @param p
+	 *            the plane index, one of the <code>PLANE_*</code> constants
+	 *            of {@link Matrix4fc}.
+	 * @return the plane equation, normalized.
+	 */
+	Vector4fc plane( final int p )
+	{
+		return planes[ p ];
+	}
+
+	/**
+	 * Returns this frustum as a polytope, for a clipping query on a spatial
+	 * index. The planes are moved outwards by the specified margin, so that
+	 * the spots whose center is outside the frustum but which overlap it are
+	 * found.
+	 *
+	 * @param margin
+	 *            the margin, in world units.
+	 * @return a new polytope.
+	 */
+	ConvexPolytope polytope( final double margin )
+	{
+		final HyperPlane[] hyperplanes = new HyperPlane[ planes.length ];
+		for ( int p = 0; p < planes.length; p++ )
+		{
+			final Vector4f plane = planes[ p ];
+			hyperplanes[ p ] = new HyperPlane( plane.x, plane.y, plane.z, -plane.w - margin );
+		}
+		return new ConvexPolytope( hyperplanes );
+	}
+}
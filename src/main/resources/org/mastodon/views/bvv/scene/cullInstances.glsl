@@ -0,0 +1,105 @@
+// Sorts the instances of a slot in the buckets of LodBuckets on the GPU, in
+// three passes over the same program:
+//  0. counts the visible instances of each bucket in its draw command,
+//  1. sets the base instance of each command, by a single invocation,
+//  2. writes the index of each visible instance in the range of its bucket.
+// The order of the instances within a bucket is not defined.
+//
+// N_BUCKETS is defined before this segment, from LodBuckets.
+
+layout (local_size_x = 64) in;
+
+// A DrawElementsIndirectCommand.
+struct Command
+{
+	uint count;
+	uint instanceCount;
+	uint firstIndex;
+	int baseVertex;
+	uint baseInstance;
+};
+
+layout (std430, binding = 0) buffer Commands
+{
+	Command commands[ N_BUCKETS ];
+	uint cursors[ N_BUCKETS ];
+};
+
+layout (std430, binding = 1) buffer Ids
+{
+	int ids[];
+};
+
+uniform int pass;
+uniform int numInstances;
+uniform int instanceOffset;
+
+// The frustum planes, normals pointing inwards.
+uniform vec4 planes[ 6 ];
+
+// Whether to sort by projected radius. Otherwise all the visible instances
+// go to the first bucket.
+uniform bool lod;
+
+// The last row of the projection-view matrix, giving the clip w.
+uniform vec4 wRow;
+
+// The projected radius in pixels of a unit sphere at w = 1.
+uniform float lodScale;
+
+// The smallest projected radius in pixels of each bucket but the first, set
+// from LodBuckets.
+uniform float lodThresholds[ N_BUCKETS - 1 ];
+
+// Returns the bucket of the specified instance, or -1 if it is not visible.
+int bucket( int instance )
+{
+	mat3 shape = instanceMatrix( instance );
+	vec3 center = instanceTranslation( instance );
+
+	// Bounding sphere: the largest semi-axis.
+	float r = sqrt( max( max( dot( shape[ 0 ], shape[ 0 ] ), dot( shape[ 1 ], shape[ 1 ] ) ), dot( shape[ 2 ], shape[ 2 ] ) ) );
+	for ( int p = 0; p < 6; p++ )
+		if ( dot( planes[ p ].xyz, center ) + planes[ p ].w < -r )
+			return -1;
+	if ( !lod )
+		return 0;
+
+	float w = dot( wRow, vec4( center, 1 ) );
+	if ( w <= 0 )
+		return -1;
+	float px = r * lodScale / w;
+	int b = 0;
+	while ( b < N_BUCKETS - 1 && px >= lodThresholds[ b ] )
+		b++;
+	return b;
+}
+
+void main()
+{
+	int i = int( gl_GlobalInvocationID.x );
+	if ( pass == 1 )
+	{
+		if ( i == 0 )
+		{
+			uint start = 0u;
+			for ( int b = 0; b < N_BUCKETS; b++ )
+			{
+				commands[ b ].baseInstance = uint( instanceOffset ) + start;
+				cursors[ b ] = start;
+				start += commands[ b ].instanceCount;
+			}
+		}
+		return;
+	}
+
+	if ( i >= numInstances )
+		return;
+	int b = bucket( instanceOffset + i );
+	if ( b < 0 )
+		return;
+	if ( pass == 0 )
+		atomicAdd( commands[ b ].instanceCount, 1u );
+	else
+		ids[ instanceOffset + int( atomicAdd( cursors[ b ], 1u ) ) ] = i;
+}
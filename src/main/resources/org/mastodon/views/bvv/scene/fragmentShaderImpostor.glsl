@@ -0,0 +1,47 @@
+in vec3 localPos;
+flat in vec3 localCam;
+
+flat in mat3 shape;
+flat in mat3 normalMatrix;
+flat in vec3 translation;
+flat in vec4 fragColor;
+flat in int emphasis;
+
+uniform mat4 pvm;
+uniform mat4 vm;
+uniform mat3 itvm;
+
+out vec4 outColor;
+
+void main()
+{
+	// Intersect the ray from the camera through this fragment with the
+	// unit sphere: |localCam + s * dir| = 1.
+	vec3 dir = localPos - localCam;
+	float a = dot( dir, dir );
+	float b = dot( localCam, dir );
+	float c = dot( localCam, localCam ) - 1.;
+	float disc = b * b - a * c;
+	if ( disc < 0. )
+		discard;
+
+	// Nearest intersection in front of the camera.
+	float sq = sqrt( disc );
+	float s = ( -b - sq ) / a;
+	if ( s < 0. )
+		s = ( -b + sq ) / a;
+	if ( s < 0. )
+		discard;
+	vec3 hit = localCam + s * dir;
+
+	// Depth of the ellipsoid surface, not of the box.
+	vec3 worldPos = shape * hit + translation;
+	vec4 clipPos = pvm * vec4( worldPos, 1. );
+	float ndcDepth = clipPos.z / clipPos.w;
+	gl_FragDepth = 0.5 * ( gl_DepthRange.diff * ndcDepth + gl_DepthRange.near + gl_DepthRange.far );
+
+	// The normal of the unit sphere at the hit point is the hit point.
+	vec3 fragPos = vec3( vm * vec4( worldPos, 1. ) );
+	vec3 fragNormal = normalize( itvm * normalMatrix * hit );
+	outColor = vec4( shade( fragPos, fragNormal, fragColor, emphasis ), 1.0 );
+}
@@ -0,0 +1,10 @@
+in vec4 fragColor;
+in float side;
+
+out vec4 outColor;
+
+void main()
+{
+	// Darker on the sides, so that the links look like tubes.
+	outColor = vec4( fragColor.rgb * ( 1. - 0.4 * side * side ), 1. );
+}
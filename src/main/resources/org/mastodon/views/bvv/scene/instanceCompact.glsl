@@ -0,0 +1,48 @@
+// Instances in one buffer of 11 uints: the 9 elements of the shape matrix as
+// half-floats, column-major, 2 per uint starting with the low bits, then
+// padding, then the 3 elements of the translation as floats, then the 3
+// inverse squared radii as floats.
+uniform usamplerBuffer instances;
+
+float halfToFloat( uint h )
+{
+	uint sign = ( h & 0x8000u ) << 16;
+	uint exponent = ( h >> 10 ) & 0x1fu;
+	uint mantissa = h & 0x3ffu;
+	if ( exponent == 0u )
+		return ( sign == 0u ? 1. : -1. ) * float( mantissa ) * exp2( -24. );
+	if ( exponent == 31u )
+		return uintBitsToFloat( sign | 0x7f800000u | ( mantissa << 13 ) );
+	return uintBitsToFloat( sign | ( ( exponent + 112u ) << 23 ) | ( mantissa << 13 ) );
+}
+
+mat3 instanceMatrix( int i )
+{
+	int o = 11 * i;
+	float m[ 10 ];
+	for ( int k = 0; k < 5; k++ )
+	{
+		uint u = texelFetch( instances, o + k ).r;
+		m[ 2 * k ] = halfToFloat( u & 0xffffu );
+		m[ 2 * k + 1 ] = halfToFloat( u >> 16 );
+	}
+	return mat3( m[ 0 ], m[ 1 ], m[ 2 ], m[ 3 ], m[ 4 ], m[ 5 ], m[ 6 ], m[ 7 ], m[ 8 ] );
+}
+
+vec3 instanceTranslation( int i )
+{
+	int o = 11 * i + 5;
+	return vec3(
+		uintBitsToFloat( texelFetch( instances, o ).r ),
+		uintBitsToFloat( texelFetch( instances, o + 1 ).r ),
+		uintBitsToFloat( texelFetch( instances, o + 2 ).r ) );
+}
+
+vec3 instanceInverseSquaredRadii( int i )
+{
+	int o = 11 * i + 8;
+	return vec3(
+		uintBitsToFloat( texelFetch( instances, o ).r ),
+		uintBitsToFloat( texelFetch( instances, o + 1 ).r ),
+		uintBitsToFloat( texelFetch( instances, o + 2 ).r ) );
+}
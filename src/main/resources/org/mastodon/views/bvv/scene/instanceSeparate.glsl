@@ -0,0 +1,25 @@
+// Instances in two buffers of floats: 9 for the shape matrix, column-major,
+// and 3 for its inverse squared radii, then 3 for the translation.
+uniform samplerBuffer shapes;
+uniform samplerBuffer translations;
+
+mat3 instanceMatrix( int i )
+{
+	int o = 12 * i;
+	return mat3(
+		texelFetch( shapes, o ).r, texelFetch( shapes, o + 1 ).r, texelFetch( shapes, o + 2 ).r,
+		texelFetch( shapes, o + 3 ).r, texelFetch( shapes, o + 4 ).r, texelFetch( shapes, o + 5 ).r,
+		texelFetch( shapes, o + 6 ).r, texelFetch( shapes, o + 7 ).r, texelFetch( shapes, o + 8 ).r );
+}
+
+vec3 instanceInverseSquaredRadii( int i )
+{
+	int o = 12 * i + 9;
+	return vec3( texelFetch( shapes, o ).r, texelFetch( shapes, o + 1 ).r, texelFetch( shapes, o + 2 ).r );
+}
+
+vec3 instanceTranslation( int i )
+{
+	int o = 3 * i;
+	return vec3( texelFetch( translations, o ).r, texelFetch( translations, o + 1 ).r, texelFetch( translations, o + 2 ).r );
+}
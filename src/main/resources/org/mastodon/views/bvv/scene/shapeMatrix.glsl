@@ -0,0 +1,14 @@
+// Inverse transpose of a shape matrix, to transform normals.
+//
+// The shape matrix M = R S is a rotation times the diagonal matrix of the
+// radii: its columns are orthogonal, and column i has length r_i. Hence
+// inverse( M )^T = R S^-1 = M S^-2. This needs no inversion, and inverse( M )
+// is its transpose. The inverse squared radii come with the instance: they
+// are computed and floored once per instance on the CPU.
+mat3 shapeInverseTranspose( mat3 shape, vec3 inverseSquaredRadii )
+{
+	return mat3(
+		shape[ 0 ] * inverseSquaredRadii.x,
+		shape[ 1 ] * inverseSquaredRadii.y,
+		shape[ 2 ] * inverseSquaredRadii.z );
+}
@@ -1,31 +1,41 @@
 layout (location = 0) in vec3 aPos;
-layout (location = 1) in mat3 aInstanceMatrix;
-layout (location = 4) in vec3 aTranslation;
-layout (location = 5) in vec3 aColor;
+layout (location = 1) in int aInstance;
 
 uniform mat4 pvm;
 uniform mat4 vm;
 uniform mat3 itvm;
 
+// Index of the first instance of the frame in the instance buffers.
+uniform int instanceOffset;
+uniform samplerBuffer colors;
+
+// Indices of the highlighted and of the focused instances in the frame, or -1.
+uniform int highlightInstance;
+uniform int focusInstance;
+
 out vec3 fragPos;
 out vec3 fragNormal;
 out vec4 fragColor;
+flat out int emphasis;
 
 void main()
 {
+	int instance = instanceOffset + aInstance;
+	mat3 shape = instanceMatrix( instance );
+
 	// Build transform matrix by concatenating 
 	// scaling+rotation matrix with translation vector.
 	mat4 transformMatrix = mat4(
-        vec4( aInstanceMatrix[0], 0. ),
-        vec4( aInstanceMatrix[1], 0. ),
-        vec4( aInstanceMatrix[2], 0. ),
-        vec4( aTranslation, 1. )
+        vec4( shape[0], 0. ),
+        vec4( shape[1], 0. ),
+        vec4( shape[2], 0. ),
+        vec4( instanceTranslation( instance ), 1. )
     );
 	
 	vec4 worldPos = transformMatrix * vec4( aPos, 1. );
     gl_Position = pvm * worldPos;
     
-    fragColor = vec4( aColor, 1. );
+    fragColor = vec4( texelFetch( colors, instance ).rgb, 1. );
     
     fragPos = vec3( vm * vec4( worldPos.xyz, 1.) );
 
@@ -36,7 +46,10 @@ void main()
     vec3 sphereNormal = aPos;
     
     // Transform the normal using the transpose of the inverse of 
-    // aInstanceMatrix.
-    mat3 normalMatrix = transpose( inverse( aInstanceMatrix ) );
+    // the instance matrix.
+    mat3 normalMatrix = shapeInverseTranspose( shape, instanceInverseSquaredRadii( instance ) );
     fragNormal = normalize( itvm * normalMatrix * sphereNormal );
+
+	// 1 if highlighted, plus 2 if focused.
+	emphasis = ( aInstance == highlightInstance ? 1 : 0 ) | ( aInstance == focusInstance ? 2 : 0 );
 }
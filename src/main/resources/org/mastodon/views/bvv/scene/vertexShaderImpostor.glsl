@@ -0,0 +1,44 @@
+layout (location = 0) in vec3 aPos;
+layout (location = 1) in int aInstance;
+
+uniform mat4 pvm;
+uniform vec3 camPos;
+
+// Index of the first instance of the frame in the instance buffers.
+uniform int instanceOffset;
+uniform samplerBuffer colors;
+
+// Indices of the highlighted and of the focused instances in the frame, or -1.
+uniform int highlightInstance;
+uniform int focusInstance;
+
+// Position and camera in the frame where the ellipsoid is the unit sphere.
+out vec3 localPos;
+flat out vec3 localCam;
+
+flat out mat3 shape;
+flat out mat3 normalMatrix;
+flat out vec3 translation;
+flat out vec4 fragColor;
+flat out int emphasis;
+
+void main()
+{
+	int instance = instanceOffset + aInstance;
+	shape = instanceMatrix( instance );
+	translation = instanceTranslation( instance );
+
+	// aPos is a corner of the cube bounding the unit sphere. The instance
+	// matrix maps it to a box bounding the ellipsoid.
+	vec3 worldPos = shape * aPos + translation;
+	gl_Position = pvm * vec4( worldPos, 1. );
+
+	normalMatrix = shapeInverseTranspose( shape, instanceInverseSquaredRadii( instance ) );
+	localPos = aPos;
+	localCam = transpose( normalMatrix ) * ( camPos - translation );
+
+	fragColor = vec4( texelFetch( colors, instance ).rgb, 1. );
+
+	// 1 if highlighted, plus 2 if focused.
+	emphasis = ( aInstance == highlightInstance ? 1 : 0 ) | ( aInstance == focusInstance ? 2 : 0 );
+}
@@ -0,0 +1,64 @@
+layout (location = 0) in vec3 aPos;
+layout (location = 1) in vec3 aSource;
+layout (location = 2) in vec3 aTarget;
+layout (location = 3) in vec4 aColor;
+layout (location = 4) in float aTimepoint;
+
+uniform mat4 pvm;
+
+// Size of the viewport, in pixels.
+uniform vec2 viewportSize;
+
+// Width of the links, in pixels.
+uniform float linkWidth;
+
+// Only the links with a timepoint in [timepoint - window, timepoint] are
+// drawn, darker as they get older.
+uniform float timepoint;
+uniform float window;
+
+out vec4 fragColor;
+out float side;
+
+// The links are clipped in front of the camera, where w is this small.
+const float MIN_W = 1e-4;
+
+void main()
+{
+	float age = timepoint - aTimepoint;
+	if ( age < 0. || age > window )
+	{
+		// Out of the time window: all the vertices out of the clip volume.
+		gl_Position = vec4( 2., 2., 2., 1. );
+		return;
+	}
+
+	vec4 a = pvm * vec4( aSource, 1. );
+	vec4 b = pvm * vec4( aTarget, 1. );
+	if ( a.w < MIN_W && b.w < MIN_W )
+	{
+		// Behind the camera: all the vertices at the same place.
+		gl_Position = vec4( 2., 2., 2., 1. );
+		return;
+	}
+	if ( a.w < MIN_W )
+		a = mix( a, b, ( MIN_W - a.w ) / ( b.w - a.w ) );
+	else if ( b.w < MIN_W )
+		b = mix( b, a, ( MIN_W - b.w ) / ( a.w - b.w ) );
+
+	// Direction of the link on the screen.
+	vec2 dir = b.xy / b.w * viewportSize - a.xy / a.w * viewportSize;
+	float len = length( dir );
+	dir = len > 0. ? dir / len : vec2( 1., 0. );
+	vec2 normal = vec2( -dir.y, dir.x );
+
+	// aPos.x goes from 0 at the source to 1 at the target, aPos.y from -1 to
+	// 1 across the link. The offset across is in pixels, converted to clip
+	// space.
+	vec4 p = mix( a, b, aPos.x );
+	p.xy += normal * linkWidth * aPos.y / viewportSize * p.w;
+	gl_Position = p;
+
+	fragColor = vec4( aColor.rgb * mix( 1., 0.25, age / ( window + 1. ) ), aColor.a );
+	side = aPos.y;
+}
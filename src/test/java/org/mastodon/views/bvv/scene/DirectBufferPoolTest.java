@@ -0,0 +1,131 @@
+package org.mastodon.views.bvv.scene;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class DirectBufferPoolTest
+{
+
+	@Test
+	public void testSizeClass()
+	{
+		assertEquals( 4096, DirectBufferPool.sizeClass( 1 ) );
+		assertEquals( 4096, DirectBufferPool.sizeClass( 4096 ) );
+		assertEquals( 5120, DirectBufferPool.sizeClass( 4097 ) );
+		assertEquals( 8192, DirectBufferPool.sizeClass( 8192 ) );
+		assertEquals( 10240, DirectBufferPool.sizeClass( 8193 ) );
+		for ( int bytes = 4097; bytes < 1 << 20; bytes += 997 )
+		{
+			final int size = DirectBufferPool.sizeClass( bytes );
+			assertTrue( size >= bytes );
+			assertTrue( size <= 1.25 * bytes );
+		}
+	}
+
+	@Test
+	public void testExactCapacity()
+	{
+		final DirectBufferPool pool = new DirectBufferPool();
+		final FloatBuffer floats = pool.floats( 1001 );
+		assertEquals( 1001, floats.capacity() );
+		assertEquals( 1001, floats.remaining() );
+		assertTrue( floats.isDirect() );
+		assertEquals( ByteOrder.nativeOrder(), floats.order() );
+		final IntBuffer ints = pool.ints( 3 );
+		assertEquals( 3, ints.capacity() );
+		assertTrue( ints.isDirect() );
+	}
+
+	@Test
+	public void testReuse()
+	{
+		final DirectBufferPool pool = new DirectBufferPool();
+		final FloatBuffer floats = pool.floats( 1000 );
+		floats.put( 999, 1f );
+		pool.release( floats );
+		assertEquals( 4096, pool.getPooledBytes() );
+
+		// Same size class, other type.
+		final IntBuffer ints = pool.ints( 900 );
+		assertEquals( 900, ints.capacity() );
+		assertEquals( 1, pool.getHits() );
+		assertEquals( 1, pool.getMisses() );
+		assertEquals( 0, pool.getPooledBytes() );
+
+		// Other size class.
+		pool.release( ints );
+		pool.floats( 2000 );
+		assertEquals( 1, pool.getHits() );
+		assertEquals( 2, pool.getMisses() );
+		assertEquals( 4096, pool.getPooledBytes() );
+	}
+
+	@Test
+	public void testReleaseOnce()
+	{
+		final DirectBufferPool pool = new DirectBufferPool();
+		final FloatBuffer floats = pool.floats( 10 );
+		pool.release( floats );
+		pool.release( floats );
+		pool.release( FloatBuffer.allocate( 10 ) );
+		pool.release( null );
+		assertEquals( 4096, pool.getPooledBytes() );
+		pool.floats( 10 );
+		pool.floats( 10 );
+		assertEquals( 1, pool.getHits() );
+	}
+
+	@Test
+	public void testGrowThenDrain()
+	{
+		final DirectBufferPool pool = new DirectBufferPool();
+		pool.setMaxPooledBytes( 64 << 10 );
+		final List< FloatBuffer > buffers = new ArrayList<>();
+		for ( int n = 1024; n <= 16 << 10; n *= 2 )
+			buffers.add( pool.floats( n ) );
+		for ( final FloatBuffer buffer : buffers )
+			pool.release( buffer );
+		// 4 + 8 + 16 + 32 kB kept, 64 kB dropped.
+		assertEquals( 60 << 10, pool.getPooledBytes() );
+
+		for ( int n = 1024; n <= 8 << 10; n *= 2 )
+			pool.floats( n );
+		assertEquals( 4, pool.getHits() );
+		assertEquals( 0, pool.getPooledBytes() );
+
+		pool.release( pool.floats( 1024 ) );
+		pool.setMaxPooledBytes( 0 );
+		assertEquals( 0, pool.getPooledBytes() );
+	}
+
+	@Test
+	public void testDroppedBuffers() throws InterruptedException
+	{
+		final DirectBufferPool pool = new DirectBufferPool();
+		final FloatBuffer kept = pool.floats( 10 );
+		pool.floats( 10 );
+		pool.ints( 10 );
+		assertEquals( 3, pool.getOutstandingBuffers() );
+
+		// The buffers dropped without being released are not pinned.
+		for ( int i = 0; i < 100 && pool.getOutstandingBuffers() > 1; i++ )
+		{
+			System.gc();
+			Thread.sleep( 10 );
+		}
+		assertEquals( 1, pool.getOutstandingBuffers() );
+		assertEquals( 0, pool.getPooledBytes() );
+
+		pool.release( kept );
+		assertEquals( 0, pool.getOutstandingBuffers() );
+		assertEquals( 4096, pool.getPooledBytes() );
+	}
+}
@@ -0,0 +1,85 @@
+package org.mastodon.views.bvv.scene;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class DirtyInstancesTest
+{
+
+	private static final int N = 1000;
+
+	@Test
+	public void testAddTwice()
+	{
+		final DirtyInstances dirty = new DirtyInstances();
+		dirty.add( 5 );
+		dirty.add( 5 );
+		assertEquals( 1, dirty.size() );
+		assertEquals( Arrays.asList( range( 5, 6 ) ), drain( dirty, N ) );
+		assertTrue( dirty.isEmpty() );
+		assertEquals( Arrays.asList(), drain( dirty, N ) );
+	}
+
+	@Test
+	public void testMergeGaps()
+	{
+		final DirtyInstances dirty = new DirtyInstances();
+		// Merged: MAX_GAP clean instances in between.
+		dirty.add( 0 );
+		dirty.add( 1 + DirtyInstances.MAX_GAP );
+		// Separate: one more clean instance.
+		final int far = 2 + 2 * DirtyInstances.MAX_GAP + 1;
+		dirty.add( far, far + 3 );
+		assertEquals( 5, dirty.size() );
+		assertEquals( Arrays.asList(
+				range( 0, 2 + DirtyInstances.MAX_GAP ),
+				range( far, far + 3 ) ),
+				drain( dirty, N ) );
+	}
+
+	@Test
+	public void testFullUpload()
+	{
+		final DirtyInstances dirty = new DirtyInstances();
+		final int limit = ( int ) ( DirtyInstances.FULL_UPLOAD_FRACTION * N );
+		// At the limit: the merged range of the dirty instances.
+		for ( int i = 0; i < limit; i++ )
+			dirty.add( 3 * i );
+		assertEquals( Arrays.asList( range( 0, 3 * ( limit - 1 ) + 1 ) ), drain( dirty, N ) );
+
+		// Above: all the instances.
+		for ( int i = 0; i <= limit; i++ )
+			dirty.add( 3 * i );
+		assertEquals( Arrays.asList( range( 0, N ) ), drain( dirty, N ) );
+	}
+
+	@Test
+	public void testRemovedInstances()
+	{
+		final DirtyInstances dirty = new DirtyInstances();
+		dirty.add( 10 );
+		dirty.add( 60 );
+		dirty.add( 150 );
+		// The buffers shrank to 100 instances since.
+		assertEquals( Arrays.asList( range( 10, 11 ), range( 60, 61 ) ), drain( dirty, 100 ) );
+		assertTrue( dirty.isEmpty() );
+	}
+
+	private static List< List< Integer > > drain( final DirtyInstances dirty, final int numInstances )
+	{
+		final List< List< Integer > > ranges = new ArrayList<>();
+		dirty.drain( numInstances, ( start, end ) -> ranges.add( range( start, end ) ) );
+		return ranges;
+	}
+
+	private static List< Integer > range( final int start, final int end )
+	{
+		return Arrays.asList( start, end );
+	}
+}
@@ -0,0 +1,147 @@
+package org.mastodon.views.bvv.scene;
+
+import static com.jogamp.opengl.GL.GL_COLOR_BUFFER_BIT;
+import static com.jogamp.opengl.GL.GL_DEPTH_BUFFER_BIT;
+import static com.jogamp.opengl.GL.GL_DEPTH_TEST;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Random;
+
+import org.joml.Matrix3f;
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+import org.mastodon.views.bvv.scene.OverlayModelUpdateGenerator.OverlayModelUpdate;
+import org.mastodon.views.bvv.scene.OverlayRenderOptions.EllipsoidMode;
+
+import com.jogamp.opengl.GL3;
+import com.jogamp.opengl.GLAutoDrawable;
+import com.jogamp.opengl.GLCapabilities;
+import com.jogamp.opengl.GLDrawableFactory;
+import com.jogamp.opengl.GLProfile;
+import com.jogamp.opengl.util.GLBuffers;
+
+import bvv.core.backend.jogl.JoglGpuContext;
+import bvv.core.shadergen.DefaultShader;
+
+/**
+ * Compares the time to draw many ellipsoids as meshes, as meshes with a level
+ * of detail adapted to their size on the screen, and as ray-cast impostors,
+ * in an offscreen GL context.
+ */
+public class EllipsoidModeBenchmark
+{
+
+	private static final int N_INSTANCES = 1_000_000;
+
+	private static final int SIZE = 1024;
+
+	private static final int N_RUNS = 20;
+
+	public static void main( final String[] args )
+	{
+		final OverlayModelUpdate update = randomUpdate( N_INSTANCES );
+
+		final GLProfile profile = GLProfile.getMaxProgrammableCore( true );
+		final GLCapabilities caps = new GLCapabilities( profile );
+		caps.setDepthBits( 24 );
+		final GLAutoDrawable drawable = GLDrawableFactory.getFactory( profile )
+				.createOffscreenAutoDrawable( null, caps, null, SIZE, SIZE );
+		drawable.display();
+		drawable.getContext().makeCurrent();
+		try
+		{
+			final GL3 gl = drawable.getGL().getGL3();
+			System.out.println( "GL: " + gl.glGetString( GL3.GL_VERSION ) + " - " + gl.glGetString( GL3.GL_RENDERER ) );
+			gl.glViewport( 0, 0, SIZE, SIZE );
+			gl.glEnable( GL_DEPTH_TEST );
+
+			final InstanceLayout layout = new SeparateInstanceLayout();
+			final InstanceArena arena = new InstanceArena( layout, new DirectBufferPool(), false );
+			arena.init( gl );
+			final InstanceArena.Slot slot = arena.allocate( gl, N_INSTANCES );
+			arena.uploadAll( gl, slot, update, 0, N_INSTANCES );
+			final IntBuffer ids = GLBuffers.newDirectIntBuffer( N_INSTANCES );
+
+			// Camera looking at the center of the cloud.
+			final Vector3f camPos = new Vector3f( 0f, 0f, 2500f );
+			final Matrix4f vm = new Matrix4f().lookAt( camPos, new Vector3f(), new Vector3f( 0f, 1f, 0f ) );
+			final Matrix4f pvm = new Matrix4f().perspective( ( float ) Math.toRadians( 45. ), 1f, 10f, 10000f ).mul( vm );
+			final Matrix3f itvm = new Matrix3f();
+			new Matrix4f( vm ).invert().transpose().get3x3( itvm );
+
+			final JoglGpuContext context = JoglGpuContext.get( gl );
+			for ( final String name : new String[] { "MESH", "MESH+LOD", "IMPOSTOR" } )
+			{
+				final EllipsoidMode mode = name.equals( "IMPOSTOR" ) ? EllipsoidMode.IMPOSTOR : EllipsoidMode.MESH;
+				final LodBuckets buckets = new LodBuckets();
+				if ( name.equals( "MESH+LOD" ) )
+					buckets.sort( update, N_INSTANCES, null, pvm, SIZE, OverlayRenderOptions.DEFAULT_TRIANGLE_BUDGET, ids );
+				else
+					buckets.all( N_INSTANCES, null, mode == EllipsoidMode.IMPOSTOR ? InstanceMeshes.BOX : InstanceMeshes.SPHERE, ids );
+				arena.uploadIds( gl, slot, ids, 0, buckets.size() );
+				long primitives = 0;
+				for ( int b = 0; b < buckets.numBuckets(); b++ )
+					primitives += ( long ) buckets.count( b ) * buckets.mesh( b ).primitiveCount();
+
+				final DefaultShader prog = ShaderPrograms.createShader( mode, layout );
+				prog.use( context );
+				prog.getUniformMatrix4f( "pvm" ).set( pvm );
+				prog.getUniformMatrix4f( "vm" ).set( vm );
+				prog.getUniformMatrix3f( "itvm" ).set( itvm );
+				if ( mode == EllipsoidMode.IMPOSTOR )
+					prog.getUniform3f( "camPos" ).set( camPos.x, camPos.y, camPos.z );
+				arena.bindTextures( gl, prog, slot );
+				prog.setUniforms( context );
+
+				long total = 0;
+				for ( int run = 0; run < N_RUNS; run++ )
+				{
+					gl.glClear( GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT );
+					gl.glFinish();
+					final long start = System.nanoTime();
+					for ( int b = 0; b < buckets.numBuckets(); b++ )
+						arena.draw( gl, slot, buckets.first( b ), buckets.count( b ), buckets.mesh( b ) );
+					gl.glFinish();
+					final long end = System.nanoTime();
+					// Skip the first run, for warm-up.
+					if ( run > 0 )
+						total += end - start;
+				}
+				arena.unbindTextures( gl );
+				System.out.println( String.format( "%-8s - %d primitives - %d instances at %dx%d: %.1f ms per frame",
+						name,
+						primitives,
+						N_INSTANCES,
+						SIZE, SIZE,
+						total / 1e6 / ( N_RUNS - 1 ) ) );
+			}
+			arena.dispose( gl );
+		}
+		finally
+		{
+			drawable.getContext().release();
+			drawable.destroy();
+		}
+	}
+
+	static OverlayModelUpdate randomUpdate( final int n )
+	{
+		final Random ran = new Random( 1l );
+		final FloatBuffer shapes = GLBuffers.newDirectFloatBuffer( ShapeMatrices.FLOATS * n );
+		final FloatBuffer translations = GLBuffers.newDirectFloatBuffer( 3 * n );
+		final IntBuffer colors = GLBuffers.newDirectIntBuffer( n );
+		for ( int i = 0; i < n; i++ )
+		{
+			final double[][] cov = new double[ 3 ][ 3 ];
+			for ( int d = 0; d < 3; d++ )
+				cov[ d ][ d ] = 1. + 25. * ran.nextDouble();
+			cov[ 0 ][ 1 ] = cov[ 1 ][ 0 ] = 0.5 * Math.min( cov[ 0 ][ 0 ], cov[ 1 ][ 1 ] ) * ran.nextDouble();
+			ShapeMatrices.shapeMatrix( cov, shapes, ShapeMatrices.FLOATS * i );
+			for ( int d = 0; d < 3; d++ )
+				translations.put( 3 * i + d, 1000f * ( ran.nextFloat() - 0.5f ) );
+			colors.put( i, ran.nextInt() );
+		}
+		return new OverlayModelUpdate( n, shapes, translations, colors );
+	}
+}
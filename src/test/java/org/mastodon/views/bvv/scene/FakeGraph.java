@@ -0,0 +1,176 @@
+package org.mastodon.views.bvv.scene;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+
+import org.mastodon.model.SelectionModel;
+import org.mastodon.spatial.SpatialIndex;
+import org.mastodon.ui.coloring.GraphColorGenerator;
+import org.mastodon.views.bdv.overlay.OverlayEdge;
+import org.mastodon.views.bdv.overlay.OverlayGraph;
+import org.mastodon.views.bdv.overlay.OverlayVertex;
+
+/**
+ * A graph of spheres and links, exposed through proxies of the Mastodon
+ * interfaces read by the update generators. The methods the generators do not
+ * use throw an {@link UnsupportedOperationException}.
+ */
+class FakeGraph
+{
+
+	interface Spot extends OverlayVertex< Spot, Link >
+	{}
+
+	interface Link extends OverlayEdge< Link, Spot >
+	{}
+
+	final List< Spot > spots = new ArrayList<>();
+
+	final List< Link > links = new ArrayList<>();
+
+	/**
+	 * The selected spots and links.
+	 */
+	final Set< Object > selected = new HashSet<>();
+
+	final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**
+	 * Adds a sphere of the specified radius, centered at the specified
+	 * position. Its id is the number of spots added before.
+	 */
+	Spot addSpot( final float x, final float y, final float z, final double radius, final int timepoint )
+	{
+		final int id = spots.size();
+		final float[] pos = { x, y, z };
+		final Map< String, Function< Object[], Object > > methods = new HashMap<>();
+		methods.put( "getInternalPoolIndex", args -> id );
+		methods.put( "getTimepoint", args -> timepoint );
+		methods.put( "getFloatPosition", args -> pos[ ( Integer ) args[ 0 ] ] );
+		methods.put( "getDoublePosition", args -> ( double ) pos[ ( Integer ) args[ 0 ] ] );
+		methods.put( "getCovariance", args -> {
+			final double[][] cov = ( double[][] ) args[ 0 ];
+			for ( int r = 0; r < 3; r++ )
+				for ( int c = 0; c < 3; c++ )
+					cov[ r ][ c ] = ( r == c ) ? radius * radius : 0;
+			return null;
+		} );
+		final Spot spot = proxy( Spot.class, methods );
+		spots.add( spot );
+		return spot;
+	}
+
+	/**
+	 * Adds a link between the specified spots. Its id is the number of links
+	 * added before.
+	 */
+	Link addLink( final Spot source, final Spot target )
+	{
+		final int id = links.size();
+		final Map< String, Function< Object[], Object > > methods = new HashMap<>();
+		methods.put( "getInternalPoolIndex", args -> id );
+		methods.put( "getSource", args -> source );
+		methods.put( "getTarget", args -> target );
+		final Link link = proxy( Link.class, methods );
+		links.add( link );
+		return link;
+	}
+
+	/**
+	 * Returns a spatial index of the spots, in the order they were added.
+	 */
+	@SuppressWarnings( "unchecked" )
+	SpatialIndex< Spot > index()
+	{
+		final Map< String, Function< Object[], Object > > methods = new HashMap<>();
+		methods.put( "size", args -> spots.size() );
+		methods.put( "isEmpty", args -> spots.isEmpty() );
+		methods.put( "iterator", args -> spots.iterator() );
+		return proxy( SpatialIndex.class, methods );
+	}
+
+	@SuppressWarnings( "unchecked" )
+	OverlayGraph< Spot, Link > graph()
+	{
+		final Map< String, Function< Object[], Object > > methods = new HashMap<>();
+		methods.put( "vertexRef", args -> null );
+		methods.put( "releaseRef", args -> null );
+		methods.put( "vertices", args -> spots );
+		methods.put( "edges", args -> links );
+		methods.put( "getLock", args -> lock );
+		return proxy( OverlayGraph.class, methods );
+	}
+
+	@SuppressWarnings( "unchecked" )
+	SelectionModel< Spot, Link > selection()
+	{
+		final Map< String, Function< Object[], Object > > methods = new HashMap<>();
+		methods.put( "isSelected", args -> selected.contains( args[ 0 ] ) );
+		return proxy( SelectionModel.class, methods );
+	}
+
+	/**
+	 * Returns a color generator that colors nothing, so that the default
+	 * colors of the render settings are used.
+	 */
+	@SuppressWarnings( "unchecked" )
+	static GraphColorGenerator< Spot, Link > noColoring()
+	{
+		final Map< String, Function< Object[], Object > > methods = new HashMap<>();
+		methods.put( "color", args -> 0 );
+		return proxy( GraphColorGenerator.class, methods );
+	}
+
+	/**
+	 * Returns a proxy of the specified interface that implements the
+	 * specified methods, by name. It equals itself only. The results that are
+	 * not instances of the declared return type, like a list returned for a
+	 * Mastodon ref collection, are wrapped in a proxy of that type that
+	 * forwards to them.
+	 */
+	@SuppressWarnings( "unchecked" )
+	private static < T > T proxy( final Class< T > type, final Map< String, Function< Object[], Object > > methods )
+	{
+		return ( T ) Proxy.newProxyInstance( FakeGraph.class.getClassLoader(), new Class< ? >[] { type }, ( p, m, args ) -> {
+			switch ( m.getName() )
+			{
+			case "equals":
+				return p == args[ 0 ];
+			case "hashCode":
+				return System.identityHashCode( p );
+			case "toString":
+				return type.getSimpleName() + "@" + Integer.toHexString( System.identityHashCode( p ) );
+			}
+			final Function< Object[], Object > f = methods.get( m.getName() );
+			if ( f == null )
+				throw new UnsupportedOperationException( m.toString() );
+			return adapt( m.getReturnType(), f.apply( args ) );
+		} );
+	}
+
+	private static Object adapt( final Class< ? > type, final Object result )
+	{
+		if ( result == null || type.isPrimitive() || type.isInstance( result ) || !type.isInterface() )
+			return result;
+		return Proxy.newProxyInstance( FakeGraph.class.getClassLoader(), new Class< ? >[] { type }, ( p, m, args ) -> {
+			final Method target = result.getClass().getMethod( m.getName(), m.getParameterTypes() );
+			try
+			{
+				return target.invoke( result, args );
+			}
+			catch ( final InvocationTargetException e )
+			{
+				throw e.getCause();
+			}
+		} );
+	}
+}
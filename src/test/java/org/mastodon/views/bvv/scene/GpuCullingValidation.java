@@ -0,0 +1,178 @@
+package org.mastodon.views.bvv.scene;
+
+import static com.jogamp.opengl.GL3.GL_COPY_READ_BUFFER;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+import org.mastodon.views.bvv.scene.OverlayModelUpdateGenerator.OverlayModelUpdate;
+
+import com.jogamp.opengl.GL3;
+import com.jogamp.opengl.GLAutoDrawable;
+import com.jogamp.opengl.GLCapabilities;
+import com.jogamp.opengl.GLDrawableFactory;
+import com.jogamp.opengl.GLProfile;
+import com.jogamp.opengl.util.GLBuffers;
+
+/**
+ * Compares the instances culled and sorted by {@link GpuCulling} with the
+ * same culling and sorting done on the CPU, for several views, in an
+ * offscreen GL context.
+ * <p>
+ * To check with the Mesa software renderer, run with the environment variable
+ * <code>LIBGL_ALWAYS_SOFTWARE=1</code>: llvmpipe supports OpenGL 4.5.
+ */
+public class GpuCullingValidation
+{
+
+	private static final int N_INSTANCES = 200_000;
+
+	private static final int SIZE = 1024;
+
+	public static void main( final String[] args )
+	{
+		final OverlayModelUpdate update = EllipsoidModeBenchmark.randomUpdate( N_INSTANCES );
+
+		final GLProfile profile = GLProfile.getMaxProgrammableCore( true );
+		final GLCapabilities caps = new GLCapabilities( profile );
+		final GLAutoDrawable drawable = GLDrawableFactory.getFactory( profile )
+				.createOffscreenAutoDrawable( null, caps, null, SIZE, SIZE );
+		drawable.display();
+		drawable.getContext().makeCurrent();
+		int failures = 0;
+		try
+		{
+			final GL3 gl = drawable.getGL().getGL3();
+			System.out.println( "GL: " + gl.glGetString( GL3.GL_VERSION ) + " - " + gl.glGetString( GL3.GL_RENDERER ) );
+			if ( !GpuCulling.isSupported( gl ) )
+			{
+				System.out.println( "Compute shaders or indirect draws are not supported." );
+				return;
+			}
+
+			final ShaderPrograms programs = ShaderPrograms.acquire( gl );
+			for ( final InstanceLayout layout : new InstanceLayout[] { new SeparateInstanceLayout(), new CompactInstanceLayout() } )
+			{
+				final InstanceArena arena = new InstanceArena( layout, new DirectBufferPool(), false );
+				arena.init( gl );
+				final InstanceArena.Slot slot = arena.allocate( gl, N_INSTANCES );
+				arena.uploadAll( gl, slot, update, 0, N_INSTANCES );
+				final GpuCulling culling = new GpuCulling( layout, programs.cullingProgram( gl, layout ) );
+
+				// Looking at the whole cloud, then zooming in and moving.
+				final float[][] views = new float[][] {
+						{ 0f, 0f, 2500f },
+						{ 0f, 0f, 800f },
+						{ 300f, -200f, 300f },
+						{ -100f, 50f, 0f } };
+				for ( final float[] view : views )
+				{
+					final Vector3f camPos = new Vector3f( view[ 0 ], view[ 1 ], view[ 2 ] );
+					final Matrix4f pvm = new Matrix4f()
+							.perspective( ( float ) Math.toRadians( 45. ), 1f, 10f, 3000f )
+							.lookAt( camPos, new Vector3f( camPos.x, camPos.y, camPos.z - 1f ), new Vector3f( 0f, 1f, 0f ) );
+					for ( final boolean lod : new boolean[] { false, true } )
+					{
+						culling.cull( gl, arena, slot, N_INSTANCES, pvm, SIZE, lod, InstanceMeshes.SPHERE );
+						gl.glFinish();
+						final int mismatches = compare( gl, arena, slot, culling, update, pvm, lod );
+						System.out.println( String.format( "%s - camera at %s - LOD %s: %d mismatches",
+								layout.getClass().getSimpleName(), camPos.toString(), lod, mismatches ) );
+						/*
+						 * Instances on the edge of a bucket or of the frustum
+						 * can be classified differently by the float
+						 * arithmetic of the GPU, and by the half-float shapes
+						 * of the compact layout.
+						 */
+						if ( mismatches > N_INSTANCES / 1000 )
+							failures++;
+					}
+				}
+				culling.dispose( gl );
+				arena.dispose( gl );
+			}
+			programs.release( gl );
+		}
+		finally
+		{
+			drawable.getContext().release();
+			drawable.destroy();
+		}
+		System.out.println( failures == 0 ? "GPU culling matches the CPU reference." : failures + " views do not match." );
+		if ( failures > 0 )
+			System.exit( 1 );
+	}
+
+	/**
+	 * Returns the number of instances that are not in the same bucket on the
+	 * GPU and on the CPU.
+	 */
+	private static int compare(
+			final GL3 gl,
+			final InstanceArena arena,
+			final InstanceArena.Slot slot,
+			final GpuCulling culling,
+			final OverlayModelUpdate update,
+			final Matrix4f pvm,
+			final boolean lod )
+	{
+		final int n = N_INSTANCES;
+
+		// GPU result.
+		final IntBuffer commands = GLBuffers.newDirectIntBuffer( 5 * LodBuckets.N_BUCKETS );
+		gl.glBindBuffer( GL_COPY_READ_BUFFER, culling.commandBuffer() );
+		gl.glGetBufferSubData( GL_COPY_READ_BUFFER, 0, commands.capacity() * Integer.BYTES, commands );
+		final IntBuffer gpuIds = GLBuffers.newDirectIntBuffer( n );
+		gl.glBindBuffer( GL_COPY_READ_BUFFER, arena.indexBuffer() );
+		gl.glGetBufferSubData( GL_COPY_READ_BUFFER, ( long ) slot.offset() * Integer.BYTES, n * Integer.BYTES, gpuIds );
+		gl.glBindBuffer( GL_COPY_READ_BUFFER, 0 );
+		final int[] gpuBuckets = new int[ n ];
+		Arrays.fill( gpuBuckets, -1 );
+		for ( int b = 0; b < LodBuckets.N_BUCKETS; b++ )
+		{
+			final int count = commands.get( 5 * b + 1 );
+			final int first = commands.get( 5 * b + 4 ) - slot.offset();
+			for ( int k = first; k < first + count; k++ )
+				gpuBuckets[ gpuIds.get( k ) ] = b;
+		}
+
+		// CPU reference: bounding spheres against the frustum, then sort.
+		final ViewFrustum frustum = new ViewFrustum();
+		frustum.set( pvm, 0. );
+		final BitSet visible = new BitSet( n );
+		final FloatBuffer shapes = update.shapeBuffer;
+		final FloatBuffer translations = update.translationBuffer;
+		for ( int i = 0; i < n; i++ )
+		{
+			float r2 = 0;
+			for ( int c = 0; c < 3; c++ )
+			{
+				final int o = ShapeMatrices.FLOATS * i + 3 * c;
+				r2 = Math.max( r2, shapes.get( o ) * shapes.get( o ) + shapes.get( o + 1 ) * shapes.get( o + 1 ) + shapes.get( o + 2 ) * shapes.get( o + 2 ) );
+			}
+			if ( frustum.intersects( translations.get( 3 * i ), translations.get( 3 * i + 1 ), translations.get( 3 * i + 2 ), ( float ) Math.sqrt( r2 ) ) )
+				visible.set( i );
+		}
+		final IntBuffer cpuIds = IntBuffer.allocate( n );
+		final LodBuckets buckets = new LodBuckets();
+		if ( lod )
+			buckets.sort( update, n, visible, pvm, SIZE, Long.MAX_VALUE, cpuIds );
+		else
+			buckets.all( n, visible, InstanceMeshes.SPHERE, cpuIds );
+		final int[] cpuBuckets = new int[ n ];
+		Arrays.fill( cpuBuckets, -1 );
+		for ( int b = 0; b < buckets.numBuckets(); b++ )
+			for ( int k = buckets.first( b ); k < buckets.first( b ) + buckets.count( b ); k++ )
+				cpuBuckets[ cpuIds.get( k ) ] = b;
+
+		int mismatches = 0;
+		for ( int i = 0; i < n; i++ )
+			if ( gpuBuckets[ i ] != cpuBuckets[ i ] )
+				mismatches++;
+		return mismatches;
+	}
+}
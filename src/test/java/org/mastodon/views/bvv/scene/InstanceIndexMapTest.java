@@ -0,0 +1,63 @@
+package org.mastodon.views.bvv.scene;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class InstanceIndexMapTest
+{
+
+	@Test
+	public void testPutGetRemove()
+	{
+		final InstanceIndexMap map = new InstanceIndexMap();
+		assertEquals( -1, map.get( 0 ) );
+		assertEquals( -1, map.get( 123 ) );
+
+		map.put( 0, 7 );
+		map.put( 123, 0 );
+		assertEquals( 7, map.get( 0 ) );
+		assertEquals( 0, map.get( 123 ) );
+		assertEquals( -1, map.get( 1 ) );
+
+		map.put( 123, 4 );
+		assertEquals( 4, map.get( 123 ) );
+
+		map.remove( 123 );
+		assertEquals( -1, map.get( 123 ) );
+		assertEquals( 7, map.get( 0 ) );
+	}
+
+	@Test
+	public void testGrowth()
+	{
+		final InstanceIndexMap map = new InstanceIndexMap();
+		// Far past the initial page table, and a page left unallocated.
+		final int far = 100 << 12;
+		assertEquals( -1, map.get( far ) );
+		map.remove( far );
+
+		map.put( far, 1 );
+		map.put( far + 4095, 2 );
+		map.put( 5, 3 );
+		assertEquals( 1, map.get( far ) );
+		assertEquals( 2, map.get( far + 4095 ) );
+		assertEquals( 3, map.get( 5 ) );
+		assertEquals( -1, map.get( far - 1 ) );
+		assertEquals( -1, map.get( far + 4096 ) );
+		assertEquals( -1, map.get( 50 << 12 ) );
+		assertEquals( -1, map.get( Integer.MAX_VALUE ) );
+
+		// Every id of a range, across pages, then drained.
+		final int n = 5 * 4096 + 17;
+		for ( int id = 0; id < n; id++ )
+			map.put( id, n - id );
+		for ( int id = 0; id < n; id++ )
+			assertEquals( n - id, map.get( id ) );
+		for ( int id = 0; id < n; id++ )
+			map.remove( id );
+		for ( int id = 0; id < n; id++ )
+			assertEquals( -1, map.get( id ) );
+		assertEquals( 1, map.get( far ) );
+	}
+}
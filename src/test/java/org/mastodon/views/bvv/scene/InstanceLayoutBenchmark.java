@@ -0,0 +1,138 @@
+package org.mastodon.views.bvv.scene;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Random;
+
+import org.mastodon.views.bvv.scene.OverlayModelUpdateGenerator.OverlayModelUpdate;
+
+import com.jogamp.opengl.GL3;
+import com.jogamp.opengl.GLAutoDrawable;
+import com.jogamp.opengl.GLCapabilities;
+import com.jogamp.opengl.GLDrawableFactory;
+import com.jogamp.opengl.GLProfile;
+import com.jogamp.opengl.util.GLBuffers;
+
+/**
+ * Compares the GPU memory per instance and the upload time of the
+ * {@link SeparateInstanceLayout} and of the {@link CompactInstanceLayout}, in
+ * an offscreen GL context, with and without the persistently mapped
+ * {@link StagingRing}. Two upload patterns are timed: a full upload, which
+ * includes allocating a slot in an {@link InstanceArena} and for the compact
+ * layout packing the data, and a stream of small position edits over many
+ * frames.
+ * <p>
+ * Run with <code>LIBGL_ALWAYS_SOFTWARE=true</code> to check the persistent
+ * mapping path on Mesa's software renderer.
+ */
+public class InstanceLayoutBenchmark
+{
+
+	private static final int N_INSTANCES = 1_000_000;
+
+	private static final int N_RUNS = 10;
+
+	private static final int N_FRAMES = 200;
+
+	private static final int N_EDITS_PER_FRAME = 500;
+
+	public static void main( final String[] args )
+	{
+		final OverlayModelUpdate update = randomUpdate( N_INSTANCES );
+
+		final GLProfile profile = GLProfile.getMaxProgrammableCore( true );
+		final GLCapabilities caps = new GLCapabilities( profile );
+		final GLAutoDrawable drawable = GLDrawableFactory.getFactory( profile )
+				.createOffscreenAutoDrawable( null, caps, null, 16, 16 );
+		drawable.display();
+		drawable.getContext().makeCurrent();
+		try
+		{
+			final GL3 gl = drawable.getGL().getGL3();
+			System.out.println( "GL: " + gl.glGetString( GL3.GL_VERSION ) + " - " + gl.glGetString( GL3.GL_RENDERER ) );
+			final Random ran = new Random( 2l );
+			for ( final boolean persistent : new boolean[] { false, true } )
+			{
+				for ( final boolean compact : new boolean[] { false, true } )
+				{
+					final String name = compact ? "Compact" : "Separate";
+					long total = 0;
+					long streaming = 0;
+					int bytesPerInstance = 0;
+					boolean mapped = false;
+					for ( int run = 0; run < N_RUNS; run++ )
+					{
+						final InstanceLayout layout = compact
+								? new CompactInstanceLayout()
+								: new SeparateInstanceLayout();
+						final InstanceArena arena = new InstanceArena( layout, new DirectBufferPool(), persistent );
+						arena.init( gl );
+						bytesPerInstance = arena.bytesPerInstance();
+						mapped = arena.isPersistentlyMapped();
+						gl.glFinish();
+						final long start = System.nanoTime();
+						final InstanceArena.Slot slot = arena.allocate( gl, N_INSTANCES );
+						arena.uploadAll( gl, slot, update, 0, N_INSTANCES );
+						arena.endFrame( gl );
+						gl.glFinish();
+						final long end = System.nanoTime();
+
+						for ( int frame = 0; frame < N_FRAMES; frame++ )
+						{
+							for ( int e = 0; e < N_EDITS_PER_FRAME; e++ )
+							{
+								final int i = ran.nextInt( N_INSTANCES );
+								arena.uploadPositions( gl, slot, update, i, i + 1 );
+							}
+							arena.endFrame( gl );
+						}
+						gl.glFinish();
+						final long endStreaming = System.nanoTime();
+
+						arena.dispose( gl );
+						// Skip the first run, for warm-up.
+						if ( run > 0 )
+						{
+							total += end - start;
+							streaming += endStreaming - end;
+						}
+					}
+					System.out.println( String.format( "%-8s layout - %s - %d bytes per instance (colors included) - %.1f MB for %d instances - upload: %.1f ms - %d edits over %d frames: %.1f ms",
+							name,
+							mapped ? "persistent mapping" : "glBufferSubData",
+							bytesPerInstance,
+							( double ) bytesPerInstance * N_INSTANCES / 1e6,
+							N_INSTANCES,
+							total / 1e6 / ( N_RUNS - 1 ),
+							N_EDITS_PER_FRAME * N_FRAMES,
+							N_FRAMES,
+							streaming / 1e6 / ( N_RUNS - 1 ) ) );
+				}
+			}
+		}
+		finally
+		{
+			drawable.getContext().release();
+			drawable.destroy();
+		}
+	}
+
+	private static OverlayModelUpdate randomUpdate( final int n )
+	{
+		final Random ran = new Random( 1l );
+		final FloatBuffer shapes = GLBuffers.newDirectFloatBuffer( ShapeMatrices.FLOATS * n );
+		final FloatBuffer translations = GLBuffers.newDirectFloatBuffer( 3 * n );
+		final IntBuffer colors = GLBuffers.newDirectIntBuffer( n );
+		for ( int i = 0; i < n; i++ )
+		{
+			final double[][] cov = new double[ 3 ][ 3 ];
+			for ( int d = 0; d < 3; d++ )
+				cov[ d ][ d ] = 1. + 25. * ran.nextDouble();
+			ShapeMatrices.shapeMatrix( cov, shapes, ShapeMatrices.FLOATS * i );
+			for ( int d = 0; d < 3; d++ )
+				translations.put( 3 * i + d, 1000f * ran.nextFloat() );
+			colors.put( i, ran.nextInt() );
+		}
+		return new OverlayModelUpdate( n, shapes, translations, colors );
+	}
+}
@@ -0,0 +1,232 @@
+package org.mastodon.views.bvv.scene;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+import org.mastodon.views.bdv.overlay.RenderSettings;
+import org.mastodon.views.bvv.scene.FakeGraph.Link;
+import org.mastodon.views.bvv.scene.FakeGraph.Spot;
+import org.mastodon.views.bvv.scene.LinkUpdateGenerator.LinkTarget;
+import org.mastodon.views.bvv.scene.LinkUpdateGenerator.LinkUpdate;
+
+import gnu.trove.list.array.TIntArrayList;
+
+public class LinkUpdateGeneratorTest
+{
+
+	/**
+	 * Number of links of the first full update, enough for the edits of a
+	 * few links to be uploaded as ranges.
+	 */
+	private static final int N = 20;
+
+	private final FakeGraph graph = new FakeGraph();
+
+	private final RenderSettings settings = RenderSettings.defaultStyle();
+
+	private final DirectBufferPool pool = new DirectBufferPool();
+
+	/**
+	 * The link data passed to the last transfer that passed some.
+	 */
+	private LinkUpdate last;
+
+	@Test
+	public void testRemoveLast()
+	{
+		addLinks( N );
+		final LinkUpdateGenerator< Spot, Link > generator = regen();
+
+		generator.removeLink( graph.links.get( N - 1 ) );
+		generator.removeLink( graph.links.get( N - 1 ) );
+
+		final Transfer t = transfer( generator );
+		assertEquals( N - 1, t.numLinks );
+		assertTrue( t.ends.isEmpty() );
+		assertTrue( t.colors.isEmpty() );
+	}
+
+	@Test
+	public void testRemoveMiddleWhileSelected()
+	{
+		addLinks( N );
+		graph.selected.add( graph.links.get( 1 ) );
+		graph.selected.add( graph.links.get( N - 1 ) );
+		final LinkUpdateGenerator< Spot, Link > generator = regen();
+
+		// The last link, selected, moves to the freed slot.
+		generator.removeLink( graph.links.get( 1 ) );
+		Transfer t = transfer( generator );
+		assertEquals( N - 1, t.numLinks );
+		assertEquals( N - 1, linkAt( t.data, 1 ) );
+		assertEquals( N, t.data.endBuffer.get( LinkUpdate.FLOATS + 6 ), 0f );
+		assertEquals( color( true ), t.data.colorBuffer.get( 1 ) );
+		assertEquals( Arrays.asList( range( 1, 2 ) ), t.ends );
+		assertEquals( Arrays.asList( range( 1, 2 ) ), t.colors );
+
+		// Its selection state moved with it.
+		generator.updateSelection( new TIntArrayList() );
+		t = transfer( generator );
+		assertEquals( Arrays.asList( range( 1, 2 ) ), t.colors );
+		assertEquals( color( false ), t.data.colorBuffer.get( 1 ) );
+
+		generator.updateSelection( new TIntArrayList( new int[] { N - 1 } ) );
+		t = transfer( generator );
+		assertEquals( Arrays.asList( range( 1, 2 ) ), t.colors );
+		assertEquals( color( true ), t.data.colorBuffer.get( 1 ) );
+
+		// Removing it leaves no selected link behind.
+		generator.removeLink( graph.links.get( N - 1 ) );
+		t = transfer( generator );
+		assertEquals( N - 2, t.numLinks );
+		assertEquals( N - 2, linkAt( t.data, 1 ) );
+		generator.updateSelection( new TIntArrayList() );
+		t = transfer( generator );
+		assertTrue( t.colors.isEmpty() );
+		assertEquals( color( false ), t.data.colorBuffer.get( 0 ) );
+		assertEquals( color( false ), t.data.colorBuffer.get( 1 ) );
+	}
+
+	@Test
+	public void testGrowThenDrain()
+	{
+		addLinks( 1 );
+		final LinkUpdateGenerator< Spot, Link > generator = regen();
+
+		final int n = 200;
+		for ( int i = 1; i < n; i++ )
+			generator.addLink( graph.addLink( graph.addSpot( i, 0f, 0f, 1., 0 ), graph.addSpot( i, 1f, 0f, 1., 1 ) ) );
+
+		Transfer t = transfer( generator );
+		assertTrue( t.reallocated );
+		assertEquals( n, t.numLinks );
+		assertTrue( t.data.capacity() >= n );
+		for ( int i = 0; i < n; i++ )
+			assertEquals( i, linkAt( t.data, i ) );
+		// The buffers outgrown were returned to the pool.
+		assertTrue( pool.getPooledBytes() > 0 );
+
+		final Set< Integer > remaining = new HashSet<>();
+		for ( int i = 0; i < n; i++ )
+			remaining.add( i );
+		for ( int i = 0; i < n; i++ )
+		{
+			generator.removeLink( graph.links.get( i ) );
+			remaining.remove( i );
+			t = transfer( generator );
+			assertEquals( n - i - 1, t.numLinks );
+			final Set< Integer > found = new HashSet<>();
+			for ( int k = 0; k < t.numLinks; k++ )
+				found.add( linkAt( t.data, k ) );
+			assertEquals( remaining, found );
+		}
+	}
+
+	/**
+	 * Adds links 0 to <code>n - 1</code>, link <code>i</code> going from a
+	 * spot at X = <code>i</code> and timepoint <code>i</code> to a spot of the
+	 * next timepoint.
+	 */
+	private void addLinks( final int n )
+	{
+		for ( int i = 0; i < n; i++ )
+			graph.addSpot( i, 0f, 0f, 1., i );
+		for ( int i = 0; i < n; i++ )
+		{
+			final Spot target = graph.addSpot( i, 1f, 0f, 1., i + 1 );
+			graph.addLink( graph.spots.get( i ), target );
+		}
+	}
+
+	/**
+	 * Returns a generator of the links added so far, with its first full
+	 * update transferred.
+	 */
+	private LinkUpdateGenerator< Spot, Link > regen()
+	{
+		final LinkUpdateGenerator< Spot, Link > generator = new LinkUpdateGenerator<>(
+				graph.graph(),
+				graph.lock.readLock(),
+				graph.selection(),
+				FakeGraph.noColoring(),
+				settings,
+				pool );
+		generator.regenAll();
+		assertTrue( transfer( generator ).reallocated );
+		return generator;
+	}
+
+	/**
+	 * Returns the id of the link at the specified index: the X position of
+	 * its source.
+	 */
+	private static int linkAt( final LinkUpdate data, final int index )
+	{
+		return ( int ) data.endBuffer.get( LinkUpdate.FLOATS * index );
+	}
+
+	private int color( final boolean selected )
+	{
+		return OverlayModelUpdateGenerator.packRGBA( OverlayModelUpdateGenerator.getColor( selected, settings.getColorPast(), 0 ) );
+	}
+
+	private Transfer transfer( final LinkUpdateGenerator< Spot, Link > generator )
+	{
+		final Transfer t = new Transfer();
+		t.numLinks = generator.transferUpdates( t );
+		if ( t.data == null )
+			t.data = last;
+		last = t.data;
+		return t;
+	}
+
+	private static List< Integer > range( final int start, final int end )
+	{
+		return Arrays.asList( start, end );
+	}
+
+	/**
+	 * Records a transfer.
+	 */
+	private static class Transfer implements LinkTarget
+	{
+
+		boolean reallocated;
+
+		final List< List< Integer > > ends = new ArrayList<>();
+
+		final List< List< Integer > > colors = new ArrayList<>();
+
+		LinkUpdate data;
+
+		int numLinks;
+
+		@Override
+		public void reallocate( final LinkUpdate data )
+		{
+			reallocated = true;
+			this.data = data;
+		}
+
+		@Override
+		public void uploadEnds( final LinkUpdate data, final int start, final int end )
+		{
+			ends.add( range( start, end ) );
+			this.data = data;
+		}
+
+		@Override
+		public void uploadColors( final LinkUpdate data, final int start, final int end )
+		{
+			colors.add( range( start, end ) );
+			this.data = data;
+		}
+	}
+}
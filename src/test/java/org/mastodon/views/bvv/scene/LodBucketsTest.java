@@ -0,0 +1,160 @@
+package org.mastodon.views.bvv.scene;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+
+import org.joml.Matrix4f;
+import org.junit.Test;
+import org.mastodon.views.bvv.scene.OverlayModelUpdateGenerator.OverlayModelUpdate;
+
+public class LodBucketsTest
+{
+
+	private static final double SCREEN_HEIGHT = 1000.;
+
+	@Test
+	public void testBuckets()
+	{
+		assertEquals( 0, LodBuckets.bucket( -2 ) );
+		assertEquals( 1, LodBuckets.bucket( -1 ) );
+		assertEquals( 1, LodBuckets.bucket( 2 ) );
+		assertEquals( 2, LodBuckets.bucket( 3 ) );
+		assertEquals( 3, LodBuckets.bucket( 4 ) );
+		assertEquals( 4, LodBuckets.bucket( 5 ) );
+		assertEquals( 4, LodBuckets.bucket( 30 ) );
+	}
+
+	/**
+	 * The thresholds given to the GPU culling shader must sort the instances
+	 * like {@link LodBuckets#bucket(int)}.
+	 */
+	@Test
+	public void testThresholds()
+	{
+		final float[] thresholds = LodBuckets.thresholds();
+		assertEquals( LodBuckets.N_BUCKETS - 1, thresholds.length );
+		assertEquals( 0.5f, thresholds[ 0 ], 0f );
+		for ( int octave = -16; octave <= 30; octave++ )
+		{
+			final float px = Math.scalb( 1f, octave );
+			int b = 0;
+			while ( b < thresholds.length && px >= thresholds[ b ] )
+				b++;
+			assertEquals( "Unexpected bucket for " + px + " px.", LodBuckets.bucket( octave ), b );
+		}
+	}
+
+	@Test
+	public void testSort()
+	{
+		/*
+		 * Orthographic-like projection: a radius r is projected to r * 500
+		 * pixels for w = 1.
+		 */
+		final Matrix4f pvm = new Matrix4f();
+		final OverlayModelUpdate data = spheres(
+				new float[] { 100f, 1e-4f, 0.02f, 0.1f, 1e-4f },
+				new float[] { 0f, 0f, 0f, 0f, 0f } );
+		final IntBuffer ids = IntBuffer.allocate( 5 );
+		final LodBuckets buckets = new LodBuckets();
+		buckets.sort( data, 5, null, pvm, SCREEN_HEIGHT, Long.MAX_VALUE, ids );
+
+		assertEquals( 5, buckets.size() );
+		assertEquals( 0, buckets.bias() );
+		// 0.05 px: points, in order.
+		assertEquals( 2, buckets.count( 0 ) );
+		assertSame( InstanceMeshes.POINT, buckets.mesh( 0 ) );
+		assertEquals( 1, ids.get( 0 ) );
+		assertEquals( 4, ids.get( 1 ) );
+		// 10 px.
+		assertEquals( 1, buckets.count( 2 ) );
+		assertEquals( 2, ids.get( buckets.first( 2 ) ) );
+		// 50 px and 50000 px.
+		assertEquals( 2, buckets.count( 4 ) );
+		assertEquals( 0, ids.get( buckets.first( 4 ) ) );
+		assertEquals( 3, ids.get( buckets.first( 4 ) + 1 ) );
+	}
+
+	@Test
+	public void testCulling()
+	{
+		final Matrix4f pvm = new Matrix4f().m33( 0f ).m03( 1f );
+		final OverlayModelUpdate data = spheres(
+				new float[] { 1f, 1f, 1f },
+				new float[] { 10f, -10f, 0f } );
+		final IntBuffer ids = IntBuffer.allocate( 3 );
+		final LodBuckets buckets = new LodBuckets();
+		buckets.sort( data, 3, null, pvm, SCREEN_HEIGHT, Long.MAX_VALUE, ids );
+
+		assertEquals( 1, buckets.size() );
+		assertEquals( 0, ids.get( 0 ) );
+	}
+
+	@Test
+	public void testVisible()
+	{
+		final OverlayModelUpdate data = spheres(
+				new float[] { 1f, 1f, 1f, 1f },
+				new float[] { 0f, 0f, 0f, 0f } );
+		final BitSet visible = new BitSet();
+		visible.set( 1 );
+		visible.set( 3 );
+		final IntBuffer ids = IntBuffer.allocate( 4 );
+		final LodBuckets buckets = new LodBuckets();
+
+		buckets.sort( data, 4, visible, new Matrix4f(), SCREEN_HEIGHT, Long.MAX_VALUE, ids );
+		assertEquals( 2, buckets.size() );
+		assertEquals( 1, ids.get( 0 ) );
+		assertEquals( 3, ids.get( 1 ) );
+
+		buckets.all( 4, visible, InstanceMeshes.SPHERE, ids );
+		assertEquals( 2, buckets.count( 0 ) );
+		assertSame( InstanceMeshes.SPHERE, buckets.mesh( 0 ) );
+		assertEquals( 1, ids.get( 0 ) );
+		assertEquals( 3, ids.get( 1 ) );
+	}
+
+	@Test
+	public void testTriangleBudget()
+	{
+		final int n = 1000;
+		final float[] radii = new float[ n ];
+		Arrays.fill( radii, 1f );
+		final OverlayModelUpdate data = spheres( radii, new float[ n ] );
+		final IntBuffer ids = IntBuffer.allocate( n );
+		final LodBuckets buckets = new LodBuckets();
+		final long budget = 100_000;
+		buckets.sort( data, n, null, new Matrix4f(), SCREEN_HEIGHT, budget, ids );
+
+		assertTrue( buckets.bias() > 0 );
+		long primitives = 0;
+		for ( int b = 0; b < buckets.numBuckets(); b++ )
+			primitives += ( long ) buckets.count( b ) * buckets.mesh( b ).primitiveCount();
+		assertTrue( primitives <= budget );
+		assertEquals( n, buckets.size() );
+	}
+
+	/**
+	 * Spheres of the specified radii, centered on the X axis at the
+	 * specified positions.
+	 */
+	private static OverlayModelUpdate spheres( final float[] radii, final float[] xs )
+	{
+		final int n = radii.length;
+		final FloatBuffer shapes = FloatBuffer.allocate( ShapeMatrices.FLOATS * n );
+		final FloatBuffer translations = FloatBuffer.allocate( 3 * n );
+		for ( int i = 0; i < n; i++ )
+		{
+			for ( int d = 0; d < 3; d++ )
+				shapes.put( ShapeMatrices.FLOATS * i + 4 * d, radii[ i ] );
+			translations.put( 3 * i, xs[ i ] );
+		}
+		return new OverlayModelUpdate( n, shapes, translations, null );
+	}
+}
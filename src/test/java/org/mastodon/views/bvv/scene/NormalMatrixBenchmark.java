@@ -0,0 +1,133 @@
+package org.mastodon.views.bvv.scene;
+
+import static com.jogamp.opengl.GL.GL_COLOR_BUFFER_BIT;
+import static com.jogamp.opengl.GL.GL_DEPTH_BUFFER_BIT;
+import static com.jogamp.opengl.GL3.GL_RASTERIZER_DISCARD;
+
+import java.nio.IntBuffer;
+
+import org.joml.Matrix3f;
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+import org.mastodon.views.bvv.scene.OverlayModelUpdateGenerator.OverlayModelUpdate;
+
+import com.jogamp.opengl.GL3;
+import com.jogamp.opengl.GLAutoDrawable;
+import com.jogamp.opengl.GLCapabilities;
+import com.jogamp.opengl.GLDrawableFactory;
+import com.jogamp.opengl.GLProfile;
+import com.jogamp.opengl.util.GLBuffers;
+
+import bvv.core.backend.jogl.JoglGpuContext;
+import bvv.core.shadergen.DefaultShader;
+import bvv.core.shadergen.generate.SegmentTemplate;
+
+/**
+ * Compares the time of the vertex stage of the mesh shader when the normal
+ * matrix is computed with <code>transpose( inverse( shape ) )</code>, from the
+ * columns of the shape matrix divided by their squared lengths, and from the
+ * inverse squared radii computed on the CPU, in an offscreen GL context.
+ * Rasterization is disabled so that only the vertex stage is timed.
+ */
+public class NormalMatrixBenchmark
+{
+
+	private static final int N_INSTANCES = 1_000_000;
+
+	private static final int SIZE = 1024;
+
+	private static final int N_RUNS = 20;
+
+	public static void main( final String[] args )
+	{
+		final OverlayModelUpdate update = EllipsoidModeBenchmark.randomUpdate( N_INSTANCES );
+
+		final GLProfile profile = GLProfile.getMaxProgrammableCore( true );
+		final GLCapabilities caps = new GLCapabilities( profile );
+		final GLAutoDrawable drawable = GLDrawableFactory.getFactory( profile )
+				.createOffscreenAutoDrawable( null, caps, null, SIZE, SIZE );
+		drawable.display();
+		drawable.getContext().makeCurrent();
+		try
+		{
+			final GL3 gl = drawable.getGL().getGL3();
+			System.out.println( "GL: " + gl.glGetString( GL3.GL_VERSION ) + " - " + gl.glGetString( GL3.GL_RENDERER ) );
+			gl.glViewport( 0, 0, SIZE, SIZE );
+
+			final InstanceLayout layout = new SeparateInstanceLayout();
+			final InstanceArena arena = new InstanceArena( layout, new DirectBufferPool(), false );
+			arena.init( gl );
+			final InstanceArena.Slot slot = arena.allocate( gl, N_INSTANCES );
+			arena.uploadAll( gl, slot, update, 0, N_INSTANCES );
+			final IntBuffer ids = GLBuffers.newDirectIntBuffer( N_INSTANCES );
+			new LodBuckets().all( N_INSTANCES, null, InstanceMeshes.SPHERE, ids );
+			arena.uploadIds( gl, slot, ids, 0, N_INSTANCES );
+
+			final Vector3f camPos = new Vector3f( 0f, 0f, 2500f );
+			final Matrix4f vm = new Matrix4f().lookAt( camPos, new Vector3f(), new Vector3f( 0f, 1f, 0f ) );
+			final Matrix4f pvm = new Matrix4f().perspective( ( float ) Math.toRadians( 45. ), 1f, 10f, 10000f ).mul( vm );
+			final Matrix3f itvm = new Matrix3f();
+			new Matrix4f( vm ).invert().transpose().get3x3( itvm );
+
+			final String instances = code( layout.shaderSegment() );
+			final String shapeMatrix = code( "shapeMatrix.glsl" );
+			final String vp = code( "vertexShader3D.glsl" );
+			final String fp = code( "shading3D.glsl" ) + code( "fragmentShader3D.glsl" );
+			final String normalMatrix = "shapeInverseTranspose( shape, instanceInverseSquaredRadii( instance ) )";
+			final String[] names = { "transpose( inverse )", "column divisions", "CPU inverse radii" };
+			final String[] variants = {
+					vp.replace( normalMatrix, "transpose( inverse( shape ) )" ),
+					vp.replace( normalMatrix, "mat3( shape[ 0 ] / dot( shape[ 0 ], shape[ 0 ] ), shape[ 1 ] / dot( shape[ 1 ], shape[ 1 ] ), shape[ 2 ] / dot( shape[ 2 ], shape[ 2 ] ) )" ),
+					vp };
+
+			gl.glEnable( GL_RASTERIZER_DISCARD );
+			final JoglGpuContext context = JoglGpuContext.get( gl );
+			final double[] times = new double[ variants.length ];
+			for ( int v = 0; v < variants.length; v++ )
+			{
+				final DefaultShader prog = new DefaultShader( instances + shapeMatrix + variants[ v ], fp );
+				prog.use( context );
+				prog.getUniformMatrix4f( "pvm" ).set( pvm );
+				prog.getUniformMatrix4f( "vm" ).set( vm );
+				prog.getUniformMatrix3f( "itvm" ).set( itvm );
+				arena.bindTextures( gl, prog, slot );
+				prog.setUniforms( context );
+
+				long total = 0;
+				for ( int run = 0; run < N_RUNS; run++ )
+				{
+					gl.glClear( GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT );
+					gl.glFinish();
+					final long start = System.nanoTime();
+					arena.draw( gl, slot, 0, N_INSTANCES, InstanceMeshes.SPHERE );
+					gl.glFinish();
+					final long end = System.nanoTime();
+					// Skip the first run, for warm-up.
+					if ( run > 0 )
+						total += end - start;
+				}
+				arena.unbindTextures( gl );
+				times[ v ] = total / 1e6 / ( N_RUNS - 1 );
+				System.out.println( String.format( "%-20s - %d instances of %d vertices: %.1f ms per frame",
+						names[ v ],
+						N_INSTANCES,
+						InstanceMeshes.SPHERE.indexCount,
+						times[ v ] ) );
+			}
+			gl.glDisable( GL_RASTERIZER_DISCARD );
+			for ( int v = 1; v < variants.length; v++ )
+				System.out.println( String.format( "Vertex stage speedup of %s: %.2fx", names[ v ], times[ 0 ] / times[ v ] ) );
+			arena.dispose( gl );
+		}
+		finally
+		{
+			drawable.getContext().release();
+			drawable.destroy();
+		}
+	}
+
+	private static String code( final String name )
+	{
+		return new SegmentTemplate( ShaderPrograms.class, name ).instantiate().getCode();
+	}
+}
@@ -0,0 +1,249 @@
+package org.mastodon.views.bvv.scene;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import org.junit.Test;
+import org.mastodon.spatial.SpatialIndex;
+import org.mastodon.views.bdv.overlay.RenderSettings;
+import org.mastodon.views.bvv.scene.FakeGraph.Spot;
+import org.mastodon.views.bvv.scene.OverlayModelUpdateGenerator.OverlayModelUpdate;
+import org.mastodon.views.bvv.scene.OverlayModelUpdateGenerator.UpdateTarget;
+
+import gnu.trove.list.array.TIntArrayList;
+
+public class OverlayModelUpdateGeneratorTest
+{
+
+	/**
+	 * Number of spots of the first full update, enough for the edits of a
+	 * few instances to be uploaded as ranges.
+	 */
+	private static final int N = 20;
+
+	private final FakeGraph graph = new FakeGraph();
+
+	private final RenderSettings settings = RenderSettings.defaultStyle();
+
+	private final DirectBufferPool pool = new DirectBufferPool();
+
+	@Test
+	public void testAddVertex()
+	{
+		addSpots( N );
+		final OverlayModelUpdateGenerator< Spot > generator = regen();
+
+		final Spot spot = graph.addSpot( 5f, 6f, 7f, 1., 0 );
+		generator.addVertex( spot );
+		generator.addVertex( spot );
+
+		final Transfer t = transfer( generator );
+		assertFalse( t.reallocated );
+		assertEquals( N + 1, t.data.numInstances );
+		assertEquals( N, generator.instanceIndex( N ) );
+		assertEquals( Arrays.asList( range( N, N + 1 ) ), t.positions );
+		assertEquals( Arrays.asList( range( N, N + 1 ) ), t.shapes );
+		assertEquals( Arrays.asList( range( N, N + 1 ) ), t.colors );
+		for ( int d = 0; d < 3; d++ )
+			assertEquals( 5f + d, t.data.translationBuffer.get( 3 * N + d ), 0f );
+		assertEquals( color( false ), t.data.colorBuffer.get( N ) );
+	}
+
+	@Test
+	public void testRemoveLast()
+	{
+		addSpots( N );
+		final OverlayModelUpdateGenerator< Spot > generator = regen();
+
+		generator.removeVertex( graph.spots.get( N - 1 ) );
+		generator.removeVertex( graph.spots.get( N - 1 ) );
+
+		final Transfer t = transfer( generator );
+		assertEquals( N - 1, t.data.numInstances );
+		assertEquals( -1, generator.instanceIndex( N - 1 ) );
+		assertEquals( N - 2, generator.instanceIndex( N - 2 ) );
+		assertTrue( t.positions.isEmpty() );
+		assertTrue( t.shapes.isEmpty() );
+		assertTrue( t.colors.isEmpty() );
+	}
+
+	@Test
+	public void testRemoveMiddleWhileSelected()
+	{
+		addSpots( N );
+		graph.selected.add( graph.spots.get( 1 ) );
+		graph.selected.add( graph.spots.get( N - 1 ) );
+		final OverlayModelUpdateGenerator< Spot > generator = regen();
+
+		// The last instance, selected, moves to the freed slot.
+		generator.removeVertex( graph.spots.get( 1 ) );
+		Transfer t = transfer( generator );
+		assertEquals( N - 1, t.data.numInstances );
+		assertEquals( -1, generator.instanceIndex( 1 ) );
+		assertEquals( 1, generator.instanceIndex( N - 1 ) );
+		assertEquals( N - 1, t.data.translationBuffer.get( 3 * 1 ), 0f );
+		assertEquals( color( true ), t.data.colorBuffer.get( 1 ) );
+		assertEquals( Arrays.asList( range( 1, 2 ) ), t.positions );
+		assertEquals( Arrays.asList( range( 1, 2 ) ), t.shapes );
+		assertEquals( Arrays.asList( range( 1, 2 ) ), t.colors );
+
+		// Its selection state moved with it.
+		graph.selected.clear();
+		generator.updateSelection( new TIntArrayList() );
+		t = transfer( generator );
+		assertEquals( Arrays.asList( range( 1, 2 ) ), t.colors );
+		assertEquals( color( false ), t.data.colorBuffer.get( 1 ) );
+
+		generator.updateSelection( new TIntArrayList( new int[] { N - 1 } ) );
+		t = transfer( generator );
+		assertEquals( Arrays.asList( range( 1, 2 ) ), t.colors );
+		assertEquals( color( true ), t.data.colorBuffer.get( 1 ) );
+
+		// Removing it leaves no selected instance behind.
+		generator.removeVertex( graph.spots.get( N - 1 ) );
+		t = transfer( generator );
+		assertEquals( N - 2, t.data.numInstances );
+		assertEquals( 1, generator.instanceIndex( N - 2 ) );
+		generator.updateSelection( new TIntArrayList() );
+		t = transfer( generator );
+		assertTrue( t.colors.isEmpty() );
+		assertEquals( color( false ), t.data.colorBuffer.get( 0 ) );
+		assertEquals( color( false ), t.data.colorBuffer.get( 1 ) );
+	}
+
+	@Test
+	public void testGrowThenDrain()
+	{
+		addSpots( 1 );
+		final OverlayModelUpdateGenerator< Spot > generator = regen();
+
+		final int n = 200;
+		for ( int i = 1; i < n; i++ )
+			generator.addVertex( graph.addSpot( i, 0f, 0f, 1., 0 ) );
+
+		final Transfer t = transfer( generator );
+		assertTrue( t.reallocated );
+		assertEquals( n, t.data.numInstances );
+		assertTrue( t.data.capacity() >= n );
+		for ( int i = 0; i < n; i++ )
+		{
+			assertEquals( i, generator.instanceIndex( i ) );
+			assertEquals( i, t.data.translationBuffer.get( 3 * i ), 0f );
+		}
+		// The buffers outgrown were returned to the pool.
+		assertTrue( pool.getPooledBytes() > 0 );
+
+		for ( int i = 0; i < n; i++ )
+		{
+			generator.removeVertex( graph.spots.get( i ) );
+			assertEquals( -1, generator.instanceIndex( i ) );
+			final OverlayModelUpdate data = transfer( generator ).data;
+			assertEquals( n - i - 1, data.numInstances );
+			for ( int j = i + 1; j < n; j++ )
+				assertEquals( j, data.translationBuffer.get( 3 * generator.instanceIndex( j ) ), 0f );
+		}
+		assertEquals( 0, generator.transferUpdates( new Transfer() ) );
+	}
+
+	/**
+	 * Adds spots with ids and X positions 0 to <code>n - 1</code>.
+	 */
+	private void addSpots( final int n )
+	{
+		for ( int i = 0; i < n; i++ )
+			graph.addSpot( i, 0f, 0f, 1., 0 );
+	}
+
+	/**
+	 * Returns a generator of the spots added so far, with its first full
+	 * update transferred.
+	 */
+	private OverlayModelUpdateGenerator< Spot > regen()
+	{
+		final SpatialIndex< Spot > index = graph.index();
+		final OverlayModelUpdateGenerator< Spot > generator = new OverlayModelUpdateGenerator<>(
+				() -> index,
+				graph.lock.readLock(),
+				graph.selection(),
+				FakeGraph.noColoring(),
+				settings,
+				new OverlayRenderOptions(),
+				new ShapeCache(),
+				new InstanceIndexMap(),
+				pool,
+				null );
+		generator.regenAll();
+		assertTrue( transfer( generator ).reallocated );
+		return generator;
+	}
+
+	private int color( final boolean selected )
+	{
+		return OverlayModelUpdateGenerator.packRGBA( OverlayModelUpdateGenerator.getColor( selected, settings.getColorSpot(), 0 ) );
+	}
+
+	private static Transfer transfer( final OverlayModelUpdateGenerator< Spot > generator )
+	{
+		final Transfer t = new Transfer();
+		generator.transferUpdates( t );
+		return t;
+	}
+
+	private static List< Integer > range( final int start, final int end )
+	{
+		return Arrays.asList( start, end );
+	}
+
+	/**
+	 * Records a transfer.
+	 */
+	private static class Transfer implements UpdateTarget
+	{
+
+		boolean reallocated;
+
+		final List< List< Integer > > shapes = new ArrayList<>();
+
+		final List< List< Integer > > positions = new ArrayList<>();
+
+		final List< List< Integer > > colors = new ArrayList<>();
+
+		OverlayModelUpdate data;
+
+		@Override
+		public void reallocate( final OverlayModelUpdate data )
+		{
+			reallocated = true;
+		}
+
+		@Override
+		public void uploadShapes( final OverlayModelUpdate data, final int start, final int end )
+		{
+			shapes.add( range( start, end ) );
+		}
+
+		@Override
+		public void uploadPositions( final OverlayModelUpdate data, final int start, final int end )
+		{
+			positions.add( range( start, end ) );
+		}
+
+		@Override
+		public void uploadColors( final OverlayModelUpdate data, final int start, final int end )
+		{
+			colors.add( range( start, end ) );
+		}
+
+		@Override
+		public void transferred( final OverlayModelUpdate data, final BitSet visible )
+		{
+			this.data = data;
+		}
+	}
+}
@@ -0,0 +1,91 @@
+package org.mastodon.views.bvv.scene;
+
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+import org.joml.Matrix3f;
+import org.mastodon.views.bdv.overlay.util.JamaEigenvalueDecomposition;
+
+import com.jogamp.opengl.util.GLBuffers;
+
+/**
+ * Compares the time taken to compute the shape matrices of many spots with
+ * {@link ShapeMatrices} and with the Jama eigen-decomposition previously used.
+ */
+public class ShapeMatricesBenchmark
+{
+
+	private static final int N_SPOTS = 500_000;
+
+	private static final int N_RUNS = 10;
+
+	public static void main( final String[] args )
+	{
+		final Random ran = new Random( 1l );
+		final double[][][] covariances = new double[ N_SPOTS ][][];
+		for ( int i = 0; i < N_SPOTS; i++ )
+		{
+			final double[][] m = new double[ 3 ][ 3 ];
+			for ( int r = 0; r < 3; r++ )
+				for ( int c = 0; c < 3; c++ )
+					m[ r ][ c ] = 5. * ran.nextGaussian();
+			final double[][] cov = new double[ 3 ][ 3 ];
+			for ( int r = 0; r < 3; r++ )
+				for ( int c = 0; c < 3; c++ )
+					for ( int k = 0; k < 3; k++ )
+						cov[ r ][ c ] += m[ r ][ k ] * m[ c ][ k ];
+			covariances[ i ] = cov;
+		}
+		final FloatBuffer buffer = GLBuffers.newDirectFloatBuffer( ShapeMatrices.FLOATS * N_SPOTS );
+
+		for ( int run = 0; run < N_RUNS; run++ )
+		{
+			final long t0 = System.nanoTime();
+			jama( covariances, buffer );
+			final long t1 = System.nanoTime();
+			closedForm( covariances, buffer );
+			final long t2 = System.nanoTime();
+			System.out.println( String.format( "Run %2d - Jama: %6.1f ms - ShapeMatrices: %6.1f ms - speedup: %.1fx",
+					run,
+					( t1 - t0 ) / 1e6,
+					( t2 - t1 ) / 1e6,
+					( double ) ( t1 - t0 ) / ( t2 - t1 ) ) );
+		}
+	}
+
+	private static void closedForm( final double[][][] covariances, final FloatBuffer buffer )
+	{
+		for ( int i = 0; i < covariances.length; i++ )
+			ShapeMatrices.shapeMatrix( covariances[ i ], buffer, ShapeMatrices.FLOATS * i );
+	}
+
+	/**
+	 * The code path used before {@link ShapeMatrices}.
+	 */
+	private static void jama( final double[][][] covariances, final FloatBuffer buffer )
+	{
+		final JamaEigenvalueDecomposition eig3 = new JamaEigenvalueDecomposition( 3 );
+		final double[] radii = new double[ 3 ];
+		final double[][] S = new double[ 3 ][ 3 ];
+		final Matrix3f scaling = new Matrix3f();
+		final Matrix3f rotation = new Matrix3f();
+		final Matrix3f modelMatrix = new Matrix3f();
+		for ( int i = 0; i < covariances.length; i++ )
+		{
+			for ( int r = 0; r < 3; r++ )
+				System.arraycopy( covariances[ i ][ r ], 0, S[ r ], 0, 3 );
+			eig3.decomposeSymmetric( S );
+			final double[] eigenvalues = eig3.getRealEigenvalues();
+			for ( int d = 0; d < eigenvalues.length; d++ )
+				radii[ d ] = Math.sqrt( eigenvalues[ d ] );
+			final double[][] V = eig3.getV();
+			scaling.scaling( ( float ) radii[ 0 ], ( float ) radii[ 1 ], ( float ) radii[ 2 ] );
+			for ( int r = 0; r < 3; r++ )
+				for ( int c = 0; c < 3; c++ )
+					rotation.set( c, r, ( float ) V[ r ][ c ] );
+			modelMatrix.set( rotation );
+			modelMatrix.mul( scaling );
+			modelMatrix.get( ShapeMatrices.FLOATS * i, buffer );
+		}
+	}
+}
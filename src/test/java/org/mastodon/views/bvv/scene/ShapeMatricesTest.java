@@ -0,0 +1,201 @@
+package org.mastodon.views.bvv.scene;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+import org.mastodon.views.bdv.overlay.util.JamaEigenvalueDecomposition;
+
+public class ShapeMatricesTest
+{
+
+	private static final double TOLERANCE = 1e-5;
+
+	private final JamaEigenvalueDecomposition eig = new JamaEigenvalueDecomposition( 3 );
+
+	@Test
+	public void testEqualRadii()
+	{
+		check( diagonal( 4., 4., 4. ) );
+		check( rotate( diagonal( 25., 25., 25. ), 0.3, -1.2, 2.1 ) );
+	}
+
+	@Test
+	public void testTwoEqualRadii()
+	{
+		check( diagonal( 4., 4., 9. ) );
+		check( rotate( diagonal( 4., 9., 9. ), 0.7, 0.1, -0.4 ) );
+	}
+
+	@Test
+	public void testFlatSpots()
+	{
+		check( diagonal( 16., 9., 0. ) );
+		check( rotate( diagonal( 16., 9., 1e-10 ), 1.1, 0.5, 0.2 ) );
+		check( rotate( diagonal( 16., 1e-10, 1e-10 ), -0.6, 0.9, 1.3 ) );
+	}
+
+	@Test
+	public void testZeroCovariance()
+	{
+		check( diagonal( 0., 0., 0. ) );
+	}
+
+	@Test
+	public void testRandomCovariances()
+	{
+		final Random ran = new Random( 1l );
+		for ( int i = 0; i < 10000; i++ )
+		{
+			final double[][] cov = diagonal(
+					Math.pow( 10., 2. * ran.nextDouble() ),
+					Math.pow( 10., 2. * ran.nextDouble() ),
+					Math.pow( 10., 2. * ran.nextDouble() ) );
+			check( rotate( cov,
+					2. * Math.PI * ran.nextDouble(),
+					2. * Math.PI * ran.nextDouble(),
+					2. * Math.PI * ran.nextDouble() ) );
+		}
+	}
+
+	/**
+	 * Compares the shape matrix with the Jama eigen-decomposition. The order
+	 * and sign of the eigenvectors are arbitrary, so we compare the radii and
+	 * the covariance reconstructed from the shape matrix. The inverse squared
+	 * radii must be finite, even for flat spots, and give the inverse
+	 * transpose of the shape matrix for the radii above the floor.
+	 */
+	private void check( final double[][] cov )
+	{
+		final FloatBuffer buffer = FloatBuffer.allocate( ShapeMatrices.FLOATS );
+		ShapeMatrices.shapeMatrix( cov, buffer, 0 );
+
+		eig.decomposeSymmetric( copy( cov ) );
+		final double[] expectedRadii = eig.getRealEigenvalues().clone();
+		for ( int d = 0; d < 3; d++ )
+			expectedRadii[ d ] = Math.sqrt( Math.max( 0., expectedRadii[ d ] ) );
+		Arrays.sort( expectedRadii );
+		final double[][] V = eig.getV();
+
+		// Radii: norms of the shape matrix columns.
+		final double[] columnRadii = new double[ 3 ];
+		for ( int c = 0; c < 3; c++ )
+		{
+			double sum = 0.;
+			for ( int r = 0; r < 3; r++ )
+				sum += buffer.get( 3 * c + r ) * buffer.get( 3 * c + r );
+			columnRadii[ c ] = Math.sqrt( sum );
+		}
+		final double[] radii = columnRadii.clone();
+		Arrays.sort( radii );
+		final double scale = Math.max( 1., expectedRadii[ 2 ] );
+		for ( int d = 0; d < 3; d++ )
+			assertEquals( "Unexpected radius.", expectedRadii[ d ], radii[ d ], TOLERANCE * scale );
+
+		// Covariance: M x M^T and V x D x V^T.
+		final double[] eigenvalues = eig.getRealEigenvalues();
+		for ( int r = 0; r < 3; r++ )
+		{
+			for ( int c = 0; c < 3; c++ )
+			{
+				double actual = 0.;
+				double expected = 0.;
+				for ( int k = 0; k < 3; k++ )
+				{
+					actual += buffer.get( 3 * k + r ) * buffer.get( 3 * k + c );
+					expected += V[ r ][ k ] * Math.max( 0., eigenvalues[ k ] ) * V[ c ][ k ];
+				}
+				assertEquals( "Unexpected covariance element at " + r + ", " + c + ".",
+						expected, actual, TOLERANCE * scale * scale );
+			}
+		}
+
+		// Orthogonal columns, which the shaders rely on to invert M.
+		for ( int c1 = 0; c1 < 3; c1++ )
+		{
+			for ( int c2 = c1 + 1; c2 < 3; c2++ )
+			{
+				double dot = 0.;
+				for ( int r = 0; r < 3; r++ )
+					dot += buffer.get( 3 * c1 + r ) * buffer.get( 3 * c2 + r );
+				assertEquals( "Columns " + c1 + " and " + c2 + " are not orthogonal.",
+						0., dot, TOLERANCE * scale * scale );
+			}
+		}
+
+		// Inverse squared radii: M^T x M x S^-2 is the identity, except for
+		// the floored radii.
+		final double floor = Math.max( ShapeMatrices.MIN_RADIUS, ShapeMatrices.RADIUS_FLOOR * expectedRadii[ 2 ] );
+		for ( int c = 0; c < 3; c++ )
+		{
+			final float inverse = buffer.get( 9 + c );
+			assertTrue( "Inverse squared radius " + c + " is not finite.", Float.isFinite( inverse ) && inverse > 0f );
+			final double product = columnRadii[ c ] * columnRadii[ c ] * inverse;
+			if ( columnRadii[ c ] > 2. * floor )
+				assertEquals( "Unexpected inverse squared radius " + c + ".", 1., product, TOLERANCE );
+			else
+				assertTrue( "Unexpected floored inverse squared radius " + c + ".", product <= 1. + TOLERANCE );
+		}
+	}
+
+	private static double[][] diagonal( final double a, final double b, final double c )
+	{
+		return new double[][] {
+				{ a, 0., 0. },
+				{ 0., b, 0. },
+				{ 0., 0., c } };
+	}
+
+	/**
+	 * Returns R x C x R^T, with R a rotation built from the specified Euler
+	 * angles.
+	 */
+	private static double[][] rotate( final double[][] cov, final double ax, final double ay, final double az )
+	{
+		final double[][] rx = {
+				{ 1., 0., 0. },
+				{ 0., Math.cos( ax ), -Math.sin( ax ) },
+				{ 0., Math.sin( ax ), Math.cos( ax ) } };
+		final double[][] ry = {
+				{ Math.cos( ay ), 0., Math.sin( ay ) },
+				{ 0., 1., 0. },
+				{ -Math.sin( ay ), 0., Math.cos( ay ) } };
+		final double[][] rz = {
+				{ Math.cos( az ), -Math.sin( az ), 0. },
+				{ Math.sin( az ), Math.cos( az ), 0. },
+				{ 0., 0., 1. } };
+		final double[][] rot = mul( rz, mul( ry, rx ) );
+		return mul( rot, mul( cov, transpose( rot ) ) );
+	}
+
+	private static double[][] mul( final double[][] a, final double[][] b )
+	{
+		final double[][] out = new double[ 3 ][ 3 ];
+		for ( int r = 0; r < 3; r++ )
+			for ( int c = 0; c < 3; c++ )
+				for ( int k = 0; k < 3; k++ )
+					out[ r ][ c ] += a[ r ][ k ] * b[ k ][ c ];
+		return out;
+	}
+
+	private static double[][] transpose( final double[][] a )
+	{
+		final double[][] out = new double[ 3 ][ 3 ];
+		for ( int r = 0; r < 3; r++ )
+			for ( int c = 0; c < 3; c++ )
+				out[ r ][ c ] = a[ c ][ r ];
+		return out;
+	}
+
+	private static double[][] copy( final double[][] a )
+	{
+		final double[][] out = new double[ 3 ][];
+		for ( int r = 0; r < 3; r++ )
+			out[ r ] = a[ r ].clone();
+		return out;
+	}
+}
@@ -0,0 +1,63 @@
+package org.mastodon.views.bvv.scene;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+import org.junit.Test;
+
+import net.imglib2.algorithm.kdtree.ConvexPolytope;
+import net.imglib2.algorithm.kdtree.HyperPlane;
+
+public class ViewFrustumTest
+{
+
+	private static Matrix4f view( final float x )
+	{
+		return new Matrix4f()
+				.perspective( ( float ) Math.toRadians( 45. ), 1f, 100f, 1000f )
+				.lookAt( new Vector3f( x, 0f, 500f ), new Vector3f( x, 0f, 0f ), new Vector3f( 0f, 1f, 0f ) );
+	}
+
+	@Test
+	public void testCovers()
+	{
+		final ViewFrustum frustum = new ViewFrustum();
+		assertFalse( frustum.covers( view( 0f ) ) );
+
+		frustum.set( view( 0f ), 0.25 );
+		assertTrue( frustum.covers( view( 0f ) ) );
+		assertTrue( frustum.covers( view( 5f ) ) );
+		assertFalse( frustum.covers( view( 200f ) ) );
+
+		frustum.set( view( 0f ), 0. );
+		assertFalse( frustum.covers( view( 5f ) ) );
+	}
+
+	@Test
+	public void testPolytope()
+	{
+		final ViewFrustum frustum = new ViewFrustum();
+		frustum.set( view( 0f ), 0. );
+
+		// In front of the camera, in the view.
+		assertTrue( inside( frustum.polytope( 0. ), 0., 0., 0. ) );
+		// Beyond the far plane, and behind the camera.
+		assertFalse( inside( frustum.polytope( 0. ), 0., 0., -600. ) );
+		assertFalse( inside( frustum.polytope( 0. ), 0., 0., 600. ) );
+		// Just beyond the far plane, within the margin.
+		assertTrue( inside( frustum.polytope( 20. ), 0., 0., -510. ) );
+	}
+
+	private static boolean inside( final ConvexPolytope polytope, final double... position )
+	{
+		for ( final HyperPlane plane : polytope.getHyperplanes() )
+		{
+			final double[] n = plane.getNormal();
+			if ( n[ 0 ] * position[ 0 ] + n[ 1 ] * position[ 1 ] + n[ 2 ] * position[ 2 ] < plane.getDistance() )
+				return false;
+		}
+		return true;
+	}
+}